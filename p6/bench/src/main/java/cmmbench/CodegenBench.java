@@ -0,0 +1,41 @@
+package cmmbench;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * MIPS code emission for an analysed and type-checked program.  The code
+ * is written to a discarding writer, so the numbers cover instruction
+ * selection and formatting but not file I/O.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodegenBench {
+    @Param({"10", "100", "1000"})
+    public int functions;
+
+    private Object program;
+
+    @Setup
+    public void setup() {
+        Object ctx = Compiler.bindNewContext(Writer.nullWriter());
+        program = Compiler.parse(Generator.program(functions));
+        Compiler.nameAnalysis(program);
+        Compiler.typeCheck(program);
+        if (Compiler.hasErrors(ctx)) {
+            throw new IllegalStateException("benchmark input does not type-check");
+        }
+    }
+
+    @Benchmark
+    public Object codeGen() {
+        Compiler.codeGen(program);
+        return program;
+    }
+}
@@ -0,0 +1,290 @@
+package cmmbench;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+
+import java_cup.runtime.Scanner;
+import java_cup.runtime.Symbol;
+import java_cup.runtime.lr_parser;
+
+/**
+ * Bridge from the benchmarks to the compiler.
+ *
+ * The compiler lives in the default package, which Java code in a named
+ * package (and JMH only accepts benchmarks in named packages) cannot refer
+ * to by name.  This class looks the entry points up reflectively once and
+ * exposes them as method handles, so the measured code pays an ordinary
+ * call and not a reflective one.
+ */
+public final class Compiler {
+    private static final MethodHandle NEW_SCANNER;
+    private static final MethodHandle NEW_PARSER;
+    private static final MethodHandle NAME_ANALYSIS;
+    private static final MethodHandle TYPE_CHECK;
+    private static final MethodHandle CODE_GEN;
+
+    private static final MethodHandle NEW_CONTEXT;
+    private static final MethodHandle BIND_CONTEXT;
+    private static final MethodHandle SET_OUTPUT;
+    private static final MethodHandle SET_DIAGNOSTIC_STREAM;
+    private static final MethodHandle HAS_ERRORS;
+    private static final MethodHandle GET_NAMES;
+    private static final MethodHandle INTERN;
+
+    private static final MethodHandle NEW_SYMTABLE;
+    private static final MethodHandle ADD_DECL;
+    private static final MethodHandle ADD_SCOPE;
+    private static final MethodHandle REMOVE_SCOPE;
+    private static final MethodHandle LOOKUP_LOCAL;
+    private static final MethodHandle LOOKUP_GLOBAL;
+    private static final MethodHandle NEW_INT_SYM;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> yylex = Class.forName("Yylex");
+            Class<?> parser = Class.forName("parser");
+            Class<?> program = Class.forName("ProgramNode");
+            Class<?> context = Class.forName("CompilationContext");
+            Class<?> symTable = Class.forName("SymTable");
+            Class<?> tsym = Class.forName("TSym");
+            Class<?> type = Class.forName("Type");
+            Class<?> nameTable = Class.forName("NameTable");
+
+            NEW_SCANNER = constructor(lookup, yylex, Reader.class)
+                .asType(MethodType.methodType(Scanner.class, Reader.class));
+            NEW_PARSER = constructor(lookup, parser, Scanner.class)
+                .asType(MethodType.methodType(lr_parser.class, Scanner.class));
+            NAME_ANALYSIS = erase(method(lookup, program, "nameAnalysis"));
+            TYPE_CHECK = erase(method(lookup, program, "typeCheck"));
+            CODE_GEN = erase(method(lookup, program, "codeGen"));
+
+            NEW_CONTEXT = erase(constructor(lookup, context));
+            BIND_CONTEXT = erase(method(lookup, context, "bind", context));
+            SET_OUTPUT = erase(method(lookup, context, "setOutput", PrintWriter.class));
+            SET_DIAGNOSTIC_STREAM =
+                erase(method(lookup, context, "setDiagnosticStream", PrintStream.class));
+            HAS_ERRORS = erase(method(lookup, context, "hasErrors"));
+            GET_NAMES = erase(method(lookup, context, "getNames"));
+            INTERN = erase(method(lookup, nameTable, "intern", String.class));
+
+            NEW_SYMTABLE = erase(constructor(lookup, symTable));
+            ADD_DECL = erase(method(lookup, symTable, "addDecl", int.class, tsym));
+            ADD_SCOPE = erase(method(lookup, symTable, "addScope"));
+            REMOVE_SCOPE = erase(method(lookup, symTable, "removeScope"));
+            LOOKUP_LOCAL = erase(method(lookup, symTable, "lookupLocal", int.class));
+            LOOKUP_GLOBAL = erase(method(lookup, symTable, "lookupGlobal", int.class));
+            NEW_INT_SYM = erase(MethodHandles.insertArguments(
+                constructor(lookup, tsym, type), 0, type.getField("INT").get(null)));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(
+                "compiler classes not found; run make in p6/files first: " + e);
+        }
+    }
+
+    private Compiler() {
+    }
+
+    private static MethodHandle constructor(MethodHandles.Lookup lookup, Class<?> c,
+                                            Class<?>... params)
+            throws ReflectiveOperationException {
+        Constructor<?> ctor = c.getDeclaredConstructor(params);
+        ctor.setAccessible(true);
+        return lookup.unreflectConstructor(ctor);
+    }
+
+    private static MethodHandle method(MethodHandles.Lookup lookup, Class<?> c,
+                                       String name, Class<?>... params)
+            throws ReflectiveOperationException {
+        Method m = c.getDeclaredMethod(name, params);
+        m.setAccessible(true);
+        return lookup.unreflect(m);
+    }
+
+    /**
+     * Replace every compiler type in the handle's signature by Object.
+     */
+    private static MethodHandle erase(MethodHandle h) {
+        MethodType t = h.type();
+        for (int k = 0; k < t.parameterCount(); k++) {
+            if (!t.parameterType(k).isPrimitive()
+                    && t.parameterType(k).getPackageName().isEmpty()) {
+                t = t.changeParameterType(k, Object.class);
+            }
+        }
+        if (!t.returnType().isPrimitive() && t.returnType().getPackageName().isEmpty()) {
+            t = t.changeReturnType(Object.class);
+        }
+        return h.asType(t);
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new RuntimeException(t);
+    }
+
+    // **********************************************************************
+    // compilation context
+    // **********************************************************************
+
+    /**
+     * Create a fresh compilation context that writes its code to out and
+     * drops diagnostics, and bind it to the calling thread.
+     */
+    public static Object bindNewContext(Writer out) {
+        try {
+            Object ctx = NEW_CONTEXT.invokeExact();
+            SET_OUTPUT.invokeExact(ctx, new PrintWriter(out));
+            SET_DIAGNOSTIC_STREAM.invokeExact(ctx, (PrintStream) null);
+            Object prev = BIND_CONTEXT.invokeExact(ctx);  // not restored
+            return ctx;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static boolean hasErrors(Object ctx) {
+        try {
+            return (boolean) HAS_ERRORS.invokeExact(ctx);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Return the ID of name in the name table of ctx.
+     */
+    public static int intern(Object ctx, String name) {
+        try {
+            return (int) INTERN.invokeExact(GET_NAMES.invokeExact(ctx), name);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // **********************************************************************
+    // front end
+    // **********************************************************************
+
+    public static Scanner scanner(Reader in) {
+        try {
+            return (Scanner) NEW_SCANNER.invokeExact(in);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static lr_parser parser(Scanner s) {
+        try {
+            return (lr_parser) NEW_PARSER.invokeExact(s);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Scan and parse source, returning the ProgramNode at the root of its
+     * AST.
+     */
+    public static Object parse(String source) {
+        try {
+            Symbol root = parser(scanner(new StringReader(source))).parse();
+            return root.value;
+        } catch (Exception e) {
+            throw new IllegalStateException("benchmark input does not parse", e);
+        }
+    }
+
+    public static void nameAnalysis(Object program) {
+        try {
+            NAME_ANALYSIS.invokeExact(program);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static void typeCheck(Object program) {
+        try {
+            TYPE_CHECK.invokeExact(program);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static void codeGen(Object program) {
+        try {
+            CODE_GEN.invokeExact(program);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // **********************************************************************
+    // symbol table
+    // **********************************************************************
+
+    public static Object newSymTable() {
+        try {
+            return NEW_SYMTABLE.invokeExact();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Return a new symbol of type int.
+     */
+    public static Object newIntSym() {
+        try {
+            return NEW_INT_SYM.invokeExact();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static void addDecl(Object symTab, int id, Object sym) {
+        try {
+            ADD_DECL.invokeExact(symTab, id, sym);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static void addScope(Object symTab) {
+        try {
+            ADD_SCOPE.invokeExact(symTab);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static void removeScope(Object symTab) {
+        try {
+            REMOVE_SCOPE.invokeExact(symTab);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static Object lookupLocal(Object symTab, int id) {
+        try {
+            return LOOKUP_LOCAL.invokeExact(symTab, id);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static Object lookupGlobal(Object symTab, int id) {
+        try {
+            return LOOKUP_GLOBAL.invokeExact(symTab, id);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+}
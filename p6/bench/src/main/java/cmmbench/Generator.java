@@ -0,0 +1,445 @@
+package cmmbench;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Generator
+ *
+ * Emits synthetic C-- programs for scaling tests.  Every program it writes
+ * is accepted by the grammar in cminusminus.cup, passes name analysis and
+ * type checking, and terminates when run: loops have small constant trip
+ * counts, functions only call functions defined before them, and division
+ * is by non-zero literals only.  Integer arithmetic may overflow.
+ *
+ * A program consists of
+ *   - struct definitions, each nesting the one defined before it, and one
+ *     global variable of every struct type;
+ *   - int and bool globals;
+ *   - functions int fn(int a, int b, bool c), whose bodies are a chain of
+ *     nested if/while/repeat blocks, each block declaring its own locals
+ *     and holding a few simple statements;
+ *   - main, which calls every function and writes the sum.
+ *
+ * The knobs are public fields.  The string literals are spread evenly over
+ * the functions (any left over when -lines is used go to main).  Output is
+ * streamed, so programs of millions of lines need no more memory than
+ * small ones.
+ *
+ * Usage: java -cp benchmarks.jar cmmbench.Generator [-knob=value ...] [outfile]
+ *   e.g. -functions=5000 -depth=4 -exprDepth=3 -idLength=12 -strings=200
+ * -lines=N keeps adding functions until the program is about N lines long
+ * (the -functions knob is then ignored).
+ */
+public class Generator {
+    /** number of functions, not counting main */
+    public int functions = 100;
+    /** number of int and bool globals */
+    public int globals = 10;
+    /** number of struct definitions */
+    public int structs = 2;
+    /** nesting depth of the if/while/repeat blocks in each function */
+    public int depth = 3;
+    /** depth of the expression trees */
+    public int exprDepth = 2;
+    /** minimum length of every generated identifier */
+    public int idLength = 1;
+    /** number of distinct string literals written by the program */
+    public int strings = 10;
+    /** simple statements per block */
+    public int statements = 4;
+    /** whether to read and write struct fields (code generation does not
+     *  support field access yet, so this only suits the front end) */
+    public boolean fieldAccess = false;
+    /** approximate program length; if positive, overrides functions */
+    public long lines = 0;
+    /** seed of the random choices, so that a set of knobs always yields
+     *  the same program */
+    public long seed = 1;
+
+    // state of one run
+    private Writer out;
+    private long lineCount;
+    private int indent;
+    private Random rand;
+    private int nextString;
+    private StringBuilder line = new StringBuilder();
+
+    // the names visible in the block being generated
+    private List<String> intVars = new ArrayList<String>();
+    private List<String> boolVars = new ArrayList<String>();
+
+    /**
+     * Return a program with the given number of functions and every other
+     * knob at its default, as used by the benchmarks.
+     */
+    public static String program(int functions) {
+        Generator g = new Generator();
+        g.functions = functions;
+        return g.generate();
+    }
+
+    /**
+     * Return the program as a string; meant for small programs.
+     */
+    public String generate() {
+        StringWriter sw = new StringWriter();
+        try {
+            generate(sw);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // cannot happen
+        }
+        return sw.toString();
+    }
+
+    /**
+     * Write the program to w and return its number of lines.
+     */
+    public long generate(Writer w) throws IOException {
+        out = w;
+        lineCount = 0;
+        indent = 0;
+        nextString = 0;
+        rand = new Random(seed);
+
+        for (int k = 0; k < structs; k++) {
+            structDecl(k);
+        }
+        for (int k = 0; k < structs; k++) {
+            emit("struct " + name("S", k) + " " + name("sg", k) + ";");
+        }
+        for (int k = 0; k < globals; k++) {
+            emit((k % 2 == 0 ? "int " : "bool ") + name("g", k) + ";");
+        }
+
+        int n = 0;
+        while (lines > 0 ? lineCount < lines : n < functions) {
+            function(n++);
+        }
+        mainDecl(n);
+        out.flush();
+        return lineCount;
+    }
+
+    // **********************************************************************
+    // declarations
+    // **********************************************************************
+
+    private void structDecl(int k) throws IOException {
+        emit("struct " + name("S", k) + " {");
+        indent++;
+        emit("int " + name("f", 0) + ";");
+        emit("bool " + name("f", 1) + ";");
+        emit("int " + name("f", 2) + ";");
+        if (k > 0) {
+            emit("struct " + name("S", k - 1) + " " + name("in", 0) + ";");
+        }
+        indent--;
+        emit("};");
+    }
+
+    private void function(int k) throws IOException {
+        String a = name("a", 0);
+        String b = name("b", 0);
+        String c = name("c", 0);
+        emit("int " + name("fn", k) + "(int " + a + ", int " + b + ", bool " + c + ") {");
+        indent++;
+        intVars.clear();
+        boolVars.clear();
+        intVars.add(a);
+        intVars.add(b);
+        boolVars.add(c);
+        for (int g = 0; g < globals; g++) {
+            (g % 2 == 0 ? intVars : boolVars).add(name("g", g));
+        }
+        if (fieldAccess) {
+            for (int s = 0; s < structs; s++) {
+                intVars.add(name("sg", s) + "." + name("f", 0));
+                boolVars.add(name("sg", s) + "." + name("f", 1));
+                if (s > 0) {
+                    intVars.add(name("sg", s) + "." + name("in", 0) + "." + name("f", 2));
+                }
+            }
+        }
+
+        String x = name("x", 0);
+        String y = name("y", 0);
+        String z = name("z", 0);
+        emit("int " + x + ";");
+        emit("int " + y + ";");
+        emit("bool " + z + ";");
+        emit(x + " = " + intExp(exprDepth) + ";");
+        emit(y + " = " + intExp(exprDepth) + ";");
+        emit(z + " = " + boolExp(exprDepth) + ";");
+        intVars.add(x);
+        intVars.add(y);
+        boolVars.add(z);
+
+        // calls go to an earlier function, outside of any loop, so that the
+        // number of calls a run makes stays small
+        if (k > 0) {
+            int callee = k / 2 + rand.nextInt(k - k / 2);
+            emit(x + " = " + x + " + " + name("fn", callee) + "(" + intExp(1) + ", "
+                 + intExp(1) + ", " + boolExp(1) + ");");
+        }
+
+        int share;
+        if (lines > 0) {
+            share = nextString < strings ? 1 : 0;
+        } else {
+            share = (strings - nextString + functions - k - 1) / (functions - k);
+        }
+        for (int s = 0; s < share; s++) {
+            emit("cout << \"" + name("str", nextString++) + "\\n\";");
+        }
+
+        block(0);
+        emit("cout << " + x + ";");
+        emit("return " + x + " + " + y + ";");
+        indent--;
+        emit("}");
+        emit("");
+    }
+
+    private void mainDecl(int fns) throws IOException {
+        String r = name("r", 0);
+        emit("int main() {");
+        indent++;
+        emit("int " + r + ";");
+        emit(r + " = 0;");
+        for (int k = 0; k < fns; k++) {
+            emit(r + " = " + r + " + " + name("fn", k) + "(" + (k % 97) + ", "
+                 + (k % 13 + 1) + ", " + (k % 2 == 0) + ");");
+        }
+        while (nextString < strings) {
+            emit("cout << \"" + name("str", nextString++) + "\\n\";");
+        }
+        emit("cout << " + r + ";");
+        emit("cout << \"\\n\";");
+        emit("return 0;");
+        indent--;
+        emit("}");
+    }
+
+    // **********************************************************************
+    // statements
+    // **********************************************************************
+
+    /**
+     * Generate the simple statements of a block at nesting level d, followed
+     * by a nested if, while or repeat statement if d is below the depth.
+     */
+    private void block(int d) throws IOException {
+        for (int s = 0; s < statements; s++) {
+            simpleStmt();
+        }
+        if (d >= depth) {
+            return;
+        }
+
+        String v = name("v", d + 1);
+        switch (d % 3) {
+        case 0:
+            emit("if (" + boolExp(exprDepth) + ") {");
+            nested(d, v);
+            emit("} else {");
+            indent++;
+            simpleStmt();
+            indent--;
+            emit("}");
+            break;
+
+        case 1:
+            // the counter is declared by the enclosing block, which is
+            // why every nested block declares the next level's counter
+            String i = name("i", d);
+            emit(i + " = 0;");
+            emit("while (" + i + " < " + (2 + rand.nextInt(2)) + ") {");
+            nested(d, v);
+            indent++;
+            emit(i + "++;");
+            indent--;
+            emit("}");
+            break;
+
+        default:
+            emit("repeat (" + (1 + rand.nextInt(3)) + ") {");
+            nested(d, v);
+            emit("}");
+            break;
+        }
+    }
+
+    /**
+     * Generate the body of a nested block: its own locals (an int that the
+     * statements may use and the next level's loop counter), then its
+     * statements.
+     */
+    private void nested(int d, String v) throws IOException {
+        indent++;
+        String i = name("i", d + 1);
+        emit("int " + v + ";");
+        emit("int " + i + ";");
+        emit(v + " = " + intExp(exprDepth) + ";");
+        intVars.add(v);
+        block(d + 1);
+        intVars.remove(intVars.size() - 1);
+        indent--;
+    }
+
+    private void simpleStmt() throws IOException {
+        switch (rand.nextInt(6)) {
+        case 0:
+        case 1:
+            emit(pick(intVars) + " = " + intExp(exprDepth) + ";");
+            break;
+        case 2:
+            emit(pick(boolVars) + " = " + boolExp(exprDepth) + ";");
+            break;
+        case 3:
+            emit(pick(intVars) + (rand.nextBoolean() ? "++;" : "--;"));
+            break;
+        case 4:
+            emit("cout << " + intExp(exprDepth) + ";");
+            break;
+        default:
+            emit("cout << " + boolExp(exprDepth) + ";");
+            break;
+        }
+    }
+
+    // **********************************************************************
+    // expressions
+    // **********************************************************************
+
+    private String intExp(int d) {
+        if (d <= 0) {
+            switch (rand.nextInt(3)) {
+            case 0:
+                return Integer.toString(rand.nextInt(100));
+            default:
+                return pick(intVars);
+            }
+        }
+        switch (rand.nextInt(6)) {
+        case 0:
+            return intExp(d - 1) + " + " + intExp(d - 1);
+        case 1:
+            return intExp(d - 1) + " - " + intExp(d - 1);
+        case 2:
+            return "(" + intExp(d - 1) + ") * " + intExp(d - 1);
+        case 3:
+            return "(" + intExp(d - 1) + ") / " + (1 + rand.nextInt(9));
+        case 4:
+            return "-(" + intExp(d - 1) + ")";
+        default:
+            return "(" + intExp(d - 1) + ")";
+        }
+    }
+
+    private String boolExp(int d) {
+        if (d <= 0) {
+            switch (rand.nextInt(4)) {
+            case 0:
+                return rand.nextBoolean() ? "true" : "false";
+            default:
+                return pick(boolVars);
+            }
+        }
+        switch (rand.nextInt(6)) {
+        case 0:
+            return "(" + boolExp(d - 1) + ") && (" + boolExp(d - 1) + ")";
+        case 1:
+            return "(" + boolExp(d - 1) + ") || (" + boolExp(d - 1) + ")";
+        case 2:
+            return "!(" + boolExp(d - 1) + ")";
+        case 3:
+            return intExp(d - 1) + " < " + intExp(d - 1);
+        case 4:
+            return intExp(d - 1) + " >= " + intExp(d - 1);
+        default:
+            return intExp(d - 1) + " == " + intExp(d - 1);
+        }
+    }
+
+    private String pick(List<String> names) {
+        return names.get(rand.nextInt(names.size()));
+    }
+
+    // **********************************************************************
+    // output
+    // **********************************************************************
+
+    /**
+     * Return the identifier prefix+k, padded with underscores to at least
+     * idLength characters.
+     */
+    private String name(String prefix, int k) {
+        String s = prefix + k;
+        if (s.length() >= idLength) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s);
+        while (sb.length() < idLength) {
+            sb.append('_');
+        }
+        return sb.toString();
+    }
+
+    private void emit(String s) throws IOException {
+        line.setLength(0);
+        for (int k = 0; k < indent; k++) {
+            line.append("    ");
+        }
+        line.append(s).append('\n');
+        out.write(line.toString());
+        lineCount++;
+    }
+
+    // **********************************************************************
+    // command line
+    // **********************************************************************
+
+    public static void main(String[] args) throws IOException {
+        Generator g = new Generator();
+        String outFile = null;
+        for (String arg : args) {
+            if (!arg.startsWith("-")) {
+                outFile = arg;
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            String knob = eq < 0 ? arg.substring(1) : arg.substring(1, eq);
+            String value = eq < 0 ? "true" : arg.substring(eq + 1);
+            try {
+                g.getClass().getField(knob).set(g, parse(g.getClass().getField(knob).getType(),
+                                                         value));
+            } catch (NoSuchFieldException e) {
+                System.err.println("unknown option " + arg);
+                System.exit(-1);
+            } catch (ReflectiveOperationException | IllegalArgumentException e) {
+                System.err.println("bad value in " + arg);
+                System.exit(-1);
+            }
+        }
+
+        Writer w = new BufferedWriter(outFile == null ?
+                                      new OutputStreamWriter(System.out) :
+                                      new FileWriter(outFile), 1 << 16);
+        long n = g.generate(w);
+        w.close();
+        if (outFile != null) {
+            System.err.println(outFile + ": " + n + " lines");
+        }
+    }
+
+    private static Object parse(Class<?> type, String value) {
+        if (type == int.class) {
+            return Integer.parseInt(value);
+        } else if (type == long.class) {
+            return Long.parseLong(value);
+        } else {
+            return Boolean.parseBoolean(value);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package cmmbench;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import java_cup.runtime.Scanner;
+import java_cup.runtime.Symbol;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Throughput of the CUP parser (including AST construction) on its own:
+ * the program is scanned once up front and its tokens are replayed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBench {
+    @Param({"10", "100", "1000"})
+    public int functions;
+
+    private Symbol[] tokens;
+
+    @Setup
+    public void setup() throws Exception {
+        Compiler.bindNewContext(Writer.nullWriter());
+        Scanner s = Compiler.scanner(new StringReader(Generator.program(functions)));
+        List<Symbol> list = new ArrayList<Symbol>();
+        Symbol tok;
+        do {
+            tok = s.next_token();
+            list.add(tok);
+        } while (tok.sym != 0);
+        tokens = list.toArray(new Symbol[0]);
+    }
+
+    /**
+     * Replays the recorded tokens.  The parser marks the symbols it has
+     * consumed, so each one is handed out as a fresh copy.
+     */
+    private class Replay implements Scanner {
+        private int next = 0;
+
+        public Symbol next_token() {
+            Symbol t = tokens[next < tokens.length - 1 ? next++ : next];
+            return new Symbol(t.sym, t.left, t.right, t.value);
+        }
+    }
+
+    @Benchmark
+    public Object parse() throws Exception {
+        return Compiler.parser(new Replay()).parse().value;
+    }
+}
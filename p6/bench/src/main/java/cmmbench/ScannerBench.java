@@ -0,0 +1,39 @@
+package cmmbench;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import java_cup.runtime.Scanner;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of the JLex scanner: the next_token loop over a whole program.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScannerBench {
+    @Param({"10", "100", "1000"})
+    public int functions;
+
+    private String source;
+
+    @Setup
+    public void setup() {
+        source = Generator.program(functions);
+        Compiler.bindNewContext(Writer.nullWriter());
+    }
+
+    @Benchmark
+    public void scan(Blackhole bh) throws Exception {
+        Scanner s = Compiler.scanner(new StringReader(source));
+        java_cup.runtime.Symbol tok;
+        while ((tok = s.next_token()).sym != 0) {  // 0 is EOF
+            bh.consume(tok);
+        }
+    }
+}
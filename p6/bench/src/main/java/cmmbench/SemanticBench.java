@@ -0,0 +1,55 @@
+package cmmbench;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Name analysis and type checking of a whole program.  Both passes
+ * annotate the AST, so every invocation gets a freshly parsed one; the
+ * parse itself is not measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 200)
+@Measurement(iterations = 200)
+@Fork(1)
+public class SemanticBench {
+    @Param({"10", "100", "1000"})
+    public int functions;
+
+    private String source;
+    private Object program;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        source = Generator.program(functions);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation(BenchmarkParams params) {
+        Object ctx = Compiler.bindNewContext(Writer.nullWriter());
+        program = Compiler.parse(source);
+        if (params.getBenchmark().endsWith("typeCheck")) {
+            Compiler.nameAnalysis(program);
+            if (Compiler.hasErrors(ctx)) {
+                throw new IllegalStateException("benchmark input has name errors");
+            }
+        }
+    }
+
+    @Benchmark
+    public Object nameAnalysis() {
+        Compiler.nameAnalysis(program);
+        return program;
+    }
+
+    @Benchmark
+    public Object typeCheck() {
+        Compiler.typeCheck(program);
+        return program;
+    }
+}
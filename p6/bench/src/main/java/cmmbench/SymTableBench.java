@@ -0,0 +1,95 @@
+package cmmbench;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of the symbol-table operations name analysis relies on: declaring
+ * names in nested scopes, looking them up locally and through all
+ * enclosing scopes, and opening and closing scopes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SymTableBench {
+    /** number of nested scopes */
+    @Param({"4", "16"})
+    public int depth;
+
+    /** names declared per scope */
+    @Param({"8", "64"})
+    public int names;
+
+    private int[][] ids;
+    private Object sym;
+    private Object full;
+
+    @Setup
+    public void setup() {
+        Object ctx = Compiler.bindNewContext(Writer.nullWriter());
+        ids = new int[depth][names];
+        for (int d = 0; d < depth; d++) {
+            for (int n = 0; n < names; n++) {
+                ids[d][n] = Compiler.intern(ctx, "id_" + d + "_" + n);
+            }
+        }
+        sym = Compiler.newIntSym();
+        full = Compiler.newSymTable();
+        fill(full);
+    }
+
+    private void fill(Object symTab) {
+        for (int d = 0; d < depth; d++) {
+            if (d > 0) {
+                Compiler.addScope(symTab);
+            }
+            for (int n = 0; n < names; n++) {
+                Compiler.addDecl(symTab, ids[d][n], sym);
+            }
+        }
+    }
+
+    /**
+     * Build the nested scopes from scratch and tear them down again.
+     */
+    @Benchmark
+    public void declareAndPop() {
+        Object symTab = Compiler.newSymTable();
+        fill(symTab);
+        for (int d = 1; d < depth; d++) {
+            Compiler.removeScope(symTab);
+        }
+    }
+
+    /**
+     * Look up every name from the innermost scope; names of outer scopes
+     * have to be searched for through the scopes in between.
+     */
+    @Benchmark
+    public void lookupGlobal(Blackhole bh) {
+        for (int d = 0; d < depth; d++) {
+            for (int n = 0; n < names; n++) {
+                bh.consume(Compiler.lookupGlobal(full, ids[d][n]));
+            }
+        }
+    }
+
+    /**
+     * Look up every name in the innermost scope only (the duplicate
+     * declaration check); most of them miss.
+     */
+    @Benchmark
+    public void lookupLocal(Blackhole bh) {
+        for (int d = 0; d < depth; d++) {
+            for (int n = 0; n < names; n++) {
+                bh.consume(Compiler.lookupLocal(full, ids[d][n]));
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * AsmEmitter
+ *
+ * Renders a list of Instr as MIPS assembly text.  The whole list is
+ * formatted into one buffer and handed to the output in a single write,
+ * instead of one small print per token as the Codegen operations used to
+ * do.
+ */
+public class AsmEmitter {
+    // for pretty printing generated code: opcodes are padded to this width
+    private static final int MAXLEN = 4;
+
+    private AsmEmitter() {
+    }
+
+    /**
+     * Write code to out.
+     */
+    public static void emit(List<Instr> code, PrintWriter out) {
+        StringBuilder sb = new StringBuilder(code.size() * 24);
+        for (Instr in : code) {
+            render(in, sb);
+        }
+        out.append(sb);
+    }
+
+    /**
+     * Append the line for one Instr, including its newline, to sb.
+     */
+    static void render(Instr in, StringBuilder sb) {
+        String opcode = in.getOpcode();
+        String comment = in.getComment();
+        switch (in.getForm()) {
+        case Instr.OP:
+            sb.append('\t').append(opcode);
+            if (in.numArgs() > 0) {
+                pad(sb, opcode);
+                args(in, sb);
+            }
+            if (!comment.equals("")) {
+                sb.append("\t\t#").append(comment);
+            }
+            break;
+
+        case Instr.INDEXED:
+            sb.append('\t').append(opcode);
+            pad(sb, opcode);
+            sb.append(in.getArg(0)).append(", ").append(in.getOffset())
+              .append('(').append(in.getArg(1)).append(')');
+            if (!comment.equals("")) {
+                sb.append("\t#").append(comment);
+            }
+            break;
+
+        case Instr.LABELED:
+            sb.append(in.getLabel()).append(":\t").append(opcode);
+            if (in.numArgs() > 0) {
+                pad(sb, opcode);
+                args(in, sb);
+            }
+            if (!comment.equals("")) {
+                sb.append("\t# ").append(comment);
+            }
+            break;
+
+        case Instr.LABEL:
+            sb.append(in.getLabel()).append(':');
+            if (!comment.equals("")) {
+                sb.append("\t\t# ").append(comment);
+            }
+            break;
+
+        default:
+            sb.append(comment);
+            break;
+        }
+        sb.append('\n');
+    }
+
+    private static void pad(StringBuilder sb, String opcode) {
+        for (int k = opcode.length(); k < MAXLEN + 2; k++) {
+            sb.append(' ');
+        }
+    }
+
+    private static void args(Instr in, StringBuilder sb) {
+        for (int k = 0; k < in.numArgs(); k++) {
+            if (k > 0) {
+                sb.append(", ");
+            }
+            sb.append(in.getArg(k));
+        }
+    }
+}
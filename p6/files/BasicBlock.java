@@ -0,0 +1,74 @@
+import java.util.*;
+
+/**
+ * BasicBlock
+ *
+ * A straight-line run of IR instructions in a Cfg, and its edges.
+ */
+public class BasicBlock {
+    private int id;
+    private List<IrInstr> instrs = new ArrayList<IrInstr>();
+    private List<BasicBlock> succs = new ArrayList<BasicBlock>(2);
+    private List<BasicBlock> preds = new ArrayList<BasicBlock>(2);
+
+    BasicBlock(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Return the number of this block, its index in Cfg.getBlocks().
+     */
+    public int getId() {
+        return id;
+    }
+
+    public List<IrInstr> getInstrs() {
+        return instrs;
+    }
+
+    public List<BasicBlock> getSuccs() {
+        return succs;
+    }
+
+    public List<BasicBlock> getPreds() {
+        return preds;
+    }
+
+    public boolean isEmpty() {
+        return instrs.isEmpty();
+    }
+
+    /**
+     * Is the block empty, or nothing but labels?
+     */
+    public boolean onlyLabels() {
+        for (IrInstr in : instrs) {
+            if (!in.getOp().equals("label")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the last instruction, or null if the block is empty.
+     */
+    public IrInstr last() {
+        return instrs.isEmpty() ? null : instrs.get(instrs.size() - 1);
+    }
+
+    void add(IrInstr in) {
+        instrs.add(in);
+    }
+
+    void addSucc(BasicBlock b) {
+        if (!succs.contains(b)) {
+            succs.add(b);
+            b.preds.add(this);
+        }
+    }
+
+    public String toString() {
+        return "B" + id;
+    }
+}
@@ -0,0 +1,227 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Batch mode for the P6 driver.
+ *
+ * Compiles many C-- source files in one JVM on a work-stealing pool with
+ * one worker per core, so that JVM startup and the class initialisation of
+ * the parser and scanner are paid once for the whole batch instead of once
+ * per file.  Each input foo.cminusminus is compiled to foo.s (in the same
+ * directory, or in the directory given with -d).  An input whose output
+ * file another input already writes (two foo.cminusminus in different
+ * directories, with -d) is not compiled, and is reported as an error.
+ *
+ * Usage: java P6 -batch [-d outdir] <file|dir|@listfile> ...
+ *    file      a source file
+ *    dir       every *.cminusminus file below the directory
+ *    @listfile a text file naming one source file per line
+ *
+ * One report is printed at the end, with the result code and timing of
+ * every file followed by the totals and the throughput in files/sec.
+ */
+public class BatchCompiler {
+	private static final String SOURCE_SUFFIX = ".cminusminus";
+
+	private List<File> inputs = new ArrayList<File>();
+	private File outDir = null;
+	private PrintStream report = System.out;
+
+	/**
+	 * The outcome of compiling one file.
+	 */
+	static class Result {
+		File source;
+		int code;
+		long nanos;
+		List<String> diagnostics;
+
+		Result(File source, int code, long nanos, List<String> diagnostics) {
+			this.source = source;
+			this.code = code;
+			this.nanos = nanos;
+			this.diagnostics = diagnostics;
+		}
+	}
+
+	/**
+	 * @param args the command-line arguments following -batch
+	 */
+	public BatchCompiler(String[] args) throws IOException {
+		for (int k = 0; k < args.length; k++) {
+			if (args[k].equals("-d") && k + 1 < args.length) {
+				outDir = new File(args[++k]);
+			} else if (args[k].startsWith("@")) {
+				addListFile(new File(args[k].substring(1)));
+			} else {
+				addPath(new File(args[k]));
+			}
+		}
+	}
+
+	private void addListFile(File list) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(list));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0) {
+					addPath(new File(line));
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private void addPath(File f) {
+		if (f.isDirectory()) {
+			File[] kids = f.listFiles();
+			if (kids == null) {
+				return;
+			}
+			Arrays.sort(kids);
+			for (File kid : kids) {
+				if (kid.isDirectory() || kid.getName().endsWith(SOURCE_SUFFIX)) {
+					addPath(kid);
+				}
+			}
+		} else {
+			inputs.add(f);
+		}
+	}
+
+	public List<File> getInputs() {
+		return inputs;
+	}
+
+	/**
+	 * Return the assembly file that source compiles to.
+	 */
+	File outputFor(File source) {
+		String name = source.getName();
+		if (name.endsWith(SOURCE_SUFFIX)) {
+			name = name.substring(0, name.length() - SOURCE_SUFFIX.length());
+		}
+		File dir = outDir != null ? outDir : source.getAbsoluteFile().getParentFile();
+		return new File(dir, name + ".s");
+	}
+
+	/**
+	 * Compile a single file on the calling thread.
+	 */
+	Result compileOne(File source) {
+		long start = System.nanoTime();
+		P6 instance = new P6();
+		instance.getContext().setDiagnosticStream(null);
+		int code;
+		try {
+			instance.setInfile(source.getPath());
+			instance.setOutfile(outputFor(source).getPath());
+			code = instance.process();
+		} catch (Exception e) {
+			String msg = e.getMessage();
+			instance.getContext().getDiagnostics().add(msg != null ? msg : e.toString());
+			code = P6.RESULT_OTHER_ERROR;
+		} catch (StackOverflowError e) {
+			// the recursive passes over a very deeply nested program
+			instance.getContext().getDiagnostics().add("stack overflow: program nested too deeply");
+			code = P6.RESULT_OTHER_ERROR;
+		} finally {
+			instance.cleanup();
+		}
+		return new Result(source, code, System.nanoTime() - start,
+		                  instance.getContext().getDiagnostics());
+	}
+
+	/**
+	 * Compile every input on a work-stealing pool and return the results in
+	 * input order.
+	 */
+	public List<Result> compileAll() throws InterruptedException {
+		if (outDir != null) {
+			outDir.mkdirs();
+		}
+		ExecutorService pool = Executors.newWorkStealingPool(
+			Runtime.getRuntime().availableProcessors());
+		List<Future<Result>> pending = new ArrayList<Future<Result>>();
+		Map<File, File> writers = new HashMap<File, File>();
+		for (final File source : inputs) {
+			File output = outputFor(source).getAbsoluteFile().toPath().normalize().toFile();
+			File other = writers.get(output);
+			if (other != null) {
+				List<String> diags = new ArrayList<String>();
+				diags.add(output.getPath() + " is already the output of " + other.getPath());
+				pending.add(CompletableFuture.completedFuture(
+					new Result(source, P6.RESULT_OTHER_ERROR, 0, diags)));
+				continue;
+			}
+			writers.put(output, source);
+			pending.add(pool.submit(new Callable<Result>() {
+				public Result call() {
+					return compileOne(source);
+				}
+			}));
+		}
+
+		// a task that still fails is that file's error, not the batch's
+		List<Result> results = new ArrayList<Result>();
+		try {
+			for (int k = 0; k < pending.size(); k++) {
+				try {
+					results.add(pending.get(k).get());
+				} catch (ExecutionException e) {
+					List<String> diags = new ArrayList<String>();
+					diags.add(e.getCause().toString());
+					results.add(new Result(inputs.get(k), P6.RESULT_OTHER_ERROR, 0, diags));
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+		return results;
+	}
+
+	/**
+	 * Print the aggregated report for a finished batch.
+	 */
+	public void printReport(List<Result> results, long wallNanos) {
+		Map<Integer, Integer> counts = new TreeMap<Integer, Integer>();
+		for (Result r : results) {
+			report.printf("%-28s %9.3f ms  %s%n", P6.resultName(r.code),
+			              r.nanos / 1e6, r.source.getPath());
+			for (String msg : r.diagnostics) {
+				report.println("    " + msg);
+			}
+			Integer n = counts.get(r.code);
+			counts.put(r.code, n == null ? 1 : n + 1);
+		}
+
+		double secs = wallNanos / 1e9;
+		report.println();
+		report.printf("files: %d  wall: %.3f s  throughput: %.1f files/sec%n",
+		              results.size(), secs,
+		              secs > 0 ? results.size() / secs : 0.0);
+		for (Map.Entry<Integer, Integer> e : counts.entrySet()) {
+			report.printf("    %-28s %d%n", P6.resultName(e.getKey()), e.getValue());
+		}
+	}
+
+	/**
+	 * Run the whole batch; returns RESULT_CORRECT only if every file
+	 * compiled successfully.
+	 */
+	public int run() throws InterruptedException {
+		long start = System.nanoTime();
+		List<Result> results = compileAll();
+		printReport(results, System.nanoTime() - start);
+
+		for (Result r : results) {
+			if (r.code != P6.RESULT_CORRECT) {
+				return P6.RESULT_OTHER_ERROR;
+			}
+		}
+		return P6.RESULT_CORRECT;
+	}
+}
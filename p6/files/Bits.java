@@ -0,0 +1,83 @@
+import java.util.*;
+
+/**
+ * Bits
+ *
+ * Sets of small non-negative integers as long[] bit vectors, bit i of the
+ * set being bit i % 64 of word i / 64.
+ */
+public class Bits {
+    public static long[] newSet(int size) {
+        return new long[(size + 63) >>> 6];
+    }
+
+    public static boolean get(long[] s, int i) {
+        return (s[i >>> 6] & (1L << i)) != 0;
+    }
+
+    public static void set(long[] s, int i) {
+        s[i >>> 6] |= 1L << i;
+    }
+
+    public static void unset(long[] s, int i) {
+        s[i >>> 6] &= ~(1L << i);
+    }
+
+    public static void clear(long[] s) {
+        Arrays.fill(s, 0);
+    }
+
+    /**
+     * Put 0..size-1 in s.
+     */
+    public static void fill(long[] s, int size) {
+        Arrays.fill(s, -1L);
+        if ((size & 63) != 0) {
+            s[s.length - 1] = (1L << size) - 1;
+        }
+    }
+
+    public static long[] copy(long[] s) {
+        return s.clone();
+    }
+
+    /**
+     * s = s | t; return whether s changed.
+     */
+    public static boolean union(long[] s, long[] t) {
+        boolean changed = false;
+        for (int k = 0; k < s.length; k++) {
+            long w = s[k] | t[k];
+            changed |= w != s[k];
+            s[k] = w;
+        }
+        return changed;
+    }
+
+    /**
+     * s = s & t
+     */
+    public static void intersect(long[] s, long[] t) {
+        for (int k = 0; k < s.length; k++) {
+            s[k] &= t[k];
+        }
+    }
+
+    /**
+     * s = s & ~t
+     */
+    public static void andNot(long[] s, long[] t) {
+        for (int k = 0; k < s.length; k++) {
+            s[k] &= ~t[k];
+        }
+    }
+
+    public static boolean isEmpty(long[] s) {
+        for (long w : s) {
+            if (w != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,60 @@
+import java.util.*;
+
+/**
+ * CallGraph
+ *
+ * Which functions and globals each function of a program refers to, by
+ * symbol: an edge from a function to every function it calls (the
+ * CallExpNode sites in its body) and every global it uses.  Built by
+ * DeclListNode.eliminateDeadCode, and by the Inliner.
+ */
+public class CallGraph {
+    private Map<TSym, Set<TSym>> refs = new IdentityHashMap<TSym, Set<TSym>>();
+
+    /**
+     * Add function fn, which refers to the functions and globals in
+     * fnRefs.
+     */
+    public void addFunction(TSym fn, Set<TSym> fnRefs) {
+        refs.put(fn, fnRefs);
+    }
+
+    /**
+     * Return the functions and globals that root, or a function root
+     * calls, directly or not, refers to; root itself is included.
+     */
+    public Set<TSym> reachableFrom(TSym root) {
+        Set<TSym> seen = Collections.newSetFromMap(new IdentityHashMap<TSym, Boolean>());
+        Deque<TSym> work = new ArrayDeque<TSym>();
+        seen.add(root);
+        work.add(root);
+        while (!work.isEmpty()) {
+            Set<TSym> out = refs.get(work.poll());
+            if (out == null) {
+                continue;
+            }
+            for (TSym s : out) {
+                if (seen.add(s)) {
+                    work.add(s);
+                }
+            }
+        }
+        return seen;
+    }
+
+    /**
+     * Can fn end up calling itself?
+     */
+    public boolean isRecursive(TSym fn) {
+        Set<TSym> out = refs.get(fn);
+        if (out == null) {
+            return false;
+        }
+        for (TSym s : out) {
+            if (s instanceof FnSym && reachableFrom(s).contains(fn)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.*;
+
+/**
+ * Cfg
+ *
+ * The control-flow graph of one function's IR: its instructions cut into
+ * basic blocks, with an edge from each block to every block control may
+ * pass to next.  A block starts at a label or after a jump, branch or
+ * return, and ends at one of those or before a label.  Every return leads
+ * to a single exit block, which holds no instructions.  The entry is an
+ * empty block ahead of the rest, so that no edge leads into it even when
+ * the body starts with a loop.
+ *
+ * Blocks are numbered in the order of the instruction list, the exit last;
+ * the blocks share the IrInstr objects of the function, so a pass may
+ * look instructions up in the graph and change them in the function.
+ */
+public class Cfg {
+    private List<BasicBlock> blocks = new ArrayList<BasicBlock>();
+    private BasicBlock exit;
+
+    public Cfg(IrFunction fn) {
+        Map<String, BasicBlock> labels = new HashMap<String, BasicBlock>();
+        newBlock();
+        BasicBlock current = null;
+        for (IrInstr in : fn.getCode()) {
+            if (current == null || in.getOp().equals("label")) {
+                if (current == null || !current.onlyLabels()) {
+                    current = newBlock();
+                }
+                if (in.getOp().equals("label")) {
+                    labels.put(in.getLabel(), current);
+                }
+            }
+            current.add(in);
+            if (in.isJump() || in.isBranch()) {
+                current = null;
+            }
+        }
+        exit = newBlock();
+
+        for (int k = 0; k < blocks.size() - 1; k++) {
+            BasicBlock b = blocks.get(k);
+            IrInstr last = b.last();
+            if (last != null && last.getOp().equals("return")) {
+                b.addSucc(exit);
+                continue;
+            }
+            if (last != null && (last.isBranch() || last.getOp().equals("goto"))) {
+                b.addSucc(labels.get(last.getLabel()));
+            }
+            if (last == null || !last.isJump()) {
+                // falls through to the next block, or off the end of the
+                // function, which returns
+                b.addSucc(blocks.get(k + 1));
+            }
+        }
+    }
+
+    private BasicBlock newBlock() {
+        BasicBlock b = new BasicBlock(blocks.size());
+        blocks.add(b);
+        return b;
+    }
+
+    public List<BasicBlock> getBlocks() {
+        return blocks;
+    }
+
+    public BasicBlock getEntry() {
+        return blocks.get(0);
+    }
+
+    public BasicBlock getExit() {
+        return exit;
+    }
+
+    /**
+     * Return the blocks reachable from the entry in reverse postorder
+     * (each block before its successors, loops aside).
+     */
+    public List<BasicBlock> reversePostorder() {
+        List<BasicBlock> order = new ArrayList<BasicBlock>();
+        boolean[] seen = new boolean[blocks.size()];
+        postorder(getEntry(), seen, order);
+        Collections.reverse(order);
+        return order;
+    }
+
+    private void postorder(BasicBlock b, boolean[] seen, List<BasicBlock> order) {
+        seen[b.getId()] = true;
+        for (BasicBlock s : b.getSuccs()) {
+            if (!seen[s.getId()]) {
+                postorder(s, seen, order);
+            }
+        }
+        order.add(b);
+    }
+}
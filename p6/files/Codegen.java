@@ -1,35 +1,42 @@
-import java.io.*;
-
 // **********************************************************************
 // The Codegen class provides constants and operations useful for code
 // generation.
 //
 // The constants are:
-//     Registers: FP, SP, RA, V0, V1, A0, T0, T1
+//     Registers: ZERO, FP, SP, RA, V0, V1, A0, T0, T1, and the pool of
+//                expression temporaries TEMPS
 //     Values: TRUE, FALSE
 //
-// The operations include various "generate" methods to print nicely
-// formatted assembly code:
+// The operations include various "generate" methods that add assembly
+// code to the current compilation:
 //     generateWithComment
 //     generate
 //     generateIndexed
 //     generateLabeled
+//     generateRaw
 //     genPush
 //     genPop
 //     genLabel
-// and a method nextLabel to create and return a new label.
+// a method nextLabel to create and return a new label, methods to take,
+// free, save and restore temporaries, and a method flush to write the
+// code added so far to the output file.
+//
+// The code is kept as a list of Instr objects, which passes may inspect
+// and rewrite before flush hands it to AsmEmitter to be rendered as text.
+// The list, the output and the label state live in the CompilationContext
+// bound to the current thread, so independent compilations may run
+// concurrently.
 //
 // **********************************************************************
 
 public class Codegen {
-    // file into which generated code is written
-    public static PrintWriter p = null;
 
     // values of true and false
     public static final String TRUE = "1";
     public static final String FALSE = "0";
 
     // registers
+    public static final String ZERO = "$zero";
     public static final String FP = "$fp";
     public static final String SP = "$sp";
     public static final String RA = "$ra";
@@ -39,13 +46,12 @@ public class Codegen {
     public static final String T0 = "$t0";
     public static final String T1 = "$t1";
 
-
-    // for pretty printing generated code
-    private static final int MAXLEN = 4;
-
-
-    // for generating labels
-    private static int currLabel = 0;
+    // temporaries for expression values kept in registers (see
+    // ExpNode.genReg); $t0 and $t1 stay the scratch registers of the
+    // stack-based code
+    public static final String[] TEMPS = {
+        "$t2", "$t3", "$t4", "$t5", "$t6", "$t7"
+    };
 
 
     // **********************************************************************
@@ -57,26 +63,12 @@ public class Codegen {
     // **********************************************************************
     // generateWithComment
     //    given:  op code, comment, and 0 to 3 string args
-    //    do:     write nicely formatted code (ending with new line)
+    //    do:     add the instruction (args after the first empty one are
+    //            ignored)
     // **********************************************************************
     public static void generateWithComment(String opcode, String comment,
                                         String arg1, String arg2, String arg3) {
-        int space = MAXLEN - opcode.length() + 2;
-
-        p.print("\t" + opcode);
-        if (arg1 != "") {
-            for (int k = 1; k <= space; k++)
-                p.print(" ");
-            p.print(arg1);
-            if (arg2 != "") {
-                p.print(", " + arg2);
-                if (arg3 != "")
-                    p.print(", " + arg3);
-            }
-        }
-        if (comment != "")
-            p.print("\t\t#" + comment);
-        p.println();
+        add(Instr.op(opcode, comment, args(arg1, arg2, arg3)));
     }
 
     public static void generateWithComment(String opcode, String comment,
@@ -96,24 +88,12 @@ public class Codegen {
     // **********************************************************************
     // generate
     //    given:  op code, and 0 to 3 string args
-    //    do:     write nicely formatted code (ending with new line)
+    //    do:     add the instruction (args after the first empty one are
+    //            ignored)
     // **********************************************************************
     public static void generate(String opcode, String arg1, String arg2,
                                 String arg3) {
-        int space = MAXLEN - opcode.length() + 2;
-
-        p.print("\t" + opcode);
-        if (arg1 != "") {
-            for (int k = 1; k <= space; k++)
-                p.print(" ");
-            p.print(arg1);
-            if (arg2 != "") {
-                p.print(", " + arg2);
-                if (arg3 != "")
-                    p.print(", " + arg3);
-            }
-        }
-        p.println();
+        add(Instr.op(opcode, "", args(arg1, arg2, arg3)));
     }
 
     public static void generate(String opcode, String arg1, String arg2) {
@@ -131,50 +111,32 @@ public class Codegen {
     // **********************************************************************
     // generate (two string args, one int)
     //    given:  op code and args
-    //    do:     write nicely formatted code (ending with new line)
+    //    do:     add the instruction
     // **********************************************************************
     public static void generate(String opcode, String arg1, String arg2,
                                 int arg3) {
-        int space = MAXLEN - opcode.length() + 2;
-
-        p.print("\t" + opcode);
-        for (int k = 1; k <= space; k++)
-            p.print(" ");
-        p.println(arg1 + ", " + arg2 + ", " + arg3);
+        add(Instr.op(opcode, "", arg1, arg2, Integer.toString(arg3)));
     }
 
     // **********************************************************************
     // generate (one string arg, one int)
     //    given:  op code and args
-    //    do:     write nicely formatted code (ending with new line)
+    //    do:     add the instruction
     // **********************************************************************
     public static void generate(String opcode, String arg1, int arg2) {
-        int space = MAXLEN - opcode.length() + 2;
-
-        p.print("\t" + opcode);
-        for (int k = 1; k <= space; k++)
-            p.print(" ");
-        p.println(arg1 + ", " + arg2);
+        add(Instr.op(opcode, "", arg1, Integer.toString(arg2)));
     }
 
     // **********************************************************************
     // generateIndexed
     //    given:  op code, target register T1 (as string), indexed register T2
     //            (as string), - offset xx (int), and optional comment
-    //    do:     write nicely formatted code (ending with new line):
+    //    do:     add the instruction
     //                 op T1, xx(T2) #comment
     // **********************************************************************
     public static void generateIndexed(String opcode, String arg1, String arg2,
                                        int arg3, String comment) {
-        int space = MAXLEN - opcode.length() + 2;
-
-        p.print("\t" + opcode);
-        for (int k = 1; k <= space; k++)
-            p.print(" ");
-        p.print(arg1 + ", " + arg3 + "(" + arg2 + ")");
-        if (comment != "")
-            p.print("\t#" + comment);
-        p.println();
+        add(Instr.indexed(opcode, arg1, arg2, arg3, comment));
     }
 
     public static void generateIndexed(String opcode, String arg1, String arg2,
@@ -185,22 +147,12 @@ public class Codegen {
     // **********************************************************************
     // generateLabeled (string args -- perhaps empty)
     //    given:  label, op code, comment, and arg
-    //    do:     write nicely formatted code (ending with new line)
+    //    do:     add the labeled instruction (just the label if the op code
+    //            is empty)
     // **********************************************************************
     public static void generateLabeled(String label, String opcode,
                                        String comment, String arg1) {
-        int space = MAXLEN - opcode.length() + 2;
-
-        p.print(label + ":");
-        p.print("\t" + opcode);
-        if (arg1 != "") {
-            for (int k = 1; k <= space; k++)
-                p.print(" ");
-            p.print(arg1);
-        }
-        if (comment != "")
-            p.print("\t# " + comment);
-        p.println();
+        add(Instr.labeled(label, opcode, arg1, comment));
     }
 
     public static void generateLabeled(String label, String opcode,
@@ -208,6 +160,15 @@ public class Codegen {
         generateLabeled(label, opcode, comment, "");
     }
 
+    // **********************************************************************
+    // generateRaw
+    //    given:  a line of text (a directive, or "" for a blank line)
+    //    do:     add it to the output as it is
+    // **********************************************************************
+    public static void generateRaw(String text) {
+        add(Instr.raw(text));
+    }
+
     // **********************************************************************
     // genPush
     //    generate code to push the given value onto the stack
@@ -232,10 +193,7 @@ public class Codegen {
     //   generate: L:    # comment
     // **********************************************************************
     public static void genLabel(String label, String comment) {
-        p.print(label + ":");
-        if (comment != "")
-            p.print("\t\t" + "# " + comment);
-        p.println();
+        add(Instr.label(label, comment));
     }
 
     public static void genLabel(String label) {
@@ -247,8 +205,173 @@ public class Codegen {
     //        L0 L1 L2, etc.
     // **********************************************************************
     public static String nextLabel() {
-        Integer k = new Integer(currLabel++);
-        String tmp = ".L" + k;
-        return(tmp);
+        return CompilationContext.current().nextLabel();
+    }
+
+    // **********************************************************************
+    // genString
+    //    given:  a string literal (quotes included), and whether its
+    //            address is only ever written out (never compared)
+    //    do:     add it to the data segment under a new label and return
+    //            the label; with dead code elimination on, a shared
+    //            literal that is there already is not added again
+    // **********************************************************************
+    public static String genString(String literal, boolean shared) {
+        CompilationContext ctx = CompilationContext.current();
+        boolean share = shared && ctx.isOptimizing("dce");
+        String label = share ? ctx.getStringLabel(literal) : null;
+        if (label != null) {
+            ctx.count("dce.strings", 1);
+            ctx.count("dce.bytes", stringSize(literal));
+            return label;
+        }
+        generate(".data");
+        label = nextLabel();
+        generateLabeled(label, ".asciiz ", "", literal);
+        generate(".text");
+        if (share) {
+            ctx.setStringLabel(literal, label);
+        }
+        return label;
+    }
+
+    // the number of bytes .asciiz makes of literal: its characters between
+    // the quotes, an escape counting as one, and the terminating zero
+    private static int stringSize(String literal) {
+        int n = 1;
+        for (int k = 1; k < literal.length() - 1; k++) {
+            if (literal.charAt(k) == '\\') {
+                k++;
+            }
+            n++;
+        }
+        return n;
+    }
+
+    // **********************************************************************
+    // takeTemp
+    //    return a free temporary and mark it in use; the pool is used
+    //    round-robin, so consecutive values go to different registers
+    // **********************************************************************
+    public static String takeTemp() {
+        CompilationContext ctx = CompilationContext.current();
+        for (int n = 0; n < TEMPS.length; n++) {
+            int k = (ctx.nextTemp + n) % TEMPS.length;
+            if ((ctx.tempsInUse & (1 << k)) == 0) {
+                ctx.tempsInUse |= 1 << k;
+                ctx.nextTemp = (k + 1) % TEMPS.length;
+                return TEMPS[k];
+            }
+        }
+        throw new IllegalStateException("out of temporary registers");
+    }
+
+    // **********************************************************************
+    // freeTemp
+    //    given:  a register
+    //    do:     return it to the pool if it is a temporary
+    // **********************************************************************
+    public static void freeTemp(String reg) {
+        int k = tempIndex(reg);
+        if (k >= 0) {
+            CompilationContext.current().tempsInUse &= ~(1 << k);
+        }
+    }
+
+    public static boolean isTemp(String reg) {
+        return tempIndex(reg) >= 0;
+    }
+
+    // **********************************************************************
+    // freeTemps
+    //    return the number of temporaries not in use
+    // **********************************************************************
+    public static int freeTemps() {
+        return TEMPS.length - Integer.bitCount(CompilationContext.current().tempsInUse);
+    }
+
+    // **********************************************************************
+    // saveTemps
+    //    push the temporaries in use (a call is about to clobber them) and
+    //    mark them free; return the set to hand to restoreTemps
+    // **********************************************************************
+    public static int saveTemps() {
+        CompilationContext ctx = CompilationContext.current();
+        int saved = ctx.tempsInUse;
+        for (int k = 0; k < TEMPS.length; k++) {
+            if ((saved & (1 << k)) != 0) {
+                genPush(TEMPS[k]);
+                ctx.count("tempregs.saved", 1);
+            }
+        }
+        ctx.tempsInUse = 0;
+        return saved;
+    }
+
+    // **********************************************************************
+    // restoreTemps
+    //    pop the temporaries pushed by saveTemps, and mark them in use again
+    // **********************************************************************
+    public static void restoreTemps(int saved) {
+        for (int k = TEMPS.length - 1; k >= 0; k--) {
+            if ((saved & (1 << k)) != 0) {
+                genPop(TEMPS[k]);
+            }
+        }
+        CompilationContext.current().tempsInUse |= saved;
+    }
+
+    private static int tempIndex(String reg) {
+        for (int k = 0; k < TEMPS.length; k++) {
+            if (TEMPS[k].equals(reg)) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    // **********************************************************************
+    // flush
+    //    write the code generated so far to the output file in one go
+    //    (after running the peephole optimizer over it, if asked to), and
+    //    start a new list
+    // **********************************************************************
+    public static void flush() {
+        CompilationContext ctx = CompilationContext.current();
+        if (ctx.isOptimizing("peephole")) {
+            Peephole.standard().run(ctx.getCode());
+        }
+        AsmEmitter.emit(ctx.getCode(), ctx.getOutput());
+        ctx.getCode().clear();
+    }
+
+    // **********************************************************************
+    // add
+    //    append an instruction to the code of the current compilation,
+    //    counting it if it is a real instruction, not a directive, label
+    //    or comment (and statistics are being gathered)
+    // **********************************************************************
+    private static void add(Instr in) {
+        CompilationContext ctx = CompilationContext.current();
+        String opcode = in.getOpcode();
+        if (!opcode.equals("") && !opcode.startsWith(".")) {
+            ctx.count(CompileStats.INSTRUCTIONS, 1);
+        }
+        ctx.getCode().add(in);
+    }
+
+    // **********************************************************************
+    // args
+    //    the non-empty leading args among arg1, arg2, arg3
+    // **********************************************************************
+    private static String[] args(String arg1, String arg2, String arg3) {
+        if (arg1.equals("")) {
+            return new String[0];
+        } else if (arg2.equals("")) {
+            return new String[] { arg1 };
+        } else if (arg3.equals("")) {
+            return new String[] { arg1, arg2 };
+        }
+        return new String[] { arg1, arg2, arg3 };
     }
 }
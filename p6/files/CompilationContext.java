@@ -0,0 +1,267 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * CompilationContext
+ *
+ * Owns all of the mutable state that belongs to one compilation: the
+ * diagnostics reported so far, the sink that receives the generated MIPS
+ * code, the label counter used by Codegen, the table of interned
+ * identifiers, the optimizations asked for and the scanner's character
+ * position.
+ *
+ * The static helpers that the rest of the compiler calls (ErrMsg, Codegen,
+ * and the generated Yylex) work against the context that is bound to the
+ * calling thread, so several compilations may run at once as long as each
+ * one runs on its own thread with its own context bound.  A thread that
+ * never binds a context gets a private default one.
+ */
+public class CompilationContext {
+    /**
+     * The names of the optimizations that can be turned on and off, in the
+     * order in which they run.
+     */
+    public static final List<String> OPTIMIZATIONS =
+        Collections.unmodifiableList(Arrays.asList(
+            "constfold", "dce", "jumpcode", "rotate", "regalloc", "tempregs", "ir", "inline",
+            "sccp", "licm", "dse", "strength", "tailcall", "leaf", "peephole"));
+
+    private static final ThreadLocal<CompilationContext> current =
+        new ThreadLocal<CompilationContext>() {
+            protected CompilationContext initialValue() {
+                return new CompilationContext();
+            }
+        };
+
+    // diagnostics
+    private boolean err = false;
+    private List<String> diagnostics = new ArrayList<String>();
+    private PrintStream diagStream = System.err;
+
+    // file into which generated code is written, and the code generated
+    // but not yet written
+    private PrintWriter out = null;
+    private List<Instr> code = new ArrayList<Instr>();
+
+    // for generating labels
+    private int currLabel = 0;
+
+    // label of each string literal in the data segment, when literals are
+    // shared (see Codegen.genString)
+    private Map<String, String> strings = new HashMap<String, String>();
+
+    // expression temporaries (see Codegen.takeTemp): bit k is set while
+    // Codegen.TEMPS[k] holds a value, and the next search starts at
+    // nextTemp
+    int tempsInUse = 0;
+    int nextTemp = 0;
+
+    // identifiers seen by the scanner
+    private NameTable names = new NameTable();
+
+    // optimizations turned on
+    private Set<String> optimizations = new HashSet<String>();
+
+    // register allocator of the function being analyzed, if allocating
+    private RegAlloc regAlloc = null;
+
+    // function whose code is being generated
+    private FnDeclNode function = null;
+
+    // where to write the IR of each function; null for nowhere
+    private PrintWriter irDump = null;
+
+    // character number at which the current token starts on its line;
+    // maintained by the scanner
+    int charNum = 1;
+
+    // per-phase timing and counters; null unless statistics were asked for
+    private CompileStats stats = null;
+
+    /**
+     * Return the context bound to the calling thread.
+     */
+    public static CompilationContext current() {
+        return current.get();
+    }
+
+    /**
+     * Bind ctx to the calling thread and return the context that was bound
+     * before, so that the caller can restore it when it is done.
+     */
+    public static CompilationContext bind(CompilationContext ctx) {
+        CompilationContext prev = current.get();
+        current.set(ctx);
+        return prev;
+    }
+
+    // **********************************************************************
+    // diagnostics
+    // **********************************************************************
+
+    /**
+     * Record a diagnostic message.  Errors (as opposed to warnings) set the
+     * error flag for this compilation.  Messages are echoed to the
+     * diagnostic stream, if there is one.
+     */
+    void report(String msg, boolean isError) {
+        if (isError) {
+            err = true;
+        }
+        diagnostics.add(msg);
+        if (diagStream != null) {
+            diagStream.println(msg);
+        }
+    }
+
+    /**
+     * Set the stream diagnostics are echoed to; null only collects them.
+     */
+    public void setDiagnosticStream(PrintStream s) {
+        diagStream = s;
+    }
+
+    public boolean hasErrors() {
+        return err;
+    }
+
+    public List<String> getDiagnostics() {
+        return diagnostics;
+    }
+
+    // **********************************************************************
+    // code generation
+    // **********************************************************************
+
+    public void setOutput(PrintWriter p) {
+        out = p;
+    }
+
+    public PrintWriter getOutput() {
+        return out;
+    }
+
+    /**
+     * Return the instructions generated since the last Codegen.flush.
+     */
+    public List<Instr> getCode() {
+        return code;
+    }
+
+    /**
+     * Return a different label each time: .L0 .L1 .L2, etc.
+     */
+    String nextLabel() {
+        count(CompileStats.LABELS, 1);
+        return ".L" + currLabel++;
+    }
+
+    /**
+     * Return the label of a string literal already in the data segment,
+     * or null.
+     */
+    String getStringLabel(String literal) {
+        return strings.get(literal);
+    }
+
+    void setStringLabel(String literal, String label) {
+        strings.put(literal, label);
+    }
+
+    // **********************************************************************
+    // optimization
+    // **********************************************************************
+
+    /**
+     * Turn the named optimization on or off.
+     * @throws IllegalArgumentException if there is no such optimization
+     */
+    public void setOptimization(String name, boolean on) {
+        if (!OPTIMIZATIONS.contains(name)) {
+            throw new IllegalArgumentException("unknown optimization " + name);
+        }
+        if (on) {
+            optimizations.add(name);
+        } else {
+            optimizations.remove(name);
+        }
+    }
+
+    public boolean isOptimizing(String name) {
+        return optimizations.contains(name);
+    }
+
+    /**
+     * Return the register allocator that name analysis should report the
+     * variables of the current function to, or null.
+     */
+    public RegAlloc getRegAlloc() {
+        return regAlloc;
+    }
+
+    public void setRegAlloc(RegAlloc ra) {
+        regAlloc = ra;
+    }
+
+    /**
+     * Return the function whose code is being generated, or null.
+     */
+    public FnDeclNode getFunction() {
+        return function;
+    }
+
+    public void setFunction(FnDeclNode fn) {
+        function = fn;
+    }
+
+    /**
+     * Return the writer that the IR of each function lowered is dumped
+     * to, or null.
+     */
+    public PrintWriter getIrDump() {
+        return irDump;
+    }
+
+    public void setIrDump(PrintWriter dump) {
+        irDump = dump;
+    }
+
+    // **********************************************************************
+    // names
+    // **********************************************************************
+
+    /**
+     * Return the table in which this compilation's identifiers are
+     * interned.
+     */
+    public NameTable getNames() {
+        return names;
+    }
+
+    // **********************************************************************
+    // statistics
+    // **********************************************************************
+
+    public void enableStats() {
+        if (stats == null) {
+            stats = new CompileStats();
+        }
+    }
+
+    /**
+     * Return the statistics of this compilation, or null if they are not
+     * being gathered.
+     */
+    public CompileStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Add n to the named statistics counter, if statistics are enabled.
+     */
+    void count(String counter, long n) {
+        if (stats != null) {
+            stats.count(counter, n);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Resident compile server for the P6 driver.
+ *
+ * Keeps one JVM (and so the JIT-compiled parser, scanner and AST code)
+ * alive across compilations.  The server listens on a loopback TCP port or
+ * on a Unix-domain socket and handles each connection on a pool thread;
+ * every compilation gets its own P6 instance and CompilationContext.
+ *
+ * Usage: java P6 -server <port | unix:/path/to/socket>
+ *
+ * Protocol (one or more requests per connection, all text is UTF-8):
+ *
+ *   request:   COMPILE <nbytes> [option ...]\n
+ *              <nbytes bytes of C-- source>
+ *
+ *   response:  RESULT <result name> <result code> <ndiag> <nbytes>\n
+ *              <ndiag lines of diagnostics, each ending in \n>
+ *              <nbytes bytes of MIPS assembly; empty unless RESULT_CORRECT>
+ *
+ *   QUIT\n closes the connection.  A malformed request, one whose header
+ *   line is over MAX_HEADER bytes or one whose source is over MAX_SOURCE
+ *   bytes, gets "ERROR <message>\n" and the connection is closed.
+ *
+ * The options are the same as the command-line options of P6.  The
+ * diagnostics include the IR dumped with -dump-ir and the -stats report.
+ */
+public class CompileServer {
+	private static final String UNIX_PREFIX = "unix:";
+
+	// the largest header line and source text accepted, in bytes
+	public static final int MAX_HEADER = 4096;
+	public static final int MAX_SOURCE = 64 << 20;
+
+	/**
+	 * Thrown by readLine for a line over MAX_HEADER bytes.
+	 */
+	private static class LineTooLongException extends IOException {
+	}
+
+	private String address;
+	private ExecutorService pool = Executors.newCachedThreadPool();
+
+	public CompileServer(String address) {
+		this.address = address;
+	}
+
+	/**
+	 * Accept connections until the process is killed.
+	 */
+	public void serve() throws IOException {
+		ServerSocketChannel server;
+		if (address.startsWith(UNIX_PREFIX)) {
+			File path = new File(address.substring(UNIX_PREFIX.length()));
+			path.delete();  // stale socket from an earlier run
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			server.bind(UnixDomainSocketAddress.of(path.getPath()));
+			path.deleteOnExit();
+		} else {
+			server = ServerSocketChannel.open();
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+			                                  Integer.parseInt(address)));
+		}
+		System.err.println("P6 compile server listening on " + address);
+
+		while (true) {
+			final SocketChannel conn = server.accept();
+			if (!address.startsWith(UNIX_PREFIX)) {
+				// responses are written in one flush; don't let Nagle hold
+				// back the tail of it
+				conn.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			}
+			pool.execute(new Runnable() {
+				public void run() {
+					handle(conn);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Serve the requests of one connection.
+	 */
+	void handle(SocketChannel conn) {
+		try {
+			InputStream in = new BufferedInputStream(Channels.newInputStream(conn));
+			OutputStream out = new BufferedOutputStream(Channels.newOutputStream(conn));
+			while (true) {
+				String header;
+				try {
+					header = readLine(in);
+				} catch (LineTooLongException e) {
+					writeError(out, "header longer than " + MAX_HEADER + " bytes");
+					break;
+				}
+				if (header == null) {
+					break;
+				}
+				String[] words = header.trim().split("\\s+");
+				if (words[0].equals("QUIT")) {
+					break;
+				}
+				if (!words[0].equals("COMPILE") || words.length < 2) {
+					writeError(out, "expected COMPILE <nbytes> [option ...]");
+					break;
+				}
+
+				int length;
+				try {
+					length = Integer.parseInt(words[1]);
+				} catch (NumberFormatException e) {
+					writeError(out, "bad length " + words[1]);
+					break;
+				}
+				if (length < 0 || length > MAX_SOURCE) {
+					writeError(out, "bad length " + length + " (at most " + MAX_SOURCE + ")");
+					break;
+				}
+				byte[] source = readFully(in, length);
+				if (source == null) {
+					break;
+				}
+				respond(out, Arrays.copyOfRange(words, 2, words.length),
+				        new String(source, StandardCharsets.UTF_8));
+			}
+		} catch (IOException e) {
+			// the client went away; nothing left to report to
+		} finally {
+			try {
+				conn.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Compile one source text and write the response.
+	 */
+	private void respond(OutputStream out, String[] options, String source)
+			throws IOException {
+		StringWriter asm = new StringWriter();
+		StringWriter dump = new StringWriter();
+		P6 instance = new P6();
+		instance.getContext().setDiagnosticStream(null);
+		int code;
+		try {
+			for (String opt : options) {
+				instance.setOption(opt);
+			}
+			if (instance.getContext().getIrDump() != null) {
+				// -dump-ir goes back to the client, not to the server's stderr
+				instance.getContext().setIrDump(new PrintWriter(dump, true));
+			}
+			instance.setInput(new StringReader(source));
+			instance.setOutput(new PrintWriter(asm));
+			code = instance.process();
+		} catch (Exception e) {
+			String msg = e.getMessage();
+			instance.getContext().getDiagnostics().add(msg != null ? msg : e.toString());
+			code = P6.RESULT_OTHER_ERROR;
+		} catch (StackOverflowError e) {
+			// the recursive passes over a very deeply nested program
+			instance.getContext().getDiagnostics().add("stack overflow: program nested too deeply");
+			code = P6.RESULT_OTHER_ERROR;
+		} finally {
+			instance.cleanup();
+		}
+
+		List<String> diags = instance.getContext().getDiagnostics();
+		if (dump.getBuffer().length() > 0) {
+			diags.addAll(Arrays.asList(dump.toString().split("\n")));
+		}
+		String stats = instance.getStatsReport();
+		if (stats != null) {
+			diags.addAll(Arrays.asList(stats.split("\n")));
+		}
+		byte[] body = code == P6.RESULT_CORRECT ?
+			asm.toString().getBytes(StandardCharsets.UTF_8) : new byte[0];
+
+		StringBuilder head = new StringBuilder();
+		head.append("RESULT ").append(P6.resultName(code)).append(' ')
+			.append(code).append(' ').append(diags.size()).append(' ')
+			.append(body.length).append('\n');
+		for (String d : diags) {
+			head.append(d.replace('\n', ' ')).append('\n');
+		}
+		out.write(head.toString().getBytes(StandardCharsets.UTF_8));
+		out.write(body);
+		out.flush();
+	}
+
+	private void writeError(OutputStream out, String msg) throws IOException {
+		out.write(("ERROR " + msg + "\n").getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+	/**
+	 * Read one \n-terminated line of at most MAX_HEADER bytes; null at end
+	 * of stream.
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		int c;
+		while ((c = in.read()) != -1 && c != '\n') {
+			if (buf.size() == MAX_HEADER) {
+				throw new LineTooLongException();
+			}
+			buf.write(c);
+		}
+		if (c == -1 && buf.size() == 0) {
+			return null;
+		}
+		return buf.toString("UTF-8");
+	}
+
+	/**
+	 * Read exactly n bytes; null if the stream ends first.
+	 */
+	private static byte[] readFully(InputStream in, int n) throws IOException {
+		byte[] buf = new byte[n];
+		int got = 0;
+		while (got < n) {
+			int k = in.read(buf, got, n - got);
+			if (k == -1) {
+				return null;
+			}
+			got += k;
+		}
+		return buf;
+	}
+}
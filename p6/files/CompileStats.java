@@ -0,0 +1,171 @@
+import java.lang.management.*;
+import java.util.*;
+
+/**
+ * CompileStats
+ *
+ * Opt-in instrumentation for one compilation: the wall-clock and CPU time
+ * of each phase, and counters for the amount of work done (tokens scanned,
+ * AST nodes built, symbols declared, instructions emitted, labels
+ * allocated, ...).  A CompilationContext only carries a CompileStats when
+ * statistics were asked for, so the counting sites cost a null check
+ * otherwise.
+ *
+ * The report can be rendered as human-readable text or as a single line of
+ * JSON.
+ */
+public class CompileStats {
+    // names of the standard counters
+    public static final String TOKENS = "tokens";
+    public static final String AST_NODES = "astNodes";
+    public static final String SYMBOLS = "symbols";
+    public static final String INSTRUCTIONS = "instructions";
+    public static final String LABELS = "labels";
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Timing of a single phase; items is the value of the phase's counter
+     * (if any) gathered while the phase ran.
+     */
+    static class Phase {
+        String name;
+        String counter;
+        long wallNanos;
+        long cpuNanos;
+        long items;
+
+        Phase(String name, String counter) {
+            this.name = name;
+            this.counter = counter;
+        }
+    }
+
+    private List<Phase> phases = new ArrayList<Phase>();
+    private Map<String, long[]> counters = new LinkedHashMap<String, long[]>();
+
+    // the phase currently running, and its start times
+    private Phase running = null;
+    private long wallStart;
+    private long cpuStart;
+    private long itemsStart;
+
+    public CompileStats() {
+        counters.put(TOKENS, new long[1]);
+        counters.put(AST_NODES, new long[1]);
+        counters.put(SYMBOLS, new long[1]);
+        counters.put(INSTRUCTIONS, new long[1]);
+        counters.put(LABELS, new long[1]);
+    }
+
+    /**
+     * Add n to the named counter.
+     */
+    public void count(String counter, long n) {
+        long[] c = counters.get(counter);
+        if (c == null) {
+            c = new long[1];
+            counters.put(counter, c);
+        }
+        c[0] += n;
+    }
+
+    public long get(String counter) {
+        long[] c = counters.get(counter);
+        return c == null ? 0 : c[0];
+    }
+
+    /**
+     * Start timing a phase.  counter names the counter whose growth during
+     * the phase is reported as the phase's throughput (may be null).
+     */
+    public void startPhase(String name, String counter) {
+        endPhase();
+        running = new Phase(name, counter);
+        itemsStart = counter == null ? 0 : get(counter);
+        cpuStart = cpuTime();
+        wallStart = System.nanoTime();
+    }
+
+    /**
+     * Stop timing the running phase, if there is one.
+     */
+    public void endPhase() {
+        if (running == null) {
+            return;
+        }
+        running.wallNanos = System.nanoTime() - wallStart;
+        running.cpuNanos = cpuTime() - cpuStart;
+        if (running.counter != null) {
+            running.items = get(running.counter) - itemsStart;
+        }
+        phases.add(running);
+        running = null;
+    }
+
+    private static long cpuTime() {
+        return threads.isCurrentThreadCpuTimeSupported() ?
+            threads.getCurrentThreadCpuTime() : 0;
+    }
+
+    // **********************************************************************
+    // reports
+    // **********************************************************************
+
+    public String toText() {
+        StringBuilder sb = new StringBuilder();
+        long wall = 0;
+        long cpu = 0;
+        sb.append(String.format("%-16s %10s %10s %12s%n",
+                                "phase", "wall ms", "cpu ms", "items/s"));
+        for (Phase p : phases) {
+            sb.append(String.format("%-16s %10.3f %10.3f %12s%n", p.name,
+                                    p.wallNanos / 1e6, p.cpuNanos / 1e6,
+                                    throughput(p)));
+            wall += p.wallNanos;
+            cpu += p.cpuNanos;
+        }
+        sb.append(String.format("%-16s %10.3f %10.3f%n", "total",
+                                wall / 1e6, cpu / 1e6));
+        for (Map.Entry<String, long[]> e : counters.entrySet()) {
+            sb.append(String.format("%-16s %10d%n", e.getKey(), e.getValue()[0]));
+        }
+        return sb.toString();
+    }
+
+    private static String throughput(Phase p) {
+        if (p.counter == null || p.wallNanos == 0) {
+            return "";
+        }
+        return String.format("%.0f %s", p.items * 1e9 / p.wallNanos, p.counter);
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{\"phases\":[");
+        for (int k = 0; k < phases.size(); k++) {
+            Phase p = phases.get(k);
+            if (k > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"name\":\"").append(p.name)
+              .append("\",\"wallNanos\":").append(p.wallNanos)
+              .append(",\"cpuNanos\":").append(p.cpuNanos);
+            if (p.counter != null) {
+                sb.append(",\"counter\":\"").append(p.counter)
+                  .append("\",\"items\":").append(p.items);
+            }
+            sb.append('}');
+        }
+        sb.append("],\"counters\":{");
+        boolean first = true;
+        for (Map.Entry<String, long[]> e : counters.entrySet()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append('"').append(e.getKey()).append("\":").append(e.getValue()[0]);
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+}
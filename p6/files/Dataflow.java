@@ -0,0 +1,137 @@
+import java.util.*;
+
+/**
+ * Dataflow
+ *
+ * A worklist solver for bit-vector dataflow problems over a Cfg.  A
+ * problem numbers the facts it tracks 0..size-1 and says, for each block,
+ * which facts the block generates and which it kills; the solver then
+ * finds the facts holding on entry to and exit from every block.
+ *
+ * A forward problem computes
+ *     in[b]  = meet of out[p] over the predecessors p of b
+ *     out[b] = gen[b] | (in[b] & ~kill[b])
+ * and a backward one the same with in and out, predecessors and
+ * successors swapped.  The meet is union for a "may" problem (a fact
+ * holds if it holds along some path) and intersection for a "must"
+ * problem (along every path).  A block with nothing to meet over (the
+ * entry of a forward problem, the exit of a backward one, and blocks
+ * control never reaches) gets the empty set.
+ *
+ * Sets are long[] bit vectors; see Bits.
+ */
+public abstract class Dataflow {
+    protected Cfg cfg;
+    protected int size;
+    private boolean forward;
+    private boolean may;
+    private long[][] gen;
+    private long[][] kill;
+    private long[][] in;
+    private long[][] out;
+
+    protected Dataflow(Cfg cfg, int size, boolean forward, boolean may) {
+        this.cfg = cfg;
+        this.size = size;
+        this.forward = forward;
+        this.may = may;
+    }
+
+    /**
+     * Fill in the facts block b generates and kills, given as empty sets.
+     */
+    protected abstract void transfer(BasicBlock b, long[] gen, long[] kill);
+
+    /**
+     * Compute in and out for every block.
+     */
+    public void solve() {
+        List<BasicBlock> blocks = cfg.getBlocks();
+        int n = blocks.size();
+        gen = new long[n][];
+        kill = new long[n][];
+        in = new long[n][];
+        out = new long[n][];
+        for (BasicBlock b : blocks) {
+            int id = b.getId();
+            gen[id] = Bits.newSet(size);
+            kill[id] = Bits.newSet(size);
+            transfer(b, gen[id], kill[id]);
+            in[id] = Bits.newSet(size);
+            out[id] = Bits.newSet(size);
+            if (!may) {
+                // start a must problem from "everything" and shrink it
+                Bits.fill(forward ? out[id] : in[id], size);
+            }
+        }
+
+        // visit the blocks in the direction of flow first, so that most of
+        // them see their inputs settled
+        Deque<BasicBlock> work = new ArrayDeque<BasicBlock>();
+        boolean[] queued = new boolean[n];
+        for (int k = 0; k < n; k++) {
+            BasicBlock b = blocks.get(forward ? k : n - 1 - k);
+            work.add(b);
+            queued[b.getId()] = true;
+        }
+        while (!work.isEmpty()) {
+            BasicBlock b = work.poll();
+            int id = b.getId();
+            queued[id] = false;
+            List<BasicBlock> from = forward ? b.getPreds() : b.getSuccs();
+            long[] meet = forward ? in[id] : out[id];
+            long[] result = forward ? out[id] : in[id];
+
+            Bits.clear(meet);
+            if (!may && !from.isEmpty()) {
+                Bits.fill(meet, size);
+            }
+            for (BasicBlock p : from) {
+                long[] other = forward ? out[p.getId()] : in[p.getId()];
+                if (may) {
+                    Bits.union(meet, other);
+                } else {
+                    Bits.intersect(meet, other);
+                }
+            }
+
+            long[] next = Bits.copy(meet);
+            Bits.andNot(next, kill[id]);
+            Bits.union(next, gen[id]);
+            if (!Arrays.equals(next, result)) {
+                System.arraycopy(next, 0, result, 0, next.length);
+                for (BasicBlock s : forward ? b.getSuccs() : b.getPreds()) {
+                    if (!queued[s.getId()]) {
+                        work.add(s);
+                        queued[s.getId()] = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the facts that hold on entry to b.
+     */
+    public long[] getIn(BasicBlock b) {
+        return in[b.getId()];
+    }
+
+    /**
+     * Return the facts that hold on exit from b.
+     */
+    public long[] getOut(BasicBlock b) {
+        return out[b.getId()];
+    }
+
+    /**
+     * Return the number of facts tracked.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public Cfg getCfg() {
+        return cfg;
+    }
+}
@@ -0,0 +1,48 @@
+import java.util.*;
+
+/**
+ * DeadStores
+ *
+ * Dead store elimination on the IR: removes each instruction that writes
+ * a temporary or local variable that is not live afterwards (see
+ * Liveness).  Removing one store may leave the values it read dead, so
+ * the pass repeats until nothing more goes.
+ *
+ * Only instructions that do nothing but compute their result are removed.
+ * add, sub and neg stay, since they trap on overflow, as does div, which
+ * traps on division by zero; call, read and readb have effects of their
+ * own.
+ */
+public class DeadStores {
+    private static final Set<String> PURE = new HashSet<String>(Arrays.asList(
+        "copy", "mul", "not", "slt", "sgt", "sle", "sge", "seq", "sne"));
+
+    public static void run(IrFunction fn) {
+        int removed;
+        do {
+            removed = pass(fn);
+            CompilationContext.current().count("dse.removed", removed);
+        } while (removed > 0);
+    }
+
+    private static int pass(IrFunction fn) {
+        Liveness live = new Liveness(fn);
+        Set<IrInstr> dead = Collections.newSetFromMap(new IdentityHashMap<IrInstr, Boolean>());
+        for (BasicBlock b : live.getCfg().getBlocks()) {
+            long[] after = Bits.copy(live.getOut(b));
+            List<IrInstr> instrs = b.getInstrs();
+            for (int k = instrs.size() - 1; k >= 0; k--) {
+                IrInstr in = instrs.get(k);
+                int d = live.index(in.getDest());
+                if (d >= 0 && !Bits.get(after, d) && PURE.contains(in.getOp())) {
+                    // leave after as it is: the operands are not read here
+                    dead.add(in);
+                    continue;
+                }
+                live.step(in, after);
+            }
+        }
+        fn.getCode().removeAll(dead);
+        return dead.size();
+    }
+}
@@ -2,9 +2,9 @@
  * ErrMsg
  *
  * This class is used to generate warning and fatal error messages.
+ * Messages are recorded in the CompilationContext of the current thread.
  */
 class ErrMsg {
-	private static boolean err = false;
 
 	/**
 	 * Generates a fatal error message.
@@ -13,8 +13,8 @@ class ErrMsg {
 	 * @param msg associated message for error
 	 */
 	static void fatal(int lineNum, int charNum, String msg) {
-		err = true;
-		System.err.println(lineNum + ":" + charNum + " ***ERROR*** " + msg);
+		CompilationContext.current().report(
+			lineNum + ":" + charNum + " ***ERROR*** " + msg, true);
 	}
 
 	/**
@@ -24,14 +24,15 @@ class ErrMsg {
 	 * @param msg associated message for warning
 	 */
 	static void warn(int lineNum, int charNum, String msg) {
-		System.err.println(lineNum + ":" + charNum + " ***WARNING*** " + msg);
+		CompilationContext.current().report(
+			lineNum + ":" + charNum + " ***WARNING*** " + msg, false);
 	}
 
 	/**
 	 * Returns the err flag.
 	 */
 	static boolean getErr() {
-		return err;
+		return CompilationContext.current().hasErrors();
 	}
 
 }
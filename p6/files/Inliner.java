@@ -0,0 +1,232 @@
+import java.util.*;
+
+/**
+ * Inliner
+ *
+ * Replaces calls of small functions by copies of their bodies, in the IR
+ * of the function being compiled.  A function is inlined if its IR has at
+ * most MAX_SIZE instructions, labels aside, and it cannot end up calling
+ * itself (see CallGraph); main never is.  A caller grows by at most
+ * MAX_GROWTH instructions.  Calls within an inlined body may be inlined in
+ * turn.
+ *
+ * The copy gets new temporaries and labels.  The parameters and locals of
+ * a callee with no loop become new temporaries, which IrSelector may keep
+ * in registers; those of a callee with a loop (whose variables may be
+ * live around it, which temporaries must not be) get slots of the
+ * caller's frame below its own locals instead (FnBodyNode.addLocal), and
+ * are named f.k.x in the IR, for variable x of the kth copy made of f.
+ * Each argument is copied into its parameter where the call would have
+ * pushed it, so the arguments are still evaluated in order, and each
+ * return becomes a copy into the call's result and a jump past the end of
+ * the copy.
+ */
+public class Inliner {
+    public static final int MAX_SIZE = 24;
+    public static final int MAX_GROWTH = 256;
+
+    private CallGraph graph = new CallGraph();
+    private Map<String, FnDeclNode> fns = new HashMap<String, FnDeclNode>();
+
+    // functions found not to qualify
+    private Set<String> rejected = new HashSet<String>();
+
+    // the number of copies made so far
+    private int copies = 0;
+
+    public void addFunction(FnDeclNode fn) {
+        graph.addFunction(fn.sym(), fn.refs());
+        fns.put(fn.name(), fn);
+    }
+
+    /**
+     * Inline the calls in fn that qualify; frame is the body of the
+     * function fn is the IR of.
+     */
+    public void inline(IrFunction fn, FnBodyNode frame) {
+        CompilationContext ctx = CompilationContext.current();
+        List<IrInstr> code = fn.getCode();
+        int growth = 0;
+        for (int i = 0; i < code.size(); i++) {
+            IrInstr call = code.get(i);
+            if (!call.isCall()) {
+                continue;
+            }
+            FnDeclNode callee = fns.get(call.getLabel());
+            IrFunction body = body(callee);
+            if (body == null || growth + size(body) > MAX_GROWTH) {
+                continue;
+            }
+            growth += size(body);
+            ctx.count("inline.calls", 1);
+            ctx.count("inline.instrs", size(body));
+            expand(fn, frame, i, callee, body);
+
+            // look at the calls in the copy next
+            i--;
+        }
+    }
+
+    /**
+     * Return a fresh copy of the IR of callee if callee may be inlined,
+     * else null.
+     */
+    private IrFunction body(FnDeclNode callee) {
+        if (callee == null || rejected.contains(callee.name())) {
+            return null;
+        }
+        IrFunction body = null;
+        if (!callee.name().equals("main") && !graph.isRecursive(callee.sym())) {
+            body = callee.lowerBody();
+        }
+        if (body == null || size(body) > MAX_SIZE) {
+            rejected.add(callee.name());
+            return null;
+        }
+        body.coalesceCopies();
+        return body;
+    }
+
+    private static int size(IrFunction body) {
+        int n = 0;
+        for (IrInstr in : body.getCode()) {
+            if (!in.getOp().equals("label")) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Does body jump back to a label before the jump?
+     */
+    private static boolean hasLoop(IrFunction body) {
+        Set<String> seen = new HashSet<String>();
+        for (IrInstr in : body.getCode()) {
+            if (in.getOp().equals("label")) {
+                seen.add(in.getLabel());
+            } else if ((in.isBranch() || in.getOp().equals("goto"))
+                           && seen.contains(in.getLabel())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replace the call at code[at] by a copy of body, the IR of callee.
+     */
+    private void expand(IrFunction fn, FnBodyNode frame, int at, FnDeclNode callee,
+                        IrFunction body) {
+        List<IrInstr> code = fn.getCode();
+        IrInstr call = code.get(at);
+        copies++;
+        Renaming r = new Renaming(fn, frame, !hasLoop(body), callee.name() + "." + copies);
+
+        // the params of the call, first argument first (nearest the call);
+        // the params of calls nested in the arguments come before those
+        // calls
+        List<IdNode> formals = callee.formals();
+        int pending = 0;
+        int arg = 0;
+        for (int j = at - 1; j >= 0 && arg < call.getNumArgs(); j--) {
+            IrInstr in = code.get(j);
+            if (in.isCall()) {
+                pending += in.getNumArgs();
+            } else if (in.getOp().equals("param")) {
+                if (pending > 0) {
+                    pending--;
+                } else {
+                    IdNode id = formals.get(arg);
+                    IrOperand formal = r.map(IrOperand.var(id.sym(), id.name()));
+                    code.set(j, new IrInstr("copy", formal, in.getA(), null, null, 0));
+                    arg++;
+                }
+            }
+        }
+
+        String end = fn.newLabel();
+        List<IrInstr> copy = new ArrayList<IrInstr>();
+        for (IrInstr in : body.getCode()) {
+            if (in.getOp().equals("return")) {
+                if (in.getA() != null && call.getDest() != null) {
+                    copy.add(new IrInstr("copy", call.getDest(), r.map(in.getA()), null, null, 0));
+                }
+                copy.add(new IrInstr("goto", null, null, null, end, 0));
+                continue;
+            }
+            String label = in.getLabel();
+            if (label != null && !in.isCall()) {
+                label = r.label(label);
+            }
+            copy.add(new IrInstr(in.getOp(), r.map(in.getDest()), r.map(in.getA()),
+                                 r.map(in.getB()), label, in.getNumArgs()));
+        }
+        IrInstr last = copy.isEmpty() ? null : copy.get(copy.size() - 1);
+        if (last != null && last.getOp().equals("goto") && last.getLabel().equals(end)) {
+            // the last return falls through to the end
+            copy.remove(copy.size() - 1);
+        }
+        copy.add(new IrInstr("label", null, null, null, end, 0));
+
+        code.remove(at);
+        code.addAll(at, copy);
+    }
+
+    /**
+     * The new names of the temporaries, locals and labels of one copy of
+     * an inlined function.
+     */
+    private static class Renaming {
+        private IrFunction fn;
+        private FnBodyNode frame;
+        private boolean toTemps;
+        private String prefix;    // of the names of new locals
+        private Map<Integer, IrOperand> temps = new HashMap<Integer, IrOperand>();
+        private Map<TSym, IrOperand> vars = new IdentityHashMap<TSym, IrOperand>();
+        private Map<String, String> labels = new HashMap<String, String>();
+
+        Renaming(IrFunction fn, FnBodyNode frame, boolean toTemps, String prefix) {
+            this.fn = fn;
+            this.frame = frame;
+            this.toTemps = toTemps;
+            this.prefix = prefix;
+        }
+
+        IrOperand map(IrOperand o) {
+            if (o == null) {
+                return null;
+            } else if (o.isTemp()) {
+                IrOperand t = temps.get(o.getValue());
+                if (t == null) {
+                    t = fn.newTemp();
+                    temps.put(o.getValue(), t);
+                }
+                return t;
+            } else if (o.isVar() && !o.getSym().getGlobal()) {
+                IrOperand v = vars.get(o.getSym());
+                if (v == null) {
+                    if (toTemps) {
+                        v = fn.newTemp();
+                    } else {
+                        TSym sym = new TSym(o.getSym().getType());
+                        frame.addLocal(sym);
+                        v = IrOperand.var(sym, prefix + "." + o.getText());
+                    }
+                    vars.put(o.getSym(), v);
+                }
+                return v;
+            }
+            return o;
+        }
+
+        String label(String label) {
+            String l = labels.get(label);
+            if (l == null) {
+                l = fn.newLabel();
+                labels.put(label, l);
+            }
+            return l;
+        }
+    }
+}
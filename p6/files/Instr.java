@@ -0,0 +1,269 @@
+/**
+ * Instr
+ *
+ * One line of generated MIPS code, as built by the Codegen operations.  An
+ * Instr keeps the pieces of the line apart (label, opcode, operands,
+ * comment) so that passes can inspect and rewrite the code before
+ * AsmEmitter renders it as text.
+ *
+ * The form of an Instr records which Codegen operation made it, and so how
+ * it is laid out:
+ *     OP        opcode arg1, arg2, arg3    # comment
+ *     INDEXED   opcode arg1, offset(arg2)  # comment
+ *     LABELED   label: opcode arg1         # comment
+ *     LABEL     label:                     # comment
+ *     RAW       text, printed verbatim (directives and blank lines)
+ *
+ * Operands are kept as the strings the assembler sees: registers ("$t0"),
+ * immediates ("4") and symbols ("_x", ".L3").  isRegister and isImmediate
+ * tell them apart.
+ */
+public class Instr {
+    public static final int OP = 0;
+    public static final int INDEXED = 1;
+    public static final int LABELED = 2;
+    public static final int LABEL = 3;
+    public static final int RAW = 4;
+
+    private static final String[] NO_ARGS = new String[0];
+
+    private int form;
+    private String label;
+    private String opcode;
+    private String[] args;
+    private int offset;
+    private String comment;
+
+    private Instr(int form, String label, String opcode, String[] args,
+                  int offset, String comment) {
+        this.form = form;
+        this.label = label;
+        this.opcode = opcode;
+        this.args = args;
+        this.offset = offset;
+        this.comment = comment;
+    }
+
+    /**
+     * opcode args[0], args[1], ...  # comment
+     */
+    public static Instr op(String opcode, String comment, String... args) {
+        return new Instr(OP, null, opcode, args, 0, comment);
+    }
+
+    /**
+     * opcode reg, offset(base)  # comment
+     */
+    public static Instr indexed(String opcode, String reg, String base,
+                                int offset, String comment) {
+        return new Instr(INDEXED, null, opcode, new String[] { reg, base },
+                         offset, comment);
+    }
+
+    /**
+     * label: opcode arg  # comment; opcode and arg may be empty
+     */
+    public static Instr labeled(String label, String opcode, String arg,
+                                String comment) {
+        String[] args = arg.equals("") ? NO_ARGS : new String[] { arg };
+        return new Instr(LABELED, label, opcode, args, 0, comment);
+    }
+
+    /**
+     * label:  # comment
+     */
+    public static Instr label(String label, String comment) {
+        return new Instr(LABEL, label, "", NO_ARGS, 0, comment);
+    }
+
+    /**
+     * A line printed as it is.
+     */
+    public static Instr raw(String text) {
+        return new Instr(RAW, null, "", NO_ARGS, 0, text);
+    }
+
+    public int getForm() {
+        return form;
+    }
+
+    /**
+     * Return the label defined by this line, or null.
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * Return the opcode; "" for lines without one.
+     */
+    public String getOpcode() {
+        return opcode;
+    }
+
+    public int numArgs() {
+        return args.length;
+    }
+
+    public String getArg(int k) {
+        return args[k];
+    }
+
+    /**
+     * Return the offset of an INDEXED instruction.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Return the comment, or the text of a RAW line; "" if none.
+     */
+    public String getComment() {
+        return comment;
+    }
+
+    /**
+     * Is this an instruction (or directive) as opposed to a label alone, a
+     * comment or raw text?
+     */
+    public boolean isInstruction() {
+        return form != RAW && form != LABEL && !opcode.equals("");
+    }
+
+    /**
+     * Is this opcode with exactly the given operands?
+     */
+    public boolean is(String opcode, String... args) {
+        if (form != OP || !this.opcode.equals(opcode) || this.args.length != args.length) {
+            return false;
+        }
+        for (int k = 0; k < args.length; k++) {
+            if (!this.args[k].equals(args[k])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // **********************************************************************
+    // register use
+    // **********************************************************************
+
+    // registers a call may change (besides $ra and $v0), and registers a
+    // return passes back to the caller
+    private static final String[] CALL_CLOBBERED = {
+        "$v1", "$a0", "$a1", "$a2", "$a3", "$at", "$t0", "$t1", "$t2", "$t3",
+        "$t4", "$t5", "$t6", "$t7", "$t8", "$t9", "$lo", "$hi"
+    };
+    private static final String[] LIVE_AT_RETURN = {
+        "$v0", "$sp", "$fp", "$ra", "$s0", "$s1", "$s2", "$s3", "$s4", "$s5",
+        "$s6", "$s7"
+    };
+
+    /**
+     * Is this a conditional branch (whose target is its last operand)?
+     */
+    public boolean isBranch() {
+        return form == OP && opcode.length() >= 3 && opcode.charAt(0) == 'b'
+            && !opcode.equals("break");
+    }
+
+    /**
+     * Does this instruction read register reg?  Calls are taken to read
+     * the stack pointer only (arguments are passed on the stack) and
+     * returns to read everything the caller may still need; mult and div
+     * write the pseudo registers $lo and $hi.
+     */
+    public boolean reads(String reg) {
+        if (!isInstruction() || opcode.startsWith(".")) {
+            return false;
+        }
+        if (form == INDEXED) {
+            return args[1].equals(reg) || (opcode.equals("sw") && args[0].equals(reg));
+        }
+        if (opcode.equals("jal")) {
+            return reg.equals("$sp");
+        }
+        if (opcode.equals("jr")) {
+            return args[0].equals(reg) || contains(LIVE_AT_RETURN, reg);
+        }
+        if (opcode.equals("syscall")) {
+            return reg.equals("$v0") || reg.equals("$a0");
+        }
+        if (opcode.equals("mflo")) {
+            return reg.equals("$lo");
+        }
+        if (opcode.equals("mfhi")) {
+            return reg.equals("$hi");
+        }
+        // sw, mult and div (with two operands) and branches read all of
+        // their registers, everything else all but the first
+        int first = opcode.equals("sw") || isBranch() ||
+            ((opcode.equals("mult") || opcode.equals("div")) && args.length == 2) ? 0 : 1;
+        for (int k = first; k < args.length; k++) {
+            if (args[k].equals(reg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Does this instruction write register reg?
+     */
+    public boolean writes(String reg) {
+        if (!isInstruction() || opcode.startsWith(".")) {
+            return false;
+        }
+        if (form == INDEXED) {
+            return !opcode.equals("sw") && args[0].equals(reg);
+        }
+        if (opcode.equals("jal")) {
+            return reg.equals("$ra") || reg.equals("$v0") || contains(CALL_CLOBBERED, reg);
+        }
+        if (opcode.equals("syscall")) {
+            return reg.equals("$v0");
+        }
+        if ((opcode.equals("mult") || opcode.equals("div")) && args.length == 2) {
+            return reg.equals("$lo") || reg.equals("$hi");
+        }
+        if (opcode.equals("sw") || opcode.equals("j") || opcode.equals("jr")
+                || isBranch() || args.length == 0) {
+            return false;
+        }
+        return args[0].equals(reg);
+    }
+
+    private static boolean contains(String[] regs, String reg) {
+        for (String r : regs) {
+            if (r.equals(reg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static boolean isRegister(String arg) {
+        return arg.startsWith("$");
+    }
+
+    public static boolean isImmediate(String arg) {
+        int k = arg.startsWith("-") ? 1 : 0;
+        if (k == arg.length()) {
+            return false;
+        }
+        for (; k < arg.length(); k++) {
+            if (!Character.isDigit(arg.charAt(k))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        AsmEmitter.render(this, sb);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,478 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * IrFunction
+ *
+ * The body of one function in three-address form: a list of IrInstr
+ * whose operands are temporaries, variables, integer constants and string
+ * literals (see IrOperand).  The AST lowers itself into an IrFunction
+ * (the lower methods of the statement and expression nodes), passes may
+ * then rewrite the list, and IrSelector turns it into MIPS code.
+ *
+ * The IR knows nothing about registers, frames or the stack: a variable
+ * is just its symbol, a temporary just a number, and a call is a run of
+ * "param" instructions followed by "call".  Temporaries are defined once,
+ * except for the value of && and ||, which is set on each path to a join
+ * label; none is live across a loop's back edge.
+ *
+ * dump writes the function as text, one instruction per line:
+ *     function f
+ *         t0 = a + 1
+ *         if t0 >= b goto .L1
+ *         param t0
+ *         t1 = call f, 1
+ *     .L1:
+ *         return t1
+ */
+public class IrFunction {
+    private String name;
+    private List<IrInstr> code = new ArrayList<IrInstr>();
+    private int numTemps = 0;
+
+    public IrFunction(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<IrInstr> getCode() {
+        return code;
+    }
+
+    public int getNumTemps() {
+        return numTemps;
+    }
+
+    // **********************************************************************
+    // building (during lowering)
+    // **********************************************************************
+
+    /**
+     * Return a new temporary.
+     */
+    public IrOperand newTemp() {
+        return IrOperand.temp(numTemps++);
+    }
+
+    public String newLabel() {
+        return Codegen.nextLabel();
+    }
+
+    public void add(IrInstr in) {
+        code.add(in);
+        CompilationContext.current().count("ir.instrs", 1);
+    }
+
+    /**
+     * dest = a op b, for the binary operators (see IrInstr)
+     */
+    public void emit(String op, IrOperand dest, IrOperand a, IrOperand b) {
+        add(new IrInstr(op, dest, a, b, null, 0));
+    }
+
+    /**
+     * dest = op a, for copy, neg, not, read and readb (with a null), and
+     * the instructions with no result (param, write, writes, return)
+     */
+    public void emit(String op, IrOperand dest, IrOperand a) {
+        add(new IrInstr(op, dest, a, null, null, 0));
+    }
+
+    /**
+     * Return a new temporary holding op applied to a and b.
+     */
+    public IrOperand emitTemp(String op, IrOperand a, IrOperand b) {
+        IrOperand t = newTemp();
+        emit(op, t, a, b);
+        return t;
+    }
+
+    /**
+     * if a relop b goto label; op is the MIPS name of the branch (blt,
+     * bge, beq, ...)
+     */
+    public void emitBranch(String op, IrOperand a, IrOperand b, String label) {
+        add(new IrInstr(op, null, a, b, label, 0));
+    }
+
+    public void emitGoto(String label) {
+        add(new IrInstr("goto", null, null, null, label, 0));
+    }
+
+    public void emitLabel(String label) {
+        add(new IrInstr("label", null, null, null, label, 0));
+    }
+
+    /**
+     * dest = call fn, numArgs (dest may be null); the arguments are the
+     * preceding param instructions
+     */
+    public void emitCall(IrOperand dest, String fn, int numArgs) {
+        add(new IrInstr("call", dest, null, null, fn, numArgs));
+    }
+
+    // **********************************************************************
+    // cleanup
+    // **********************************************************************
+
+    /**
+     * Compute straight into the destination of a copy: a temporary that
+     * is defined once and whose only use is a copy right after its
+     * definition,
+     *     t3 = a + b
+     *     x = t3
+     * is replaced by the copy's destination (x = a + b).  Lowering makes
+     * this pattern for every assignment of a computed value.
+     */
+    public void coalesceCopies() {
+        int[] defs = new int[numTemps];
+        int[] uses = new int[numTemps];
+        for (IrInstr in : code) {
+            if (in.getDest() != null && in.getDest().isTemp()) {
+                defs[in.getDest().getValue()]++;
+            }
+            for (IrOperand o : in.uses()) {
+                if (o.isTemp()) {
+                    uses[o.getValue()]++;
+                }
+            }
+        }
+        int coalesced = 0;
+        for (int i = 0; i + 1 < code.size(); i++) {
+            IrInstr def = code.get(i);
+            IrInstr copy = code.get(i + 1);
+            IrOperand t = def.getDest();
+            if (t != null && t.isTemp() && defs[t.getValue()] == 1
+                    && uses[t.getValue()] == 1 && copy.getOp().equals("copy")
+                    && copy.getA().equals(t)) {
+                def.setDest(copy.getDest());
+                code.remove(i + 1);
+                coalesced++;
+            }
+        }
+        CompilationContext.current().count("ir.coalesced", coalesced);
+    }
+
+    // **********************************************************************
+    // dump
+    // **********************************************************************
+
+    public void dump(PrintWriter p) {
+        p.println("function " + name);
+        for (IrInstr in : code) {
+            if (!in.getOp().equals("label")) {
+                p.print("    ");
+            }
+            p.println(in);
+        }
+        p.println();
+        p.flush();
+    }
+}
+
+/**
+ * IrOperand
+ *
+ * An operand of an IrInstr: a temporary (numbered within its function), a
+ * variable (a local, parameter or global, by its symbol), an int constant
+ * (booleans are 0 and 1) or a string literal.  Operands are values: two
+ * operands for the same thing are equal.
+ *
+ * In SSA form (see Ssa) a temporary or variable also carries a version,
+ * the number of the definition it names; outside it the version is -1.
+ */
+class IrOperand {
+    public static final int TEMP = 0;
+    public static final int VAR = 1;
+    public static final int CONST = 2;
+    public static final int STR = 3;
+
+    private int kind;
+    private int value;    // temp number or constant
+    private TSym sym;     // variable
+    private String text;  // variable name or string literal
+    private int version = -1;
+
+    private IrOperand(int kind, int value, TSym sym, String text) {
+        this.kind = kind;
+        this.value = value;
+        this.sym = sym;
+        this.text = text;
+    }
+
+    public static IrOperand temp(int n) {
+        return new IrOperand(TEMP, n, null, null);
+    }
+
+    public static IrOperand var(TSym sym, String name) {
+        return new IrOperand(VAR, 0, sym, name);
+    }
+
+    public static IrOperand constant(int value) {
+        return new IrOperand(CONST, value, null, null);
+    }
+
+    public static IrOperand str(String literal) {
+        return new IrOperand(STR, 0, null, literal);
+    }
+
+    public int getKind() {
+        return kind;
+    }
+
+    public boolean isTemp() {
+        return kind == TEMP;
+    }
+
+    public boolean isVar() {
+        return kind == VAR;
+    }
+
+    public boolean isConst() {
+        return kind == CONST;
+    }
+
+    /**
+     * Return the number of a temporary or the value of a constant.
+     */
+    public int getValue() {
+        return value;
+    }
+
+    public TSym getSym() {
+        return sym;
+    }
+
+    /**
+     * Return the name of a variable or the text of a string literal
+     * (quotes included).
+     */
+    public String getText() {
+        return text;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Return this operand with the given version (-1 for none).
+     */
+    public IrOperand withVersion(int v) {
+        IrOperand o = new IrOperand(kind, value, sym, text);
+        o.version = v;
+        return o;
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof IrOperand)) {
+            return false;
+        }
+        IrOperand other = (IrOperand)o;
+        return kind == other.kind && value == other.value && sym == other.sym
+            && version == other.version && (kind != STR || text.equals(other.text));
+    }
+
+    public int hashCode() {
+        return kind * 31 + value + version * 17
+            + (sym == null ? 0 : System.identityHashCode(sym));
+    }
+
+    public String toString() {
+        String v = version < 0 ? "" : "." + version;
+        switch (kind) {
+        case TEMP:
+            return "t" + value + v;
+        case CONST:
+            return Integer.toString(value);
+        default:
+            return text + v;
+        }
+    }
+}
+
+/**
+ * IrInstr
+ *
+ * One three-address instruction.  The op says what it does and which of
+ * the other fields it uses:
+ *     add sub mul div          dest = a op b
+ *     slt sgt sle sge seq sne  dest = a op b  (1 if the relation holds)
+ *     neg not copy             dest = op a
+ *     blt bgt ble bge beq bne  if a relop b goto label
+ *     goto, label              label
+ *     param                    a, pushed as the next argument (the last
+ *                              argument is pushed first)
+ *     call                     dest (may be null) = call label, numArgs
+ *     return                   a (may be null)
+ *     read, readb              dest = an int (a bool) read from input
+ *     write, writes            a, written as an int (a string)
+ *     phi                      dest = the arg for the predecessor control
+ *                              came from (only in SSA form)
+ */
+class IrInstr {
+    private String op;
+    private IrOperand dest;
+    private IrOperand a;
+    private IrOperand b;
+    private String label;
+    private int numArgs;
+    private IrOperand[] args;   // of a phi, one per predecessor block
+
+    IrInstr(String op, IrOperand dest, IrOperand a, IrOperand b, String label,
+            int numArgs) {
+        this.op = op;
+        this.dest = dest;
+        this.a = a;
+        this.b = b;
+        this.label = label;
+        this.numArgs = numArgs;
+    }
+
+    /**
+     * Return a phi for dest with n arguments, all null.
+     */
+    public static IrInstr phi(IrOperand dest, int n) {
+        IrInstr in = new IrInstr("phi", dest, null, null, null, 0);
+        in.args = new IrOperand[n];
+        return in;
+    }
+
+    public String getOp() {
+        return op;
+    }
+
+    /**
+     * Return the operand written, or null.
+     */
+    public IrOperand getDest() {
+        return dest;
+    }
+
+    public IrOperand getA() {
+        return a;
+    }
+
+    public IrOperand getB() {
+        return b;
+    }
+
+    public void setDest(IrOperand dest) {
+        this.dest = dest;
+    }
+
+    public void setA(IrOperand a) {
+        this.a = a;
+    }
+
+    public void setB(IrOperand b) {
+        this.b = b;
+    }
+
+    /**
+     * Return the label defined or jumped to, or the function called.
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    public int getNumArgs() {
+        return numArgs;
+    }
+
+    /**
+     * Return the arguments of a phi, in the order of the predecessors of
+     * its block.
+     */
+    public IrOperand[] getArgs() {
+        return args;
+    }
+
+    public boolean isPhi() {
+        return args != null;
+    }
+
+    public boolean isBranch() {
+        return op.length() == 3 && op.charAt(0) == 'b';
+    }
+
+    public boolean isCall() {
+        return op.equals("call");
+    }
+
+    /**
+     * Does control never fall through to the next instruction?
+     */
+    public boolean isJump() {
+        return op.equals("goto") || op.equals("return");
+    }
+
+    /**
+     * Return the operands read, a then b (or the arguments of a phi),
+     * leaving out those not there.
+     */
+    public List<IrOperand> uses() {
+        List<IrOperand> uses = new ArrayList<IrOperand>(2);
+        if (a != null) {
+            uses.add(a);
+        }
+        if (b != null) {
+            uses.add(b);
+        }
+        if (args != null) {
+            for (IrOperand o : args) {
+                if (o != null) {
+                    uses.add(o);
+                }
+            }
+        }
+        return uses;
+    }
+
+    private static final String[][] SYMBOLS = {
+        { "add", "+" }, { "sub", "-" }, { "mul", "*" }, { "div", "/" },
+        { "slt", "<" }, { "sgt", ">" }, { "sle", "<=" }, { "sge", ">=" },
+        { "seq", "==" }, { "sne", "!=" }, { "blt", "<" }, { "bgt", ">" },
+        { "ble", "<=" }, { "bge", ">=" }, { "beq", "==" }, { "bne", "!=" },
+        { "neg", "-" }, { "not", "!" }
+    };
+
+    private static String symbol(String op) {
+        for (String[] s : SYMBOLS) {
+            if (s[0].equals(op)) {
+                return s[1];
+            }
+        }
+        return op;
+    }
+
+    public String toString() {
+        if (op.equals("label")) {
+            return label + ":";
+        } else if (op.equals("goto")) {
+            return "goto " + label;
+        } else if (isBranch()) {
+            return "if " + a + " " + symbol(op) + " " + b + " goto " + label;
+        } else if (op.equals("call")) {
+            return (dest == null ? "" : dest + " = ") + "call " + label + ", " + numArgs;
+        } else if (op.equals("copy")) {
+            return dest + " = " + a;
+        } else if (isPhi()) {
+            StringBuilder sb = new StringBuilder(dest + " = phi(");
+            for (int k = 0; k < args.length; k++) {
+                sb.append(k > 0 ? ", " : "").append(args[k]);
+            }
+            return sb.append(")").toString();
+        } else if (op.equals("neg") || op.equals("not")) {
+            return dest + " = " + symbol(op) + a;
+        } else if (op.equals("read") || op.equals("readb")) {
+            return op + " " + dest;
+        } else if (dest == null) {
+            return op + (a == null ? "" : " " + a);
+        }
+        return dest + " = " + a + " " + symbol(op) + " " + b;
+    }
+}
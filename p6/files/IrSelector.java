@@ -0,0 +1,396 @@
+import java.util.*;
+
+/**
+ * IrSelector
+ *
+ * Instruction selection: turns the IR of one function into MIPS code
+ * through the Codegen operations, in place of the code the AST would
+ * generate for the function's body.
+ *
+ * Variables stay where the rest of the code generator keeps them (the
+ * register chosen by RegAlloc, else their frame slot or global label).
+ * Temporaries get registers from the pool Codegen.TEMPS by a linear scan
+ * over the instruction list: a temporary holds its register from its
+ * first to its last appearance, or to the end of any loop it is live into
+ * (see Licm).  Temporaries that are live across a call (which may
+ * change every temporary register), or that find the pool empty, get a
+ * frame slot instead; the slots go below saveBase, and the prologue must
+ * reserve getSpillSize() bytes for them.
+ *
+ * $t0 and $t1 are scratch registers for operands that are not in
+ * registers.  Frame slots are addressed off $fp, or off $sp in a function
+ * without one (see setFrame).
+ */
+public class IrSelector {
+    private IrFunction fn;
+    private String[] regs;   // register of each temporary, or null
+    private int[] slots;     // frame offset of each spilled temporary
+    private int spillSize = 0;
+    private String exitLabel;
+    private String frameReg = Codegen.FP;
+    private int frameBias = 0;   // added to $fp offsets to address off frameReg
+
+    public IrSelector(IrFunction fn, int saveBase) {
+        this.fn = fn;
+        assignTemps(saveBase);
+    }
+
+    /**
+     * Return the number of bytes of frame the spilled temporaries need.
+     */
+    public int getSpillSize() {
+        return spillSize;
+    }
+
+    /**
+     * Address the frame off reg, which points bias bytes below where $fp
+     * would.
+     */
+    public void setFrame(String reg, int bias) {
+        frameReg = reg;
+        frameBias = bias;
+    }
+
+    // **********************************************************************
+    // temporaries
+    // **********************************************************************
+
+    private void assignTemps(int saveBase) {
+        int n = fn.getNumTemps();
+        regs = new String[n];
+        slots = new int[n];
+        int[] first = new int[n];
+        int[] last = new int[n];
+        Arrays.fill(first, -1);
+        List<IrInstr> code = fn.getCode();
+        List<Integer> calls = new ArrayList<Integer>();
+        for (int i = 0; i < code.size(); i++) {
+            IrInstr in = code.get(i);
+            if (in.isCall()) {
+                calls.add(i);
+            }
+            List<IrOperand> ops = in.uses();
+            if (in.getDest() != null) {
+                ops.add(in.getDest());
+            }
+            for (IrOperand o : ops) {
+                if (o.isTemp()) {
+                    int t = o.getValue();
+                    if (first[t] < 0) {
+                        first[t] = i;
+                    }
+                    last[t] = i;
+                }
+            }
+        }
+
+        // a temporary live on entry to a loop (set before the loop's head
+        // and read at or after it) is live around the whole loop, up to
+        // the last jump back
+        Map<String, Integer> labels = new HashMap<String, Integer>();
+        for (int i = 0; i < code.size(); i++) {
+            if (code.get(i).getOp().equals("label")) {
+                labels.put(code.get(i).getLabel(), i);
+            }
+        }
+        boolean stretched = true;
+        while (stretched) {
+            stretched = false;
+            for (int i = 0; i < code.size(); i++) {
+                IrInstr in = code.get(i);
+                boolean jumps = in.isBranch() || in.getOp().equals("goto");
+                Integer head = jumps ? labels.get(in.getLabel()) : null;
+                if (head == null || head >= i) {
+                    continue;
+                }
+                for (int t = 0; t < n; t++) {
+                    if (first[t] >= 0 && first[t] < head && head <= last[t] && last[t] < i) {
+                        last[t] = i;
+                        stretched = true;
+                    }
+                }
+            }
+        }
+
+        // temporaries in order of their first appearance
+        Integer[] order = new Integer[n];
+        for (int t = 0; t < n; t++) {
+            order[t] = t;
+        }
+        final int[] start = first;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer x, Integer y) {
+                return start[x] - start[y];
+            }
+        });
+
+        // the temporary holding each register of the pool, or -1
+        int[] holder = new int[Codegen.TEMPS.length];
+        Arrays.fill(holder, -1);
+        int spilled = 0;
+        for (int t : order) {
+            if (first[t] < 0) {
+                continue;
+            }
+            boolean crossesCall = false;
+            for (int c : calls) {
+                crossesCall |= first[t] < c && c < last[t];
+            }
+            int free = -1;
+            for (int k = 0; k < holder.length && !crossesCall; k++) {
+                if (holder[k] < 0 || last[holder[k]] < first[t]) {
+                    free = k;
+                    break;
+                }
+            }
+            if (free >= 0) {
+                holder[free] = t;
+                regs[t] = Codegen.TEMPS[free];
+            } else {
+                slots[t] = saveBase - 4 * spilled++;
+            }
+        }
+        spillSize = 4 * spilled;
+        CompilationContext.current().count("ir.spills", spilled);
+    }
+
+    // **********************************************************************
+    // selection
+    // **********************************************************************
+
+    /**
+     * Generate the code of the function body; a return jumps to exitLabel.
+     */
+    public void select(String exitLabel) {
+        this.exitLabel = exitLabel;
+        List<IrInstr> code = fn.getCode();
+        FnDeclNode caller = CompilationContext.current().getFunction();
+        for (int i = 0; i < code.size(); i++) {
+            IrInstr in = code.get(i);
+            if (in.isCall() && caller != null && returns(in, code, i + 1)
+                    && caller.canTailCall(in.getLabel(), in.getNumArgs())) {
+                caller.genTailCall(in.getLabel(), in.getNumArgs());
+                if (i + 1 < code.size() && code.get(i + 1).getOp().equals("return")) {
+                    // nothing jumps to the return, and the call never comes
+                    // back to it
+                    i++;
+                }
+                continue;
+            }
+            select(in);
+        }
+    }
+
+    /**
+     * Does the function return the result of call, at code[i], right after
+     * making it (at code[next] or the end, labels aside)?
+     */
+    private static boolean returns(IrInstr call, List<IrInstr> code, int next) {
+        while (next < code.size() && code.get(next).getOp().equals("label")) {
+            next++;
+        }
+        if (next == code.size()) {
+            return true;
+        }
+        IrInstr in = code.get(next);
+        return in.getOp().equals("return")
+            && (in.getA() == null || in.getA().equals(call.getDest()));
+    }
+
+    private void select(IrInstr in) {
+        String op = in.getOp();
+        IrOperand dest = in.getDest();
+        if (op.equals("label")) {
+            Codegen.genLabel(in.getLabel());
+        } else if (op.equals("goto")) {
+            Codegen.generate("j", in.getLabel());
+        } else if (in.isBranch()) {
+            String a = read(in.getA(), Codegen.T0);
+            String b = read(in.getB(), Codegen.T1);
+            Codegen.generate(op, a, b, in.getLabel());
+        } else if (op.equals("copy")) {
+            String d = target(dest);
+            String a = read(in.getA(), d);
+            if (!a.equals(d)) {
+                Codegen.generate("move", d, a);
+            }
+            store(dest, d);
+        } else if (op.equals("neg") || op.equals("not")) {
+            String a = read(in.getA(), Codegen.T0);
+            String d = target(dest);
+            if (op.equals("neg")) {
+                Codegen.generate("sub", d, Codegen.ZERO, a);
+            } else {
+                Codegen.generate("xori", d, a, Codegen.TRUE);
+            }
+            store(dest, d);
+        } else if (op.equals("param")) {
+            Codegen.genPush(read(in.getA(), Codegen.T0));
+        } else if (op.equals("call")) {
+            selectCall(in);
+        } else if (op.equals("return")) {
+            if (in.getA() != null) {
+                String a = read(in.getA(), Codegen.V0);
+                if (!a.equals(Codegen.V0)) {
+                    Codegen.generate("move", Codegen.V0, a);
+                }
+            }
+            Codegen.generate("j", exitLabel);
+        } else if (op.equals("read") || op.equals("readb")) {
+            Codegen.generate("li", Codegen.V0, "5");
+            Codegen.generate("syscall");
+            if (op.equals("readb")) {
+                // any nonzero input is true
+                Codegen.generate("sne", Codegen.V0, Codegen.V0, Codegen.ZERO);
+            }
+            assign(dest, Codegen.V0);
+        } else if (op.equals("writes") && in.getA().getKind() == IrOperand.STR) {
+            // a literal written out may share its data with its copies
+            Codegen.generate("la", Codegen.A0, Codegen.genString(in.getA().getText(), true));
+            Codegen.generate("li", Codegen.V0, "4");
+            Codegen.generate("syscall");
+        } else if (op.equals("write") || op.equals("writes")) {
+            String a = read(in.getA(), Codegen.A0);
+            if (!a.equals(Codegen.A0)) {
+                Codegen.generate("move", Codegen.A0, a);
+            }
+            Codegen.generate("li", Codegen.V0, op.equals("write") ? "1" : "4");
+            Codegen.generate("syscall");
+        } else {
+            selectBinary(in);
+        }
+    }
+
+    private void selectBinary(IrInstr in) {
+        String op = in.getOp();
+        IrOperand dest = in.getDest();
+        IrOperand a = in.getA();
+        IrOperand b = in.getB();
+        if (StrengthReduce.enabled() && op.equals("mul") && a.isConst() && !b.isConst()) {
+            a = b;
+            b = in.getA();
+        }
+        String ra = read(a, Codegen.T0);
+        if (b.isConst() && (op.equals("mul") || op.equals("div"))) {
+            // by a constant, perhaps without mult or div
+            String d = target(dest);
+            boolean done = op.equals("mul")
+                ? StrengthReduce.genMul(d, ra, b.getValue(), Codegen.T1)
+                : StrengthReduce.genDiv(d, ra, b.getValue(), Codegen.T1);
+            if (done) {
+                store(dest, d);
+                return;
+            }
+        }
+        if ((op.equals("add") || op.equals("sub")) && b.isConst()
+                && b.getValue() != Integer.MIN_VALUE) {
+            String d = target(dest);
+            int imm = op.equals("add") ? b.getValue() : -b.getValue();
+            Codegen.generate("addi", d, ra, Integer.toString(imm));
+            store(dest, d);
+            return;
+        }
+        String rb = read(b, Codegen.T1);
+        String d = target(dest);
+        if (op.equals("mul") || op.equals("div")) {
+            Codegen.generate(op.equals("mul") ? "mult" : "div", ra, rb);
+            Codegen.generate("mflo", d);
+        } else {
+            Codegen.generate(op, d, ra, rb);
+        }
+        store(dest, d);
+    }
+
+    private void selectCall(IrInstr in) {
+        String fn = in.getLabel();
+        Codegen.generate("jal", fn.equals("main") ? fn : "_" + fn);
+        if (in.getNumArgs() > 0) {
+            Codegen.generate("addu", Codegen.SP, Codegen.SP, 4 * in.getNumArgs());
+        }
+        if (in.getDest() != null) {
+            assign(in.getDest(), Codegen.V0);
+        }
+    }
+
+    // **********************************************************************
+    // operands
+    // **********************************************************************
+
+    /**
+     * Return a register holding the value of o: its own register if it
+     * has one, else scratch, loaded with the value.
+     */
+    private String read(IrOperand o, String scratch) {
+        switch (o.getKind()) {
+        case IrOperand.CONST:
+            if (o.getValue() == 0) {
+                return Codegen.ZERO;
+            }
+            Codegen.generate("li", scratch, Integer.toString(o.getValue()));
+            return scratch;
+        case IrOperand.STR:
+            Codegen.generate("la", scratch, Codegen.genString(o.getText(), false));
+            return scratch;
+        case IrOperand.TEMP:
+            if (regs[o.getValue()] != null) {
+                return regs[o.getValue()];
+            }
+            Codegen.generateIndexed("lw", scratch, frameReg, slots[o.getValue()] + frameBias);
+            return scratch;
+        default:
+            TSym sym = o.getSym();
+            if (sym.getRegister() != null) {
+                return sym.getRegister();
+            }
+            if (sym.getGlobal()) {
+                Codegen.generate("lw", scratch, "_" + o.getText());
+            } else {
+                Codegen.generateIndexed("lw", scratch, frameReg, sym.getOffset() + frameBias);
+            }
+            return scratch;
+        }
+    }
+
+    /**
+     * Return the register to compute a value for dest in: its own, or the
+     * scratch register $t0 if it lives in memory (see store).
+     */
+    private String target(IrOperand dest) {
+        String reg = register(dest);
+        return reg != null ? reg : Codegen.T0;
+    }
+
+    /**
+     * Store reg, computed by target(dest), into dest if dest lives in
+     * memory.
+     */
+    private void store(IrOperand dest, String reg) {
+        if (register(dest) != null) {
+            return;
+        }
+        if (dest.isTemp()) {
+            Codegen.generateIndexed("sw", reg, frameReg, slots[dest.getValue()] + frameBias);
+        } else if (dest.getSym().getGlobal()) {
+            Codegen.generate("sw", reg, "_" + dest.getText());
+        } else {
+            Codegen.generateIndexed("sw", reg, frameReg,
+                                    dest.getSym().getOffset() + frameBias);
+        }
+    }
+
+    /**
+     * Put the value in reg into dest.
+     */
+    private void assign(IrOperand dest, String reg) {
+        String d = register(dest);
+        if (d == null) {
+            store(dest, reg);
+        } else if (!d.equals(reg)) {
+            Codegen.generate("move", d, reg);
+        }
+    }
+
+    private String register(IrOperand o) {
+        return o.isTemp() ? regs[o.getValue()] : o.getSym().getRegister();
+    }
+}
@@ -0,0 +1,181 @@
+import java.util.*;
+
+/**
+ * Licm
+ *
+ * Loop-invariant code motion on the IR: moves each computation whose
+ * operands do not change in a loop out of it, into a preheader just
+ * before the loop's head, where it runs once.
+ *
+ * Loops are found in the code as the lowering lays them out: a label, the
+ * head, and the last jump back to it.  A loop is only worked on if control
+ * enters it by falling into the head, so that the preheader runs before
+ * every entry: no jump from outside may land on the head or inside.
+ * Inner loops go first, so that what leaves an inner loop may then leave
+ * the outer one as well.
+ *
+ * An operand is invariant if it is a constant, a temporary or local
+ * variable with no definition in the loop, or a global with none if the
+ * loop calls no function.  An instruction moves if its operands are
+ * invariant and its result is a temporary defined nowhere else; what it
+ * computes is then invariant in turn.  Instructions that only compute
+ * their result may move from anywhere in the loop.  add, sub and neg
+ * (which trap on overflow) and div (on division by zero) move only from
+ * the straight run of code at the head, before any jump or instruction
+ * with an effect: that code runs on every entry, so it would have trapped
+ * anyway.  Copies stay, since moving one would tie up a register for the
+ * whole loop to save a move or a load in it, and at most MAX_MOVED values
+ * leave a loop, so that it keeps registers to work in.
+ *
+ * The temporaries moved out are live around the loop; IrSelector allows
+ * for that.
+ */
+public class Licm {
+    private static final Set<String> PURE = new HashSet<String>(Arrays.asList(
+        "mul", "not", "slt", "sgt", "sle", "sge", "seq", "sne"));
+    private static final Set<String> TRAPS = new HashSet<String>(Arrays.asList(
+        "add", "sub", "neg", "div"));
+
+    // the most values moved out of one loop; each holds a temporary
+    // register around the whole loop, and IrSelector has few
+    public static final int MAX_MOVED = Codegen.TEMPS.length / 2;
+
+    public static void run(IrFunction fn) {
+        List<IrInstr> code = fn.getCode();
+
+        // the head of each loop, innermost first
+        final Map<String, Integer> size = new HashMap<String, Integer>();
+        Map<String, Integer> at = labels(code);
+        for (int i = 0; i < code.size(); i++) {
+            String label = target(code.get(i));
+            if (label != null && at.containsKey(label) && at.get(label) < i) {
+                size.put(label, i - at.get(label));
+            }
+        }
+        List<String> heads = new ArrayList<String>(size.keySet());
+        Collections.sort(heads, new Comparator<String>() {
+            public int compare(String x, String y) {
+                return size.get(x) - size.get(y);
+            }
+        });
+
+        for (String head : heads) {
+            hoist(code, head);
+        }
+    }
+
+    /**
+     * Move the invariant computations out of the loop headed by head.
+     */
+    private static void hoist(List<IrInstr> code, String head) {
+        Map<String, Integer> at = labels(code);
+        int start = at.get(head);
+        int end = start;
+        for (int i = start; i < code.size(); i++) {
+            if (head.equals(target(code.get(i)))) {
+                end = i;
+            }
+        }
+        if (!singleEntry(code, at, start, end)) {
+            return;
+        }
+
+        Set<IrOperand> defined = new HashSet<IrOperand>();
+        Map<IrOperand, Integer> defs = new HashMap<IrOperand, Integer>();
+        boolean calls = false;
+        for (int i = 0; i < code.size(); i++) {
+            IrInstr in = code.get(i);
+            if (in.getDest() != null) {
+                Integer n = defs.get(in.getDest());
+                defs.put(in.getDest(), n == null ? 1 : n + 1);
+                if (start < i && i <= end) {
+                    defined.add(in.getDest());
+                }
+            }
+            calls |= start < i && i <= end && in.isCall();
+        }
+
+        List<IrInstr> moved = new ArrayList<IrInstr>();
+        boolean changed = true;
+        while (changed && moved.size() < MAX_MOVED) {
+            changed = false;
+
+            // the straight run at the head lasts until a jump, or an
+            // instruction with an effect that stays in the loop (labels
+            // do not end it: control falls through them on entry)
+            boolean straight = true;
+            for (int i = start + 1; i <= end && moved.size() < MAX_MOVED; i++) {
+                IrInstr in = code.get(i);
+                String op = in.getOp();
+                if (op.equals("label")) {
+                    continue;
+                }
+                IrOperand dest = in.getDest();
+                boolean movable = (PURE.contains(op) || (straight && TRAPS.contains(op)))
+                    && dest.isTemp() && defs.get(dest) == 1
+                    && invariant(in.getA(), defined, calls)
+                    && invariant(in.getB(), defined, calls);
+                if (movable) {
+                    moved.add(in);
+                    defined.remove(dest);
+                    code.remove(i--);
+                    end--;
+                    changed = true;
+                } else if (!PURE.contains(op) && !op.equals("copy")) {
+                    straight = false;
+                }
+            }
+        }
+        if (!moved.isEmpty()) {
+            CompilationContext.current().count("licm.hoisted", moved.size());
+            code.addAll(start, moved);
+        }
+    }
+
+    /**
+     * Is control only ever entered into code[start..end] by falling into
+     * code[start]?
+     */
+    private static boolean singleEntry(List<IrInstr> code, Map<String, Integer> at,
+                                       int start, int end) {
+        for (int i = 0; i < code.size(); i++) {
+            if (start < i && i <= end) {
+                continue;
+            }
+            String label = target(code.get(i));
+            if (label != null && at.containsKey(label)
+                    && start <= at.get(label) && at.get(label) <= end) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean invariant(IrOperand o, Set<IrOperand> defined, boolean calls) {
+        if (o == null || o.isConst() || o.getKind() == IrOperand.STR) {
+            return true;
+        }
+        if (o.isVar() && o.getSym().getGlobal()) {
+            return !calls && !defined.contains(o);
+        }
+        return !defined.contains(o);
+    }
+
+    /**
+     * Return the label in jumps to, or null.
+     */
+    private static String target(IrInstr in) {
+        return in.isBranch() || in.getOp().equals("goto") ? in.getLabel() : null;
+    }
+
+    // the position of each label
+    private static Map<String, Integer> labels(List<IrInstr> code) {
+        Map<String, Integer> at = new HashMap<String, Integer>();
+        for (int i = 0; i < code.size(); i++) {
+            if (code.get(i).getOp().equals("label")) {
+                at.put(code.get(i).getLabel(), i);
+            }
+        }
+        return at;
+    }
+}
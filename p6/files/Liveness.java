@@ -0,0 +1,101 @@
+import java.util.*;
+
+/**
+ * Liveness
+ *
+ * Which temporaries and local variables (parameters included) may be read
+ * before they are next written: a backward may problem.  Fact t is
+ * temporary t; the locals are numbered after the temporaries, in the
+ * order they first appear.  Globals are not tracked, since any call may
+ * read them; treat them as always live.
+ */
+public class Liveness extends Dataflow {
+    private int numTemps;
+    private Map<TSym, Integer> locals;
+
+    public Liveness(IrFunction fn) {
+        this(fn, new Cfg(fn));
+    }
+
+    /**
+     * Solve liveness over cfg, a graph of fn.
+     */
+    public Liveness(IrFunction fn, Cfg cfg) {
+        this(cfg, fn.getNumTemps(), localsOf(fn));
+    }
+
+    private Liveness(Cfg cfg, int numTemps, Map<TSym, Integer> locals) {
+        super(cfg, numTemps + locals.size(), false, true);
+        this.numTemps = numTemps;
+        this.locals = locals;
+        solve();
+    }
+
+    /**
+     * Number the local variables of fn, after its temporaries.
+     */
+    static Map<TSym, Integer> localsOf(IrFunction fn) {
+        Map<TSym, Integer> locals = new IdentityHashMap<TSym, Integer>();
+        for (IrInstr in : fn.getCode()) {
+            List<IrOperand> ops = in.uses();
+            if (in.getDest() != null) {
+                ops.add(in.getDest());
+            }
+            for (IrOperand o : ops) {
+                if (o.isVar() && !o.getSym().getGlobal() && !locals.containsKey(o.getSym())) {
+                    locals.put(o.getSym(), fn.getNumTemps() + locals.size());
+                }
+            }
+        }
+        return locals;
+    }
+
+    /**
+     * Return the fact number of o, or -1 if o is not tracked.
+     */
+    public int index(IrOperand o) {
+        if (o == null) {
+            return -1;
+        } else if (o.isTemp()) {
+            return o.getValue();
+        } else if (o.isVar()) {
+            Integer i = locals.get(o.getSym());
+            return i == null ? -1 : i;
+        }
+        return -1;
+    }
+
+    /**
+     * Update live, the set live after in, to the set live before it.
+     */
+    public void step(IrInstr in, long[] live) {
+        int d = index(in.getDest());
+        if (d >= 0) {
+            Bits.unset(live, d);
+        }
+        for (IrOperand o : in.uses()) {
+            int u = index(o);
+            if (u >= 0) {
+                Bits.set(live, u);
+            }
+        }
+    }
+
+    protected void transfer(BasicBlock b, long[] gen, long[] kill) {
+        List<IrInstr> instrs = b.getInstrs();
+        for (int k = instrs.size() - 1; k >= 0; k--) {
+            IrInstr in = instrs.get(k);
+            int d = index(in.getDest());
+            if (d >= 0) {
+                Bits.set(kill, d);
+                Bits.unset(gen, d);
+            }
+            for (IrOperand o : in.uses()) {
+                int u = index(o);
+                if (u >= 0) {
+                    Bits.set(gen, u);
+                }
+            }
+        }
+    }
+}
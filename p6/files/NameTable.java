@@ -0,0 +1,140 @@
+import java.util.*;
+
+/**
+ * NameTable
+ *
+ * Interns the identifiers of one compilation.  Every distinct spelling is
+ * stored once and is given a dense int ID (0, 1, 2, ... in order of first
+ * appearance), so the rest of the front end can key its tables on small
+ * ints instead of hashing and comparing strings over and over.
+ *
+ * The scanner interns straight from its character buffer, so an
+ * identifier that has been seen before costs no String allocation.
+ */
+public class NameTable {
+    private String[] names = new String[256];  // spelling of each ID
+    private int[] hashes = new int[256];       // hash of each ID's spelling
+    private int size = 0;
+
+    // open-addressing hash table of ID+1 (0 marks an empty slot); its
+    // length is a power of two and is kept at least twice size
+    private int[] slots = new int[512];
+
+    /**
+     * Return the ID of the len characters of buf starting at start,
+     * assigning the next free ID if they have not been seen before.
+     */
+    public int intern(char[] buf, int start, int len) {
+        int h = 0;
+        for (int k = 0; k < len; k++) {
+            h = 31 * h + buf[start + k];
+        }
+        int mask = slots.length - 1;
+        for (int s = mix(h) & mask; ; s = (s + 1) & mask) {
+            int id = slots[s] - 1;
+            if (id < 0) {
+                return add(new String(buf, start, len), h, s);
+            }
+            if (hashes[id] == h && matches(names[id], buf, start, len)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Return the ID of name, assigning the next free ID if it has not been
+     * seen before.
+     */
+    public int intern(String name) {
+        int id = find(name);
+        if (id >= 0) {
+            return id;
+        }
+        int h = name.hashCode();
+        int mask = slots.length - 1;
+        int s = mix(h) & mask;
+        while (slots[s] != 0) {
+            s = (s + 1) & mask;
+        }
+        return add(name, h, s);
+    }
+
+    /**
+     * Return the ID of name, or -1 if it has not been interned.
+     */
+    public int find(String name) {
+        int h = name.hashCode();
+        int mask = slots.length - 1;
+        for (int s = mix(h) & mask; ; s = (s + 1) & mask) {
+            int id = slots[s] - 1;
+            if (id < 0) {
+                return -1;
+            }
+            if (hashes[id] == h && names[id].equals(name)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Return the spelling of the given ID.
+     */
+    public String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * Return the number of IDs handed out so far; every ID is below it.
+     */
+    public int size() {
+        return size;
+    }
+
+    private int add(String name, int h, int slot) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, 2 * size);
+            hashes = Arrays.copyOf(hashes, 2 * size);
+        }
+        int id = size++;
+        names[id] = name;
+        hashes[id] = h;
+        slots[slot] = id + 1;
+        if (2 * size > slots.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        slots = new int[2 * slots.length];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int s = mix(hashes[id]) & mask;
+            while (slots[s] != 0) {
+                s = (s + 1) & mask;
+            }
+            slots[s] = id + 1;
+        }
+    }
+
+    /**
+     * Scramble a hash so that spellings that differ only in their last
+     * characters do not land in neighbouring slots.
+     */
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches(String name, char[] buf, int start, int len) {
+        if (name.length() != len) {
+            return false;
+        }
+        for (int k = 0; k < len; k++) {
+            if (name.charAt(k) != buf[start + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,4 +1,5 @@
 import java.io.*;
+import java.util.Arrays;
 
 import java_cup.runtime.*;
 
@@ -9,22 +10,54 @@ import java_cup.runtime.*;
  *    1. the file to be parsed
  *    2. the output MIPS file
  *
+ * Options (see setOption) may precede the two file names.
+ *
+ * Alternatively, "-batch" followed by files, directories or @listfiles
+ * compiles all of them in one JVM (see BatchCompiler), and
+ * "-server <port | unix:path>" starts a resident compile server (see
+ * CompileServer).
+ *
  * The program opens the two files, creates a scanner and a parser, and
  * calls the parser.  If the parse is successful, then it will call name
  * analysis and type checking routines. If there is no error at the end,
  * it will generate MIPS code to the output file.
  */
 public class P6 {
-	FileReader inFile;
+	Reader inFile;
 	private PrintWriter outFile;
 	private static PrintStream outStream = System.err;
 
+	// all mutable state of this compilation (diagnostics, output, labels,
+	// scanner position); bound to the running thread by process()
+	private CompilationContext ctx = new CompilationContext();
+
+	// report format for -stats; null when statistics are off
+	private String statsFormat = null;
+
 	public static final int RESULT_CORRECT = 0;
 	public static final int RESULT_SYNTAX_ERROR = 1;
 	public static final int RESULT_TYPE_ERROR = 2;
 	public static final int RESULT_NAME_ANALYSIS_ERROR = 3;
 	public static final int RESULT_OTHER_ERROR = -1;
 
+	/**
+	 * Return the name of the RESULT_ constant with the given value.
+	 */
+	public static String resultName(int resultCode) {
+		switch(resultCode) {
+		case RESULT_CORRECT:
+			return "RESULT_CORRECT";
+		case RESULT_SYNTAX_ERROR:
+			return "RESULT_SYNTAX_ERROR";
+		case RESULT_TYPE_ERROR:
+			return "RESULT_TYPE_ERROR";
+		case RESULT_NAME_ANALYSIS_ERROR:
+			return "RESULT_NAME_ANALYSIS_ERROR";
+		default:
+			return "RESULT_OTHER_ERROR";
+		}
+	}
+
 	/**
 	 * P6 constructor for client programs and testers. Note that
 	 * users MUST invoke {@link setInfile} and {@link setOutfile}
@@ -41,15 +74,24 @@ public class P6 {
 	 */
 	private P6(String[] args) {
 		//Parse arguments
-		if (args.length < 2) {
+		int k = 0;
+		try {
+			for (; k < args.length && args[k].startsWith("-"); k++) {
+				setOption(args[k]);
+			}
+		} catch (IllegalArgumentException e) {
+			pukeAndDie(e.getMessage());
+		}
+
+		if (args.length - k < 2) {
 			String msg = "please supply name of the input file "
 				+ "and name of file for assembly output.";
 			pukeAndDie(msg);
 		}
 
 		try {
-			setInfile(args[0]);
-			setOutfile(args[1]);
+			setInfile(args[k]);
+			setOutfile(args[k + 1]);
 		} catch(BadInfileException e) {
 			pukeAndDie(e.getMessage());
 		} catch(BadOutfileException e) {
@@ -81,6 +123,70 @@ public class P6 {
 		}
 	}
 
+	/**
+	 * Source code from an already open reader, e.g. for in-memory sources
+	 * @param reader source text
+	 */
+	public void setInput(Reader reader) {
+		inFile = reader;
+	}
+
+	/**
+	 * Assembly output to an already open writer
+	 * @param writer destination of the generated code
+	 */
+	public void setOutput(PrintWriter writer) {
+		outFile = writer;
+	}
+
+	/**
+	 * Apply one command-line style option to this compilation:
+	 *    -stats[=text|json]  report timing and counters
+	 *    -O                  turn on all optimizations
+	 *    -f<name>            turn on one optimization (see
+	 *                        CompilationContext.OPTIMIZATIONS)
+	 *    -fno-<name>         turn it off again
+	 *    -dump-ir            write the IR of each function to the report
+	 *                        stream (turns on -fir)
+	 * @param opt the option, including its leading '-'
+	 * @throws IllegalArgumentException if the option is not recognized
+	 */
+	public void setOption(String opt) {
+		if (opt.equals("-stats") || opt.equals("-stats=text")) {
+			statsFormat = "text";
+		} else if (opt.equals("-stats=json")) {
+			statsFormat = "json";
+		} else if (opt.equals("-O")) {
+			for (String name : CompilationContext.OPTIMIZATIONS) {
+				ctx.setOptimization(name, true);
+			}
+		} else if (opt.equals("-dump-ir")) {
+			ctx.setOptimization("ir", true);
+			ctx.setIrDump(new PrintWriter(outStream, true));
+		} else if (opt.startsWith("-fno-")) {
+			ctx.setOptimization(opt.substring(5), false);
+		} else if (opt.startsWith("-f")) {
+			ctx.setOptimization(opt.substring(2), true);
+		} else {
+			throw new IllegalArgumentException("unknown option " + opt);
+		}
+		if (statsFormat != null) {
+			ctx.enableStats();
+		}
+	}
+
+	/**
+	 * Return the -stats report of the last process() call in the requested
+	 * format, or null if statistics were not asked for.
+	 */
+	public String getStatsReport() {
+		CompileStats stats = ctx.getStats();
+		if (stats == null) {
+			return null;
+		}
+		return statsFormat.equals("json") ? stats.toJson() : stats.toText();
+	}
+
 	/**
 	 * Perform cleanup at the end of parsing. This should be called
 	 * after both good and bad input so that the files are all in a
@@ -130,39 +236,103 @@ public class P6 {
 	 */
 	private Symbol parseCFG() {
 		try {
-			parser P = new parser(new Yylex(inFile));
+			Scanner scanner = new Yylex(inFile);
+			final CompileStats stats = ctx.getStats();
+			if (stats != null) {
+				final Scanner yylex = scanner;
+				scanner = new Scanner() {
+					public Symbol next_token() throws Exception {
+						stats.count(CompileStats.TOKENS, 1);
+						return yylex.next_token();
+					}
+				};
+			}
+			parser P = new parser(scanner);
 			return P.parse();
 		} catch (Exception e) {
 			return null;
 		}
 	}
 
+	/**
+	 * The compilation context used by this instance. Clients may use it to
+	 * redirect or collect diagnostics.
+	 */
+	public CompilationContext getContext() {
+		return ctx;
+	}
+
+	/**
+	 * Run the compiler against this instance's CompilationContext. The
+	 * context is bound to the calling thread only for the duration of the
+	 * call, so separate P6 instances may run concurrently on separate
+	 * threads.
+	 */
 	public int process() {
+		CompilationContext prev = CompilationContext.bind(ctx);
+		try {
+			return compile();
+		} finally {
+			endPhase();
+			CompilationContext.bind(prev);
+		}
+	}
+
+	/**
+	 * Start timing a phase if statistics are on; counter names the
+	 * counter that measures the phase's throughput.
+	 */
+	private void startPhase(String name, String counter) {
+		if (ctx.getStats() != null) {
+			ctx.getStats().startPhase(name, counter);
+		}
+	}
+
+	private void endPhase() {
+		if (ctx.getStats() != null) {
+			ctx.getStats().endPhase();
+		}
+	}
+
+	private int compile() {
+		startPhase("parse", CompileStats.TOKENS);
 		Symbol cfgRoot = parseCFG();
 
-		ProgramNode astRoot = (ProgramNode)cfgRoot.value;
-		if (ErrMsg.getErr()) {
+		if (cfgRoot == null || ErrMsg.getErr()) {
 			return P6.RESULT_SYNTAX_ERROR;
 		}
+		ProgramNode astRoot = (ProgramNode)cfgRoot.value;
 
+		startPhase("nameAnalysis", CompileStats.SYMBOLS);
 		astRoot.nameAnalysis();	 // perform name analysis
 		if (ErrMsg.getErr()) {
 			return P6.RESULT_NAME_ANALYSIS_ERROR;
 		}
 
+		startPhase("typeCheck", null);
 		astRoot.typeCheck();
 		if (ErrMsg.getErr()) {
 			return P6.RESULT_TYPE_ERROR;
 		}
 
+		if (ctx.isOptimizing("constfold")) {
+			startPhase("constfold", null);
+			astRoot.fold();
+		}
+		if (ctx.isOptimizing("dce")) {
+			startPhase("dce", null);
+			astRoot.eliminateDeadCode();
+		}
+
 		//////////////////////////
 		// TODO: Calling codeGen   //
 		//////////////////////////
 		
 		if(!ErrMsg.getErr()){
-			Codegen.p = outFile;
+			startPhase("codeGen", CompileStats.INSTRUCTIONS);
+			ctx.setOutput(outFile);
 			astRoot.codeGen();
-			Codegen.p.close();
+			outFile.close();
 		}
 		
 
@@ -171,6 +341,9 @@ public class P6 {
 
 	public void run() {
 		int resultCode = process();
+		if (statsFormat != null) {
+			outStream.println(getStatsReport());
+		}
 		if (resultCode == RESULT_CORRECT) {
 			cleanup();
 			return;
@@ -219,7 +392,50 @@ public class P6 {
 	}
 
 	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("-batch")) {
+			runBatch(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-server")) {
+			runServer(args);
+			return;
+		}
 		P6 instance = new P6(args);
 		instance.run();
 	}
+
+	private static void runServer(String[] args) {
+		if (args.length < 2) {
+			outStream.println("please supply a loopback port or unix:<path> to listen on.");
+			System.exit(-1);
+		}
+		try {
+			new CompileServer(args[1]).serve();
+		} catch (IllegalArgumentException e) {
+			// not a port number, or out of range
+			outStream.println("please supply a loopback port or unix:<path> to listen on.");
+			System.exit(-1);
+		} catch (IOException e) {
+			outStream.println(e.getMessage());
+			System.exit(-1);
+		}
+	}
+
+	private static void runBatch(String[] args) {
+		int resultCode;
+		try {
+			BatchCompiler batch = new BatchCompiler(args);
+			if (batch.getInputs().isEmpty()) {
+				outStream.println("please supply the files or directories to compile.");
+				System.exit(-1);
+			}
+			resultCode = batch.run();
+		} catch (IOException e) {
+			outStream.println(e.getMessage());
+			resultCode = RESULT_OTHER_ERROR;
+		} catch (InterruptedException e) {
+			resultCode = RESULT_OTHER_ERROR;
+		}
+		System.exit(resultCode);
+	}
 }
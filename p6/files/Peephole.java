@@ -0,0 +1,367 @@
+import java.util.*;
+
+/**
+ * Peephole
+ *
+ * A peephole optimizer over the Instr list of one function.  It tries each
+ * of its rules at every position of the list, and goes over the list again
+ * until no rule applies anywhere.
+ *
+ * Rules only ever delete instructions or replace them with others, never
+ * insert: a rule deletes an instruction by setting its entry in the list to
+ * null, so that positions (and the label map) stay valid while a pass is
+ * under way.  The nulls are squeezed out at the end of each pass.
+ *
+ * The number of instructions each rule removed is added to the statistics
+ * counter "peephole.<rule name>".
+ */
+public class Peephole {
+    private List<PeepholeRule> rules = new ArrayList<PeepholeRule>();
+
+    // position of each label in the list being optimized
+    private Map<String, Integer> labels = new HashMap<String, Integer>();
+
+    /**
+     * Return an optimizer with the standard rules.
+     */
+    public static Peephole standard() {
+        Peephole p = new Peephole();
+        p.addRule(new PushPopRule());
+        p.addRule(new BoolBranchRule());
+        p.addRule(new JumpToNextRule());
+        p.addRule(new MoveRule());
+        return p;
+    }
+
+    public void addRule(PeepholeRule rule) {
+        rules.add(rule);
+    }
+
+    /**
+     * Optimize code in place.
+     */
+    public void run(List<Instr> code) {
+        CompilationContext ctx = CompilationContext.current();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            mapLabels(code);
+            for (int i = 0; i < code.size(); i++) {
+                for (PeepholeRule rule : rules) {
+                    if (code.get(i) == null) {
+                        break;
+                    }
+                    int removed = rule.apply(this, code, i);
+                    if (removed > 0) {
+                        ctx.count("peephole." + rule.getName(), removed);
+                        changed = true;
+                    }
+                }
+            }
+            code.removeAll(Collections.singleton(null));
+        }
+    }
+
+    private void mapLabels(List<Instr> code) {
+        labels.clear();
+        for (int i = 0; i < code.size(); i++) {
+            String label = code.get(i).getLabel();
+            if (label != null) {
+                labels.put(label, i);
+            }
+        }
+    }
+
+    // **********************************************************************
+    // helpers for the rules
+    // **********************************************************************
+
+    /**
+     * Return the position of the first entry after i that has not been
+     * deleted, or code.size() if there is none.
+     */
+    public int next(List<Instr> code, int i) {
+        do {
+            i++;
+        } while (i < code.size() && code.get(i) == null);
+        return i;
+    }
+
+    /**
+     * Return the position of label, or -1 if it is not in the list.
+     */
+    public int labelIndex(String label) {
+        Integer i = labels.get(label);
+        return i == null ? -1 : i;
+    }
+
+    /**
+     * Is the value in reg unused once the instruction at i has executed?
+     * Follows every path out of i (fall through, branch and jump targets)
+     * until reg is overwritten, and answers no if any path reads reg, or
+     * leaves the list other than by a return.
+     */
+    public boolean isDeadAfter(List<Instr> code, int i, String reg) {
+        BitSet seen = new BitSet(code.size());
+        Deque<Integer> work = new ArrayDeque<Integer>();
+        if (!follow(code, i, work)) {
+            return false;
+        }
+        while (!work.isEmpty()) {
+            int k = work.pop();
+            if (k >= code.size()) {
+                return false;
+            }
+            if (seen.get(k)) {
+                continue;
+            }
+            seen.set(k);
+            Instr in = code.get(k);
+            if (in == null) {
+                work.push(k + 1);
+                continue;
+            }
+            if (in.reads(reg)) {
+                return false;
+            }
+            if (in.writes(reg)) {
+                continue;
+            }
+            if (!follow(code, k, work)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Push the successors of the instruction at k onto work; return false
+     * if one of them is not known.
+     */
+    private boolean follow(List<Instr> code, int k, Deque<Integer> work) {
+        Instr in = code.get(k);
+        String op = in.getOpcode();
+        if (op.equals("jr")) {
+            return true;
+        }
+        if (op.equals("j") || in.isBranch()) {
+            int target = labelIndex(in.getArg(in.numArgs() - 1));
+            if (target < 0) {
+                return false;
+            }
+            work.push(target);
+            if (op.equals("j")) {
+                return true;
+            }
+        }
+        work.push(k + 1);
+        return true;
+    }
+}
+
+/**
+ * A PeepholeRule looks for one pattern of instructions.
+ */
+interface PeepholeRule {
+    /**
+     * Return the name under which the rule's work is counted.
+     */
+    String getName();
+
+    /**
+     * If the pattern starts at position i of code (which is not null),
+     * rewrite it and return the number of instructions removed; otherwise
+     * leave code alone and return 0.
+     */
+    int apply(Peephole p, List<Instr> code, int i);
+}
+
+/**
+ * A push of R followed (after at most a few instructions that neither touch
+ * memory or the stack nor change R) by a pop into S:
+ *     sw    R, 0($sp)
+ *     subu  $sp, $sp, 4
+ *     ...
+ *     lw    S, 4($sp)
+ *     addu  $sp, $sp, 4
+ * becomes "move S, R" in place of the pop, or nothing at all if S is R.
+ */
+class PushPopRule implements PeepholeRule {
+    // the most instructions allowed between the push and the pop
+    private static final int WINDOW = 8;
+
+    public String getName() {
+        return "pushPop";
+    }
+
+    public int apply(Peephole p, List<Instr> code, int i) {
+        Instr push = code.get(i);
+        if (push.getForm() != Instr.INDEXED || !push.getOpcode().equals("sw")
+                || !push.getArg(1).equals(Codegen.SP) || push.getOffset() != 0) {
+            return 0;
+        }
+        String r = push.getArg(0);
+        int sub = p.next(code, i);
+        if (sub == code.size() || !code.get(sub).is("subu", Codegen.SP, Codegen.SP, "4")) {
+            return 0;
+        }
+
+        int pop = p.next(code, sub);
+        for (int n = 0; pop < code.size() && isTransparent(code.get(pop), r); n++) {
+            if (n == WINDOW) {
+                return 0;
+            }
+            pop = p.next(code, pop);
+        }
+        if (pop == code.size()) {
+            return 0;
+        }
+        Instr in = code.get(pop);
+        if (in.getForm() != Instr.INDEXED || !in.getOpcode().equals("lw")
+                || !in.getArg(1).equals(Codegen.SP) || in.getOffset() != 4) {
+            return 0;
+        }
+        String s = in.getArg(0);
+        int add = p.next(code, pop);
+        if (add == code.size() || !code.get(add).is("addu", Codegen.SP, Codegen.SP, "4")) {
+            return 0;
+        }
+
+        code.set(i, null);
+        code.set(sub, null);
+        code.set(add, null);
+        if (s.equals(r)) {
+            code.set(pop, null);
+            return 4;
+        }
+        code.set(pop, Instr.op("move", "", s, r));
+        return 3;
+    }
+
+    /**
+     * May in sit between the push of r and the pop?
+     */
+    private static boolean isTransparent(Instr in, String r) {
+        if (in.getForm() != Instr.OP) {
+            return false;
+        }
+        String op = in.getOpcode();
+        if (op.equals("")) {
+            return true;  // a comment
+        }
+        return !op.equals("lw") && !op.equals("sw") && !op.equals("j")
+            && !op.equals("jal") && !op.equals("jr") && !op.equals("syscall")
+            && !in.isBranch() && !in.reads(Codegen.SP)
+            && !in.writes(Codegen.SP) && !in.writes(r);
+    }
+}
+
+/**
+ * A comparison against zero loaded just for it:
+ *     li   T, 0
+ *     bne  A, T, L
+ * becomes a comparison against $zero (bne A, $zero, L; likewise for beq),
+ * provided T is not used afterwards.  Only FALSE is rewritten this way: A
+ * may be an int as well as a bool since conditions compile to branches
+ * (see ExpNode.genBranch), so comparing against TRUE cannot be turned into
+ * a test against zero.
+ */
+class BoolBranchRule implements PeepholeRule {
+    public String getName() {
+        return "boolBranch";
+    }
+
+    public int apply(Peephole p, List<Instr> code, int i) {
+        Instr li = code.get(i);
+        if (li.getForm() != Instr.OP || !li.getOpcode().equals("li")
+                || li.numArgs() != 2) {
+            return 0;
+        }
+        String t = li.getArg(0);
+        String value = li.getArg(1);
+        if (!value.equals(Codegen.FALSE)) {
+            return 0;
+        }
+        int b = p.next(code, i);
+        if (b == code.size()) {
+            return 0;
+        }
+        Instr branch = code.get(b);
+        String op = branch.getOpcode();
+        if (branch.getForm() != Instr.OP || !(op.equals("beq") || op.equals("bne"))
+                || branch.numArgs() != 3 || !branch.getArg(1).equals(t)
+                || branch.getArg(0).equals(t) || !p.isDeadAfter(code, b, t)) {
+            return 0;
+        }
+
+        code.set(i, null);
+        code.set(b, Instr.op(op, branch.getComment(), branch.getArg(0),
+                             Codegen.ZERO, branch.getArg(2)));
+        return 1;
+    }
+}
+
+/**
+ * A jump to a label that follows it with nothing but other labels and
+ * comments in between:
+ *     j    L
+ *  L:
+ * is dropped.
+ */
+class JumpToNextRule implements PeepholeRule {
+    public String getName() {
+        return "jumpToNext";
+    }
+
+    public int apply(Peephole p, List<Instr> code, int i) {
+        Instr jump = code.get(i);
+        if (jump.getForm() != Instr.OP || !jump.getOpcode().equals("j")) {
+            return 0;
+        }
+        String target = jump.getArg(0);
+        for (int k = p.next(code, i); k < code.size(); k = p.next(code, k)) {
+            Instr in = code.get(k);
+            if (target.equals(in.getLabel())) {
+                code.set(i, null);
+                return 1;
+            }
+            if (in.isInstruction() || (in.getForm() == Instr.RAW
+                                       && !in.getComment().equals(""))) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+}
+
+/**
+ * A move that changes nothing:
+ *     move  A, A              move  A, B
+ *                             move  B, A     (the second one)
+ * or whose destination is not used afterwards, is dropped.
+ */
+class MoveRule implements PeepholeRule {
+    public String getName() {
+        return "move";
+    }
+
+    public int apply(Peephole p, List<Instr> code, int i) {
+        Instr move = code.get(i);
+        if (move.getForm() != Instr.OP || !move.getOpcode().equals("move")
+                || move.numArgs() != 2) {
+            return 0;
+        }
+        String a = move.getArg(0);
+        String b = move.getArg(1);
+        if (a.equals(b) || p.isDeadAfter(code, i, a)) {
+            code.set(i, null);
+            return 1;
+        }
+        int k = p.next(code, i);
+        if (k < code.size() && code.get(k).is("move", b, a)) {
+            code.set(k, null);
+            return 1;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,96 @@
+import java.util.*;
+
+/**
+ * ReachingDefs
+ *
+ * Which definitions of temporaries and local variables may reach each
+ * point without being overwritten: a forward may problem.  A definition
+ * is an instruction with a destination, and fact i is the i'th of those
+ * in the function.  As in Liveness, globals are not tracked: any call may
+ * define them.
+ */
+public class ReachingDefs extends Dataflow {
+    private List<IrInstr> defs;
+    private Map<IrInstr, Integer> numbers;
+    private Map<IrOperand, long[]> defsOf;
+
+    public ReachingDefs(IrFunction fn) {
+        this(new Cfg(fn), definitions(fn));
+    }
+
+    private ReachingDefs(Cfg cfg, List<IrInstr> defs) {
+        super(cfg, defs.size(), true, true);
+        this.defs = defs;
+        numbers = new IdentityHashMap<IrInstr, Integer>();
+        defsOf = new HashMap<IrOperand, long[]>();
+        for (int i = 0; i < defs.size(); i++) {
+            IrInstr d = defs.get(i);
+            numbers.put(d, i);
+            long[] s = defsOf.get(d.getDest());
+            if (s == null) {
+                s = Bits.newSet(size);
+                defsOf.put(d.getDest(), s);
+            }
+            Bits.set(s, i);
+        }
+        solve();
+    }
+
+    private static List<IrInstr> definitions(IrFunction fn) {
+        List<IrInstr> defs = new ArrayList<IrInstr>();
+        for (IrInstr in : fn.getCode()) {
+            IrOperand d = in.getDest();
+            if (d != null && !(d.isVar() && d.getSym().getGlobal())) {
+                defs.add(in);
+            }
+        }
+        return defs;
+    }
+
+    /**
+     * Return definition number i.
+     */
+    public IrInstr getDef(int i) {
+        return defs.get(i);
+    }
+
+    /**
+     * Return the number of definition in, or -1 if it is not one.
+     */
+    public int defIndex(IrInstr in) {
+        Integer i = numbers.get(in);
+        return i == null ? -1 : i;
+    }
+
+    /**
+     * Return the set of definitions of o (empty if o is not tracked).
+     */
+    public long[] defsOf(IrOperand o) {
+        long[] s = defsOf.get(o);
+        return s == null ? Bits.newSet(size) : s;
+    }
+
+    /**
+     * Update reach, the set reaching in, to the set reaching the
+     * instruction after it.
+     */
+    public void step(IrInstr in, long[] reach) {
+        int i = defIndex(in);
+        if (i >= 0) {
+            Bits.andNot(reach, defsOf(in.getDest()));
+            Bits.set(reach, i);
+        }
+    }
+
+    protected void transfer(BasicBlock b, long[] gen, long[] kill) {
+        for (IrInstr in : b.getInstrs()) {
+            int i = defIndex(in);
+            if (i >= 0) {
+                long[] all = defsOf(in.getDest());
+                Bits.union(kill, all);
+                Bits.andNot(gen, all);
+                Bits.set(gen, i);
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+import java.util.*;
+
+/**
+ * RegAlloc
+ *
+ * Linear-scan register allocation for the int and bool locals and
+ * parameters of one function.
+ *
+ * Name analysis feeds the allocator as it walks the function body in
+ * source order: every declaration, use, call and loop boundary is one tick
+ * of a clock.  A call covers the ticks of its arguments as well, since the
+ * code generator does not evaluate them in source order.
+ *
+ * A variable's live interval runs from its declaration (the entry, for a
+ * parameter) to its last use; if it is used inside a loop, the interval is
+ * stretched to the end of the loop, since the back edge carries the value
+ * around again.  Each use is weighted by 8 to the power of its loop depth.
+ *
+ * allocate() then scans the intervals in order of their start.  Variables
+ * whose interval contains no call may go in $t8 or $t9; all others need a
+ * callee-saved $s register.  When no register is free, the variable (among
+ * the current one and those holding a suitable register) with the smallest
+ * weight is spilled: it stays in its frame slot for the whole function.
+ * The allocated register is recorded in the variable's TSym.
+ */
+public class RegAlloc {
+    private static final String[] CALLER_SAVED = { "$t8", "$t9" };
+    private static final String[] CALLEE_SAVED = {
+        "$s0", "$s1", "$s2", "$s3", "$s4", "$s5", "$s6", "$s7"
+    };
+
+    // a variable kept in a register must be referenced at least this
+    // (weighted) number of times to pay for the register's save, restore
+    // and (for a parameter) initial load
+    private static final double MIN_WEIGHT = 3;
+
+    // loop depth beyond which uses count no more
+    private static final int MAX_DEPTH = 5;
+
+    /**
+     * The live interval of one variable.
+     */
+    private static class Interval {
+        TSym sym;
+        boolean param;
+        int start;
+        int end;
+        double weight = 0;
+        String reg = null;
+
+        Interval(TSym sym, boolean param, int start) {
+            this.sym = sym;
+            this.param = param;
+            this.start = start;
+            this.end = start;
+        }
+    }
+
+    private Map<TSym, Interval> intervals = new IdentityHashMap<TSym, Interval>();
+    private List<Interval> order = new ArrayList<Interval>();  // by start
+    private List<int[]> calls = new ArrayList<int[]>();        // {start, end}
+    private Deque<Integer> loops = new ArrayDeque<Integer>();  // start of each
+                                                               // enclosing loop
+    private int clock = 0;
+
+    // results of allocate()
+    private List<String> savedRegs = new ArrayList<String>();
+    private List<TSym> paramsInRegs = new ArrayList<TSym>();
+
+    // **********************************************************************
+    // gathering (during name analysis)
+    // **********************************************************************
+
+    /**
+     * Record the declaration of a local (param false) or parameter.  Only
+     * ints and bools are candidates for registers.
+     */
+    public void declare(TSym sym, boolean param) {
+        if (sym == null || !(sym.getType().isIntType() || sym.getType().isBoolType())) {
+            return;
+        }
+        Interval iv = new Interval(sym, param, param ? 0 : ++clock);
+        intervals.put(sym, iv);
+        order.add(iv);
+    }
+
+    /**
+     * Record a use of sym; symbols that were not declared here (globals,
+     * functions, structs) are ignored.
+     */
+    public void use(TSym sym) {
+        Interval iv = intervals.get(sym);
+        if (iv == null) {
+            return;
+        }
+        iv.end = ++clock;
+        iv.weight += Math.pow(8, Math.min(loops.size(), MAX_DEPTH));
+    }
+
+    /**
+     * Record the start of a call, before its arguments are analyzed, and
+     * return a handle to pass to endCall once they have been.
+     */
+    public int[] startCall() {
+        int[] span = { ++clock, 0 };
+        calls.add(span);
+        return span;
+    }
+
+    public void endCall(int[] span) {
+        span[1] = ++clock;
+    }
+
+    public void enterLoop() {
+        loops.push(++clock);
+    }
+
+    /**
+     * Stretch every interval that reaches into the loop being left to the
+     * end of the loop.
+     */
+    public void exitLoop() {
+        int loopStart = loops.pop();
+        int loopEnd = ++clock;
+        for (Interval iv : order) {
+            if (iv.end > loopStart) {
+                iv.end = loopEnd;
+            }
+        }
+    }
+
+    // **********************************************************************
+    // allocation
+    // **********************************************************************
+
+    /**
+     * Assign registers and record them in the TSyms of the variables.
+     */
+    public void allocate() {
+        // intervals holding a register, and the registers free right now
+        List<Interval> active = new ArrayList<Interval>();
+        Set<String> free = new LinkedHashSet<String>();
+        free.addAll(Arrays.asList(CALLER_SAVED));
+        free.addAll(Arrays.asList(CALLEE_SAVED));
+        Set<String> used = new HashSet<String>();
+        int spilled = 0;
+
+        for (Interval iv : order) {
+            if (iv.weight < MIN_WEIGHT) {
+                continue;
+            }
+            for (Iterator<Interval> it = active.iterator(); it.hasNext(); ) {
+                Interval a = it.next();
+                if (a.end < iv.start) {
+                    free.add(a.reg);
+                    it.remove();
+                }
+            }
+
+            boolean crossesCall = crossesCall(iv);
+            String reg = null;
+            for (String r : free) {
+                if (!crossesCall || isCalleeSaved(r)) {
+                    reg = r;
+                    break;
+                }
+            }
+
+            if (reg == null) {
+                // spill the lightest of iv and the intervals in registers
+                // that iv could use
+                Interval victim = iv;
+                for (Interval a : active) {
+                    if ((!crossesCall || isCalleeSaved(a.reg)) && a.weight < victim.weight) {
+                        victim = a;
+                    }
+                }
+                spilled++;
+                if (victim == iv) {
+                    continue;
+                }
+                reg = victim.reg;
+                victim.reg = null;
+                active.remove(victim);
+            } else {
+                free.remove(reg);
+            }
+            iv.reg = reg;
+            active.add(iv);
+            used.add(reg);
+        }
+
+        for (String r : CALLEE_SAVED) {
+            if (used.contains(r)) {
+                savedRegs.add(r);
+            }
+        }
+        int allocated = 0;
+        for (Interval iv : order) {
+            iv.sym.setRegister(iv.reg);
+            if (iv.reg != null) {
+                allocated++;
+                if (iv.param) {
+                    paramsInRegs.add(iv.sym);
+                }
+            }
+        }
+        CompilationContext ctx = CompilationContext.current();
+        ctx.count("regalloc.registers", allocated);
+        ctx.count("regalloc.spills", spilled);
+    }
+
+    /**
+     * Return the callee-saved registers the function uses, which its
+     * prologue must save and its epilogue restore.
+     */
+    public List<String> getSavedRegs() {
+        return savedRegs;
+    }
+
+    /**
+     * Return the parameters that live in registers, which the prologue
+     * must load from the stack.
+     */
+    public List<TSym> getParamsInRegs() {
+        return paramsInRegs;
+    }
+
+    private boolean crossesCall(Interval iv) {
+        for (int[] span : calls) {
+            if (span[0] < iv.end && span[1] > iv.start) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isCalleeSaved(String reg) {
+        return reg.startsWith("$s");
+    }
+}
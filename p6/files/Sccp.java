@@ -0,0 +1,329 @@
+import java.util.*;
+
+/**
+ * Sccp
+ *
+ * Sparse conditional constant propagation (Wegman and Zadeck) on the SSA
+ * form of a function (see Ssa).  Every version starts out unknown ("top")
+ * and every edge of the Cfg unexecuted; starting from the entry, the
+ * solver evaluates the instructions of each block control can reach,
+ * follows only the edges a branch can take given what is known of its
+ * operands, and lowers a version to a constant, or to "varies"
+ * ("bottom"), when its definition shows it.  A phi only meets the
+ * arguments coming in along executed edges, so a flag that is set once and
+ * tested in a loop stays constant through the loop.
+ *
+ * Afterwards constants replace the versions they name, instructions
+ * computing a constant become copies of it, branches whose outcome is
+ * known become gotos or go away, and blocks never reached are deleted.
+ *
+ * Folding follows the run-time semantics: add, sub and neg that overflow,
+ * and div by zero or of the least int by -1, trap, so they are never
+ * folded.
+ */
+public class Sccp {
+    private static final int TOP = 0;
+    private static final int CONST = 1;
+    private static final int BOTTOM = 2;
+
+    private Ssa ssa;
+    private Cfg cfg;
+    private int[] state;          // of each version
+    private int[] value;          // of each CONST version
+    private boolean[] reached;    // by block id
+    private boolean[][] executed; // by block id and predecessor index
+    private Deque<BasicBlock[]> edges = new ArrayDeque<BasicBlock[]>();
+    private Deque<Integer> versions = new ArrayDeque<Integer>();
+
+    public static void run(IrFunction fn) {
+        Sccp sccp = new Sccp(new Ssa(fn));
+        sccp.solve();
+        sccp.rewrite();
+        sccp.ssa.leave();
+    }
+
+    private Sccp(Ssa ssa) {
+        this.ssa = ssa;
+        cfg = ssa.getCfg();
+        int n = ssa.getNumVersions();
+        state = new int[n];
+        value = new int[n];
+        for (int v = 0; v < n; v++) {
+            if (ssa.getDef(v) == null) {
+                state[v] = BOTTOM;
+            }
+        }
+        List<BasicBlock> blocks = cfg.getBlocks();
+        reached = new boolean[blocks.size()];
+        executed = new boolean[blocks.size()][];
+        for (BasicBlock b : blocks) {
+            executed[b.getId()] = new boolean[b.getPreds().size()];
+        }
+    }
+
+    // **********************************************************************
+    // solving
+    // **********************************************************************
+
+    private void solve() {
+        edges.add(new BasicBlock[] { null, cfg.getEntry() });
+        while (!edges.isEmpty() || !versions.isEmpty()) {
+            if (!edges.isEmpty()) {
+                BasicBlock[] e = edges.poll();
+                visitEdge(e[0], e[1]);
+            } else {
+                for (IrInstr in : ssa.getUses(versions.poll())) {
+                    BasicBlock b = ssa.getBlock(in);
+                    if (b == null || !reached[b.getId()]) {
+                        continue;
+                    }
+                    if (in.isPhi()) {
+                        evalPhi(in, b);
+                    } else if (in.isBranch()) {
+                        flow(b);
+                    } else {
+                        eval(in);
+                    }
+                }
+            }
+        }
+    }
+
+    private void visitEdge(BasicBlock from, BasicBlock b) {
+        if (from != null) {
+            int j = b.getPreds().indexOf(from);
+            if (executed[b.getId()][j]) {
+                return;
+            }
+            executed[b.getId()][j] = true;
+        }
+        for (IrInstr in : b.getInstrs()) {
+            if (in.isPhi()) {
+                evalPhi(in, b);
+            }
+        }
+        if (reached[b.getId()]) {
+            return;
+        }
+        reached[b.getId()] = true;
+        for (IrInstr in : b.getInstrs()) {
+            if (!in.isPhi()) {
+                eval(in);
+            }
+        }
+        flow(b);
+    }
+
+    /**
+     * Mark the edges out of b that control may take.
+     */
+    private void flow(BasicBlock b) {
+        IrInstr last = b.last();
+        if (last == null || !last.isBranch()) {
+            for (BasicBlock s : b.getSuccs()) {
+                edges.add(new BasicBlock[] { b, s });
+            }
+            return;
+        }
+        int known = outcome(last);
+        if (known == TOP) {
+            return;
+        }
+        for (BasicBlock s : b.getSuccs()) {
+            boolean isTarget = target(s, last.getLabel());
+            boolean isNext = s.getId() == b.getId() + 1;
+            if (known == BOTTOM || (taken(last) ? isTarget : isNext)) {
+                edges.add(new BasicBlock[] { b, s });
+            }
+        }
+    }
+
+    /**
+     * Return what is known of whether branch is taken: TOP (nothing yet),
+     * CONST (see taken) or BOTTOM (it may go either way).
+     */
+    private int outcome(IrInstr branch) {
+        int sa = stateOf(branch.getA());
+        int sb = stateOf(branch.getB());
+        if (sa == BOTTOM || sb == BOTTOM) {
+            return BOTTOM;
+        }
+        return sa == TOP || sb == TOP ? TOP : CONST;
+    }
+
+    /**
+     * Is branch, whose outcome is CONST, taken?
+     */
+    private boolean taken(IrInstr branch) {
+        int a = valueOf(branch.getA());
+        int b = valueOf(branch.getB());
+        switch (branch.getOp()) {
+        case "blt": return a < b;
+        case "bgt": return a > b;
+        case "ble": return a <= b;
+        case "bge": return a >= b;
+        case "beq": return a == b;
+        default:    return a != b;
+        }
+    }
+
+    /**
+     * Is label one of the labels s starts with?
+     */
+    private static boolean target(BasicBlock s, String label) {
+        for (IrInstr in : s.getInstrs()) {
+            if (!in.getOp().equals("label")) {
+                break;
+            } else if (in.getLabel().equals(label)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void evalPhi(IrInstr phi, BasicBlock b) {
+        int v = phi.getDest().getVersion();
+        IrOperand[] args = phi.getArgs();
+        for (int j = 0; j < args.length; j++) {
+            if (executed[b.getId()][j] && args[j] != null) {
+                lower(v, stateOf(args[j]), valueOf(args[j]));
+            }
+        }
+    }
+
+    private void eval(IrInstr in) {
+        IrOperand dest = in.getDest();
+        if (dest == null || dest.getVersion() < 0) {
+            return;
+        }
+        String op = in.getOp();
+        int v = dest.getVersion();
+        if (op.equals("call") || op.equals("read") || op.equals("readb")) {
+            lower(v, BOTTOM, 0);
+            return;
+        }
+        int sa = stateOf(in.getA());
+        int sb = in.getB() == null ? CONST : stateOf(in.getB());
+        if (sa == BOTTOM || sb == BOTTOM) {
+            lower(v, BOTTOM, 0);
+        } else if (sa == CONST && sb == CONST) {
+            Integer r = fold(op, valueOf(in.getA()), in.getB() == null ? 0 : valueOf(in.getB()));
+            if (r == null) {
+                lower(v, BOTTOM, 0);
+            } else {
+                lower(v, CONST, r);
+            }
+        }
+    }
+
+    /**
+     * Return the result of op on a and b, or null if it traps.
+     */
+    private static Integer fold(String op, int a, int b) {
+        try {
+            switch (op) {
+            case "copy": return a;
+            case "neg":  return Math.negateExact(a);
+            case "not":  return a ^ 1;
+            case "add":  return Math.addExact(a, b);
+            case "sub":  return Math.subtractExact(a, b);
+            case "mul":  return a * b;
+            case "div":
+                if (b == 0 || (a == Integer.MIN_VALUE && b == -1)) {
+                    return null;
+                }
+                return a / b;
+            case "slt":  return a < b ? 1 : 0;
+            case "sgt":  return a > b ? 1 : 0;
+            case "sle":  return a <= b ? 1 : 0;
+            case "sge":  return a >= b ? 1 : 0;
+            case "seq":  return a == b ? 1 : 0;
+            case "sne":  return a != b ? 1 : 0;
+            default:     return null;
+            }
+        } catch (ArithmeticException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Move version v down the lattice to (s, val), if that is lower.
+     */
+    private void lower(int v, int s, int val) {
+        if (s == TOP || state[v] == BOTTOM) {
+            return;
+        }
+        if (s == CONST && state[v] == CONST && value[v] == val) {
+            return;
+        }
+        if (state[v] == CONST) {
+            s = BOTTOM;
+        }
+        state[v] = s;
+        value[v] = val;
+        versions.add(v);
+    }
+
+    private int stateOf(IrOperand o) {
+        if (o.isConst()) {
+            return CONST;
+        }
+        return o.getVersion() < 0 ? BOTTOM : state[o.getVersion()];
+    }
+
+    private int valueOf(IrOperand o) {
+        return o.isConst() ? o.getValue() : o.getVersion() < 0 ? 0 : value[o.getVersion()];
+    }
+
+    // **********************************************************************
+    // rewriting
+    // **********************************************************************
+
+    private void rewrite() {
+        CompilationContext ctx = CompilationContext.current();
+        for (BasicBlock b : cfg.getBlocks()) {
+            List<IrInstr> instrs = b.getInstrs();
+            if (!reached[b.getId()]) {
+                if (!instrs.isEmpty()) {
+                    ctx.count("sccp.blocks", 1);
+                }
+                instrs.clear();
+                continue;
+            }
+            for (int k = 0; k < instrs.size(); k++) {
+                IrInstr in = instrs.get(k);
+                if (in.isPhi()) {
+                    continue;
+                }
+                in.setA(constant(in.getA()));
+                in.setB(constant(in.getB()));
+                IrOperand dest = in.getDest();
+                if (in.isBranch()) {
+                    if (outcome(in) == CONST) {
+                        ctx.count("sccp.branches", 1);
+                        if (taken(in)) {
+                            instrs.set(k, new IrInstr("goto", null, null, null, in.getLabel(), 0));
+                        } else {
+                            instrs.remove(k--);
+                        }
+                    }
+                } else if (dest != null && dest.getVersion() >= 0 && !in.getOp().equals("copy")
+                               && state[dest.getVersion()] == CONST) {
+                    IrOperand c = IrOperand.constant(value[dest.getVersion()]);
+                    instrs.set(k, new IrInstr("copy", dest, c, null, null, 0));
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the constant o is known to be, or o.
+     */
+    private IrOperand constant(IrOperand o) {
+        if (o == null || o.getVersion() < 0 || state[o.getVersion()] != CONST) {
+            return o;
+        }
+        CompilationContext.current().count("sccp.constants", 1);
+        return IrOperand.constant(value[o.getVersion()]);
+    }
+}
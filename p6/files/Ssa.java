@@ -0,0 +1,319 @@
+import java.util.*;
+
+/**
+ * Ssa
+ *
+ * Puts the IR of a function into static single assignment form: every
+ * temporary and local variable (those Liveness tracks) gets a new version
+ * at each definition, and at each join where different versions meet a
+ * phi picks the one for the path taken.  Globals stay as they are, since
+ * any call may change them.
+ *
+ * The conversion works on the function's Cfg.  It finds the dominator
+ * tree (Cooper, Harvey and Kennedy's iterative algorithm) and dominance
+ * frontiers, places phis at the iterated frontiers of each variable's
+ * definitions where the variable is live (pruned SSA), then renames
+ * along the dominator tree.  Each variable also has a version with no
+ * definition, for its value on entry.  Blocks control cannot reach are
+ * left alone.
+ *
+ * While in SSA form the code is in the blocks of getCfg(), not the
+ * function; leave() puts it back.  Versions are numbered across all the
+ * variables, so a version alone names a value.
+ */
+public class Ssa {
+    private IrFunction fn;
+    private Cfg cfg;
+    private Liveness live;
+    private List<BasicBlock> order;          // reachable, reverse postorder
+    private BasicBlock[] idom;               // by block id; null if unreachable
+    private List<List<BasicBlock>> children; // in the dominator tree
+    private List<Set<BasicBlock>> frontier;
+    private IrOperand[] vars;                // by Liveness index
+    private IrOperand[] current;             // version of each var, renaming
+
+    // the defining instruction (null for an entry value) and the uses of
+    // each version
+    private List<IrInstr> defs = new ArrayList<IrInstr>();
+    private List<List<IrInstr>> uses = new ArrayList<List<IrInstr>>();
+    private Map<IrInstr, BasicBlock> blockOf = new IdentityHashMap<IrInstr, BasicBlock>();
+
+    public Ssa(IrFunction fn) {
+        this.fn = fn;
+        cfg = new Cfg(fn);
+        live = new Liveness(fn, cfg);
+        dominators();
+        placePhis();
+        rename();
+    }
+
+    public Cfg getCfg() {
+        return cfg;
+    }
+
+    /**
+     * Return the number of versions.
+     */
+    public int getNumVersions() {
+        return defs.size();
+    }
+
+    /**
+     * Return the instruction defining version v, or null if v is the value
+     * a variable has on entry.
+     */
+    public IrInstr getDef(int v) {
+        return defs.get(v);
+    }
+
+    /**
+     * Return the instructions reading version v.
+     */
+    public List<IrInstr> getUses(int v) {
+        return uses.get(v);
+    }
+
+    /**
+     * Return the block holding in, or null if its block is unreachable.
+     */
+    public BasicBlock getBlock(IrInstr in) {
+        return blockOf.get(in);
+    }
+
+    /**
+     * Return the immediate dominator of b (the entry for the entry), or
+     * null if b is unreachable.
+     */
+    public BasicBlock getIdom(BasicBlock b) {
+        return idom[b.getId()];
+    }
+
+    // **********************************************************************
+    // dominators
+    // **********************************************************************
+
+    private void dominators() {
+        order = cfg.reversePostorder();
+        int n = cfg.getBlocks().size();
+        int[] rpo = new int[n];
+        for (int k = 0; k < order.size(); k++) {
+            rpo[order.get(k).getId()] = k;
+        }
+        idom = new BasicBlock[n];
+        BasicBlock entry = cfg.getEntry();
+        idom[entry.getId()] = entry;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock b : order) {
+                if (b == entry) {
+                    continue;
+                }
+                BasicBlock d = null;
+                for (BasicBlock p : b.getPreds()) {
+                    if (idom[p.getId()] != null) {
+                        d = d == null ? p : commonDominator(p, d, rpo);
+                    }
+                }
+                if (idom[b.getId()] != d) {
+                    idom[b.getId()] = d;
+                    changed = true;
+                }
+            }
+        }
+
+        children = new ArrayList<List<BasicBlock>>(n);
+        frontier = new ArrayList<Set<BasicBlock>>(n);
+        for (int k = 0; k < n; k++) {
+            children.add(new ArrayList<BasicBlock>());
+            frontier.add(new LinkedHashSet<BasicBlock>());
+        }
+        for (BasicBlock b : order) {
+            if (b != entry) {
+                children.get(idom[b.getId()].getId()).add(b);
+            }
+            if (b.getPreds().size() < 2) {
+                continue;
+            }
+            for (BasicBlock p : b.getPreds()) {
+                for (BasicBlock r = p; idom[r.getId()] != null && r != idom[b.getId()];
+                         r = idom[r.getId()]) {
+                    frontier.get(r.getId()).add(b);
+                }
+            }
+        }
+    }
+
+    private BasicBlock commonDominator(BasicBlock a, BasicBlock b, int[] rpo) {
+        while (a != b) {
+            while (rpo[a.getId()] > rpo[b.getId()]) {
+                a = idom[a.getId()];
+            }
+            while (rpo[b.getId()] > rpo[a.getId()]) {
+                b = idom[b.getId()];
+            }
+        }
+        return a;
+    }
+
+    // **********************************************************************
+    // phis
+    // **********************************************************************
+
+    private void placePhis() {
+        int nv = live.getSize();
+        int n = cfg.getBlocks().size();
+        vars = new IrOperand[nv];
+        List<List<BasicBlock>> sites = new ArrayList<List<BasicBlock>>(nv);
+        for (int v = 0; v < nv; v++) {
+            sites.add(new ArrayList<BasicBlock>());
+        }
+        for (BasicBlock b : order) {
+            for (IrInstr in : b.getInstrs()) {
+                for (IrOperand o : in.uses()) {
+                    if (live.index(o) >= 0) {
+                        vars[live.index(o)] = o;
+                    }
+                }
+                int v = live.index(in.getDest());
+                if (v >= 0) {
+                    vars[v] = in.getDest();
+                    List<BasicBlock> s = sites.get(v);
+                    if (s.isEmpty() || s.get(s.size() - 1) != b) {
+                        s.add(b);
+                    }
+                }
+            }
+        }
+
+        for (int v = 0; v < nv; v++) {
+            boolean[] queued = new boolean[n];
+            boolean[] hasPhi = new boolean[n];
+            Deque<BasicBlock> work = new ArrayDeque<BasicBlock>(sites.get(v));
+            for (BasicBlock b : work) {
+                queued[b.getId()] = true;
+            }
+            while (!work.isEmpty()) {
+                BasicBlock b = work.poll();
+                for (BasicBlock d : frontier.get(b.getId())) {
+                    if (hasPhi[d.getId()] || !Bits.get(live.getIn(d), v)) {
+                        continue;
+                    }
+                    insertPhi(d, vars[v]);
+                    hasPhi[d.getId()] = true;
+                    if (!queued[d.getId()]) {
+                        work.add(d);
+                        queued[d.getId()] = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Put a phi for var in b, after its labels and the phis already there.
+     */
+    private void insertPhi(BasicBlock b, IrOperand var) {
+        List<IrInstr> instrs = b.getInstrs();
+        int k = 0;
+        while (k < instrs.size()
+                   && (instrs.get(k).getOp().equals("label") || instrs.get(k).isPhi())) {
+            k++;
+        }
+        instrs.add(k, IrInstr.phi(var, b.getPreds().size()));
+        CompilationContext.current().count("ssa.phis", 1);
+    }
+
+    // **********************************************************************
+    // renaming
+    // **********************************************************************
+
+    private void rename() {
+        current = new IrOperand[vars.length];
+        for (int v = 0; v < vars.length; v++) {
+            if (vars[v] != null) {
+                current[v] = newVersion(vars[v], null);
+            }
+        }
+        rename(cfg.getEntry());
+    }
+
+    private void rename(BasicBlock b) {
+        IrOperand[] saved = current.clone();
+        for (IrInstr in : b.getInstrs()) {
+            blockOf.put(in, b);
+            if (!in.isPhi()) {
+                in.setA(use(in.getA(), in));
+                in.setB(use(in.getB(), in));
+            }
+            int v = live.index(in.getDest());
+            if (v >= 0) {
+                current[v] = newVersion(in.getDest(), in);
+                in.setDest(current[v]);
+            }
+        }
+        for (BasicBlock s : b.getSuccs()) {
+            int j = s.getPreds().indexOf(b);
+            for (IrInstr phi : s.getInstrs()) {
+                if (phi.isPhi()) {
+                    phi.getArgs()[j] = use(phi.getDest(), phi);
+                }
+            }
+        }
+        for (BasicBlock c : children.get(b.getId())) {
+            rename(c);
+        }
+        current = saved;
+    }
+
+    /**
+     * Return the current version of o, recording its use by in, or o if it
+     * is not renamed.
+     */
+    private IrOperand use(IrOperand o, IrInstr in) {
+        int v = live.index(o);
+        if (v < 0) {
+            return o;
+        }
+        IrOperand version = current[v];
+        uses.get(version.getVersion()).add(in);
+        return version;
+    }
+
+    private IrOperand newVersion(IrOperand var, IrInstr def) {
+        defs.add(def);
+        uses.add(new ArrayList<IrInstr>());
+        return var.withVersion(defs.size() - 1);
+    }
+
+    // **********************************************************************
+    // leaving SSA form
+    // **********************************************************************
+
+    /**
+     * Make the blocks of getCfg(), in order, the code of the function
+     * again, dropping the phis and versions.  This is right as long as no
+     * two versions of a variable are live at once, which holds if passes
+     * on the SSA form only replace uses by constants and delete
+     * instructions.
+     */
+    public void leave() {
+        List<IrInstr> code = fn.getCode();
+        code.clear();
+        for (BasicBlock b : cfg.getBlocks()) {
+            for (IrInstr in : b.getInstrs()) {
+                if (in.isPhi()) {
+                    continue;
+                }
+                in.setDest(strip(in.getDest()));
+                in.setA(strip(in.getA()));
+                in.setB(strip(in.getB()));
+                code.add(in);
+            }
+        }
+    }
+
+    private static IrOperand strip(IrOperand o) {
+        return o == null || o.getVersion() < 0 ? o : o.withVersion(-1);
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * StrengthReduce
+ *
+ * Code for multiplying and dividing by a constant without mult and div,
+ * which take many cycles; used by the AST code generator and IrSelector.
+ *
+ * A product keeps the low word, as mflo would: it is made of shifts and
+ * wrapping adds (addu, subu), when the constant's odd part is 1, 2^i+1
+ * or 2^i-1 and that takes at most MAX_MUL instructions.
+ *
+ * A quotient rounds toward zero, as div does.  Dividing by a power of two
+ * shifts right, after adding divisor-1 to a negative dividend; dividing
+ * by any other constant multiplies by a "magic number" and shifts the
+ * high word of the product (Granlund and Montgomery; Warren, Hacker's
+ * Delight, 10-4), adding one to a negative result.  Dividing by 0 and -1
+ * is left to div, along with what the machine does about it.
+ *
+ * Each method returns false, generating nothing, if it has no better code
+ * than mult or div.  The registers given must all be different, except
+ * that dest may be src.
+ */
+public class StrengthReduce {
+    // the most instructions a product may take
+    public static final int MAX_MUL = 3;
+
+    public static boolean enabled() {
+        return CompilationContext.current().isOptimizing("strength");
+    }
+
+    /**
+     * Generate dest = src * c, with scratch free to use.
+     */
+    public static boolean genMul(String dest, String src, int c, String scratch) {
+        if (!enabled()) {
+            return false;
+        }
+        long abs = Math.abs((long)c);
+        if (c == 0) {
+            Codegen.generate("move", dest, Codegen.ZERO);
+        } else if (c == 1) {
+            if (!dest.equals(src)) {
+                Codegen.generate("move", dest, src);
+            }
+        } else if (c == -1) {
+            Codegen.generate("subu", dest, Codegen.ZERO, src);
+        } else {
+            int zeros = Long.numberOfTrailingZeros(abs);
+            long odd = abs >> zeros;
+            int i = 64 - Long.numberOfLeadingZeros(odd - 1) - 1;  // odd = 2^i+1?
+            int j = 64 - Long.numberOfLeadingZeros(odd);          // odd = 2^j-1?
+            boolean minus = odd > 1 && odd == (1L << j) - 1;
+
+            // src - (src << j) is -(2^j-1) src with no negation after
+            boolean flip = c < 0 && minus && zeros == 0;
+            boolean plus = odd > 1 && odd == (1L << i) + 1 && !flip;
+            int cost = (odd == 1 ? 1 : 2) + (odd > 1 && zeros > 0 ? 1 : 0)
+                + (c < 0 && !flip ? 1 : 0);
+            if (!(odd == 1 || plus || minus) || cost > MAX_MUL) {
+                return false;
+            }
+            if (odd == 1) {
+                Codegen.generate("sll", dest, src, Integer.toString(zeros));
+            } else if (plus) {
+                Codegen.generate("sll", scratch, src, Integer.toString(i));
+                Codegen.generate("addu", dest, scratch, src);
+            } else {
+                Codegen.generate("sll", scratch, src, Integer.toString(j));
+                if (flip) {
+                    Codegen.generate("subu", dest, src, scratch);
+                } else {
+                    Codegen.generate("subu", dest, scratch, src);
+                }
+            }
+            if (odd > 1 && zeros > 0) {
+                Codegen.generate("sll", dest, dest, Integer.toString(zeros));
+            }
+            if (c < 0 && !flip) {
+                Codegen.generate("subu", dest, Codegen.ZERO, dest);
+            }
+        }
+        CompilationContext.current().count("strength.mul", 1);
+        return true;
+    }
+
+    /**
+     * Generate dest = src / c, with scratch free to use.
+     */
+    public static boolean genDiv(String dest, String src, int c, String scratch) {
+        if (!enabled() || c == 0 || c == -1) {
+            return false;
+        }
+        long abs = Math.abs((long)c);
+        if (c == 1) {
+            if (!dest.equals(src)) {
+                Codegen.generate("move", dest, src);
+            }
+        } else if ((abs & (abs - 1)) == 0) {
+            int k = Long.numberOfTrailingZeros(abs);
+
+            // scratch = abs-1 if src is negative, else 0
+            if (k == 1) {
+                Codegen.generate("srl", scratch, src, "31");
+            } else {
+                Codegen.generate("sra", scratch, src, "31");
+                Codegen.generate("srl", scratch, scratch, Integer.toString(32 - k));
+            }
+            Codegen.generate("addu", scratch, src, scratch);
+            Codegen.generate("sra", dest, scratch, Integer.toString(k));
+            if (c < 0) {
+                Codegen.generate("subu", dest, Codegen.ZERO, dest);
+            }
+        } else {
+            int[] magic = magic(c);
+            int m = magic[0];
+            Codegen.generate("li", scratch, Integer.toString(m));
+            Codegen.generate("mult", src, scratch);
+            Codegen.generate("mfhi", scratch);
+            if (c > 0 && m < 0) {
+                Codegen.generate("addu", scratch, scratch, src);
+            } else if (c < 0 && m > 0) {
+                Codegen.generate("subu", scratch, scratch, src);
+            }
+            if (magic[1] > 0) {
+                Codegen.generate("sra", scratch, scratch, Integer.toString(magic[1]));
+            }
+            Codegen.generate("srl", dest, scratch, "31");
+            Codegen.generate("addu", dest, scratch, dest);
+        }
+        CompilationContext.current().count("strength.div", 1);
+        return true;
+    }
+
+    /**
+     * Return the magic number and shift for dividing by d, which is not
+     * -1, 0, 1 or a power of two (Hacker's Delight, figure 10-1, in longs
+     * masked to 32 bits for its unsigned ints).
+     */
+    static int[] magic(int d) {
+        final long mask = 0xffffffffL;
+        final long two31 = 0x80000000L;
+        long ad = Math.abs((long)d);
+        long t = two31 + (d >>> 31);
+        long anc = t - 1 - t % ad;   // absolute value of nc
+        int p = 31;
+        long q1 = two31 / anc;       // 2^p / |nc|
+        long r1 = two31 - q1 * anc;  // and the remainder
+        long q2 = two31 / ad;        // 2^p / |d|
+        long r2 = two31 - q2 * ad;   // and the remainder
+        long delta;
+        do {
+            p++;
+            q1 = (2 * q1) & mask;
+            r1 = (2 * r1) & mask;
+            if (r1 >= anc) {
+                q1 = (q1 + 1) & mask;
+                r1 = (r1 - anc) & mask;
+            }
+            q2 = (2 * q2) & mask;
+            r2 = (2 * r2) & mask;
+            if (r2 >= ad) {
+                q2 = (q2 + 1) & mask;
+                r2 = (r2 - ad) & mask;
+            }
+            delta = ad - r2;
+        } while (q1 < delta || (q1 == delta && r1 == 0));
+        int m = (int)(q2 + 1);
+        return new int[] { d < 0 ? -m : m, p - 32 };
+    }
+}
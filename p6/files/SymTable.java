@@ -1,8 +1,52 @@
 import java.util.*;
 
+/**
+ * The SymTable class is a scoped symbol table.
+ *
+ * Names are the int IDs handed out by the compilation's NameTable.  All
+ * scopes share one array, indexed by ID, of the innermost declaration of
+ * each name; every declaration points to the declaration of the same name
+ * that it shadows.  The declarations are also recorded, in order, in an
+ * undo log, and each scope remembers where its part of the log starts.
+ * So both kinds of lookup are a single array access whatever the nesting
+ * depth, opening a scope allocates nothing, and closing one costs only the
+ * number of names declared in it.
+ *
+ * The array grows to the largest ID declared, which is fine for the one
+ * table of a compilation but not for the fields of every struct: a field
+ * table (see forFields) keeps its few declarations in a short list, with
+ * their IDs in a parallel int array, and searches it.
+ *
+ * The String versions of the methods look the name up in the NameTable of
+ * the current CompilationContext.
+ */
 public class SymTable {
 
-    private List<HashMap<String, TSym>> list;
+    /**
+     * One declaration: the symbol of a name in the scope at the given depth
+     * (the outermost scope has depth 1), and the declaration it shadows.
+     */
+    private static class Entry {
+        final int id;
+        final TSym sym;
+        final int depth;
+        final Entry shadowed;
+
+        Entry(int id, TSym sym, int depth, Entry shadowed) {
+            this.id = id;
+            this.sym = sym;
+            this.depth = depth;
+            this.shadowed = shadowed;
+        }
+    }
+
+    private Entry[] table;     // innermost declaration of each ID
+    private int[] fieldIds;    // in place of table, or null: the IDs
+    private Entry[] fields;    // and declarations of the first numFields
+    private int numFields;
+    private ArrayList<Entry> log;
+    private int[] scopeStart;  // index in log of each scope's first entry
+    private int depth;         // number of open scopes
     private int offset;
     private int initialOffset = -8;
 
@@ -15,80 +59,171 @@ public class SymTable {
     }
 
     public SymTable() {
-        list = new LinkedList<HashMap<String, TSym>>();
-        list.add(new HashMap<String, TSym>());
+        this(new Entry[64], null);
+    }
+
+    private SymTable(Entry[] table, int[] fieldIds) {
+        this.table = table;
+        this.fieldIds = fieldIds;
+        if (fieldIds != null) {
+            fields = new Entry[fieldIds.length];
+        }
+        log = new ArrayList<Entry>();
+        scopeStart = new int[8];
+        depth = 1;
+    }
+
+    /**
+     * Return an empty table for the fields of a struct.
+     */
+    public static SymTable forFields() {
+        return new SymTable(null, new int[4]);
+    }
+
+    // the innermost declaration of id, or null
+    private Entry get(int id) {
+        if (fieldIds != null) {
+            int k = findField(id);
+            return k < 0 ? null : fields[k];
+        }
+        return id >= 0 && id < table.length ? table[id] : null;
+    }
+
+    private void put(int id, Entry e) {
+        if (fieldIds != null) {
+            int k = findField(id);
+            if (e == null) {
+                if (k >= 0) {
+                    // move the last field into the hole
+                    numFields--;
+                    fieldIds[k] = fieldIds[numFields];
+                    fields[k] = fields[numFields];
+                    fields[numFields] = null;
+                }
+                return;
+            }
+            if (k < 0) {
+                if (numFields == fieldIds.length) {
+                    fieldIds = Arrays.copyOf(fieldIds, 2 * numFields);
+                    fields = Arrays.copyOf(fields, 2 * numFields);
+                }
+                k = numFields++;
+                fieldIds[k] = id;
+            }
+            fields[k] = e;
+            return;
+        }
+        if (id >= table.length) {
+            table = Arrays.copyOf(table, Math.max(2 * table.length, id + 1));
+        }
+        table[id] = e;
+    }
+
+    // the index of id among the fields, or -1
+    private int findField(int id) {
+        for (int k = 0; k < numFields; k++) {
+            if (fieldIds[k] == id) {
+                return k;
+            }
+        }
+        return -1;
     }
 
     public void addDecl(String name, TSym sym)
             throws DuplicateSymException, EmptySymTableException, IllegalArgumentException {
 
-        if (name == null && sym == null) {
+        if (name == null) {
             throw new IllegalArgumentException();
-        } else if (name == null) {
-            throw new IllegalArgumentException();
-        } else if (sym == null) {
+        }
+        addDecl(CompilationContext.current().getNames().intern(name), sym);
+    }
+
+    public void addDecl(int id, TSym sym)
+            throws DuplicateSymException, EmptySymTableException, IllegalArgumentException {
+
+        if (id < 0 || sym == null) {
             throw new IllegalArgumentException();
         }
 
-        if (list.isEmpty()) {
+        if (depth == 0) {
             throw new EmptySymTableException();
         }
 
-        HashMap<String, TSym> symTab = list.get(0);
-        if (symTab.containsKey(name)) {
+        Entry prev = get(id);
+        if (prev != null && prev.depth == depth) {
             throw new DuplicateSymException();
         } else {
-            symTab.put(name, sym);
+            Entry e = new Entry(id, sym, depth, prev);
+            put(id, e);
+            log.add(e);
+            CompilationContext.current().count(CompileStats.SYMBOLS, 1);
         }
     }
 
     public void addScope() {
-        list.add(0, new HashMap<String, TSym>());
+        if (depth == scopeStart.length) {
+            scopeStart = Arrays.copyOf(scopeStart, 2 * depth);
+        }
+        scopeStart[depth++] = log.size();
     }
 
     public TSym lookupLocal(String name) throws EmptySymTableException {
-        if (list.isEmpty()) {
+        return lookupLocal(CompilationContext.current().getNames().find(name));
+    }
+
+    public TSym lookupLocal(int id) throws EmptySymTableException {
+        if (depth == 0) {
             throw new EmptySymTableException();
         }
 
-        if (list.get(0).containsKey(name)) {
-            return list.get(0).get(name);
+        Entry e = get(id);
+        if (e != null && e.depth == depth) {
+            return e.sym;
         } else {
             return null;
         }
     }
 
     public TSym lookupGlobal(String name) throws EmptySymTableException {
-        if (list.isEmpty()) {
+        return lookupGlobal(CompilationContext.current().getNames().find(name));
+    }
+
+    public TSym lookupGlobal(int id) throws EmptySymTableException {
+        if (depth == 0) {
             throw new EmptySymTableException();
         }
 
-        for (HashMap<String, TSym> symTab : list) {
-            if (symTab.containsKey(name)) {
-                return symTab.get(name);
-            }
-        }
-        return null;
+        Entry e = get(id);
+        return e == null ? null : e.sym;
     }
 
     public void removeScope() throws EmptySymTableException {
-        if (list.isEmpty()) {
+        if (depth == 0) {
             throw new EmptySymTableException();
         }
-        list.remove(0);
+        int start = scopeStart[--depth];
+        for (int k = log.size() - 1; k >= start; k--) {
+            Entry e = log.remove(k);
+            put(e.id, e.shadowed);
+        }
     }
 
     public void print() {
+        NameTable names = CompilationContext.current().getNames();
         System.out.print("\nSym Table\n");
-        for (HashMap<String, TSym> symTab : list) {
+        for (int d = depth; d > 0; d--) {
+            int end = d == depth ? log.size() : scopeStart[d];
+            HashMap<String, TSym> symTab = new HashMap<String, TSym>();
+            for (int k = scopeStart[d - 1]; k < end; k++) {
+                symTab.put(names.name(log.get(k).id), log.get(k).sym);
+            }
             System.out.println(symTab.toString());
         }
         System.out.println();
     }
 
     public int tableLength(){
-        return list.size();
-        
+        return depth;
     }
 
     public void setInitialOffset(int offset){
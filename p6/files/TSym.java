@@ -10,6 +10,9 @@ public class TSym {
     
     private boolean global;
 
+    // register holding this variable, or null if it lives in memory
+    private String register = null;
+
     public TSym(Type type) {
         this.type = type;
     }
@@ -43,6 +46,14 @@ public class TSym {
         return this.global;
     }
 
+    public String getRegister() {
+        return register;
+    }
+
+    public void setRegister(String reg) {
+        register = reg;
+    }
+
 
     
 }
@@ -59,7 +70,7 @@ class FnSym extends TSym {
     private List<Type> paramTypes;
 
     public FnSym(Type type, int numparams) {
-        super(new FnType());
+        super(Type.FN);
         returnType = type;
         numParams = numparams;
     }
@@ -109,18 +120,18 @@ class StructSym extends TSym {
     // new fields
     private IdNode structType;  // name of the struct type
 
+    /**
+     * id is the name of the struct type, already linked to the
+     * StructDefSym of its definition.
+     */
     public StructSym(IdNode id) {
-        super(new StructType(id));
+        super(((StructDefSym)id.sym()).getStructType());
         structType = id;
     }
 
     public IdNode getStructType() {
         return structType;
     }
-
-    public Type getType(){
-        return new StructType(structType);
-    }
 }
 
 /**
@@ -132,17 +143,22 @@ class StructSym extends TSym {
 class StructDefSym extends TSym {
     // new fields
     private SymTable symTab;
+    private StructType structType;  // the type of variables of this struct
 
-    public StructDefSym(SymTable table) {
-        super(new StructDefType());
+    public StructDefSym(SymTable table, IdNode id) {
+        super(Type.STRUCT_DEF);
         symTab = table;
+        structType = new StructType(id);
     }
 
     public SymTable getSymTable() {
         return symTab;
     }
 
-    public Type getType(){
-        return new StructDefType();
+    /**
+     * Return the canonical type of variables declared with this struct.
+     */
+    public StructType getStructType() {
+        return structType;
     }
 }
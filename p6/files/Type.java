@@ -1,20 +1,38 @@
 /**
  * Type class and its subclasses: 
  * ErrorType, IntType, BoolType, VoidType, StringType, FnType, StructType,
+ *
+ * Types are canonical: there is exactly one instance of each primitive
+ * type (the constants below) and one StructType per struct definition
+ * (owned by its StructDefSym), so two types are equal exactly when they
+ * are the same object.
  */
 abstract public class Type {
+    public static final Type ERROR = new ErrorType();
+    public static final Type INT = new IntType();
+    public static final Type BOOL = new BoolType();
+    public static final Type VOID = new VoidType();
+    public static final Type STRING = new StringType();
+    public static final Type FN = new FnType();
+    public static final Type STRUCT_DEF = new StructDefType();
 
     /**
      * default constructor
      */
-    public Type() {
+    Type() {
     }
 
     /**
-     * every subclass must provide a toString method and an equals method
+     * every subclass must provide a toString method
      */
     abstract public String toString();
-    abstract public boolean equals(Type t);
+
+    /**
+     * Types are canonical, so equality is identity.
+     */
+    public final boolean equals(Type t) {
+        return this == t;
+    }
 
     /**
      * default methods for "isXXXType"
@@ -61,10 +79,6 @@ class ErrorType extends Type {
         return true;
     }
 
-    public boolean equals(Type t) {
-        return t.isErrorType();
-    }
-
     public String toString() {
         return "error";
     }
@@ -79,10 +93,6 @@ class IntType extends Type {
         return true;
     }
 
-    public boolean equals(Type t) {
-        return t.isIntType();
-    }
-
     public String toString() {
         return "int";
     }
@@ -97,10 +107,6 @@ class BoolType extends Type {
         return true;
     }
 
-    public boolean equals(Type t) {
-        return t.isBoolType();
-    }
-
     public String toString() {
         return "bool";
     }
@@ -115,10 +121,6 @@ class VoidType extends Type {
         return true;
     }
 
-    public boolean equals(Type t) {
-        return t.isVoidType();
-    }
-
     public String toString() {
         return "void";
     }
@@ -133,10 +135,6 @@ class StringType extends Type {
         return true;
     }
 
-    public boolean equals(Type t) {
-        return t.isStringType();
-    }
-
     public String toString() {
         return "String";
     }
@@ -151,10 +149,6 @@ class FnType extends Type {
         return true;
     }
 
-    public boolean equals(Type t) {
-        return t.isFnType();
-    }
-
     public String toString() {
         return "function";
     }
@@ -164,9 +158,9 @@ class FnType extends Type {
 // StructType
 // **********************************************************************
 class StructType extends Type {
-    private IdNode myId;
-    
-    public StructType(IdNode id) {
+    private IdNode myId;  // name of the struct in its definition
+
+    StructType(IdNode id) {
         myId = id;
     }
     
@@ -174,10 +168,6 @@ class StructType extends Type {
         return true;
     }
 
-    public boolean equals(Type t) {
-        return t.isStructType();
-    }
-
     public String toString() {
         return myId.name();
     }
@@ -192,10 +182,6 @@ class StructDefType extends Type {
         return true;
     }
 
-    public boolean equals(Type t) {
-        return t.isStructDefType();
-    }
-
     public String toString() {
         return "struct";
     }
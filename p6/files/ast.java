@@ -107,6 +107,10 @@ import java.util.*;
 // **********************************************************************
 
 abstract class ASTnode {
+    public ASTnode() {
+        CompilationContext.current().count(CompileStats.AST_NODES, 1);
+    }
+
     // every subclass must provide an unparse operation
     abstract public void unparse(PrintWriter p, int indent);
 
@@ -115,6 +119,12 @@ abstract class ASTnode {
         for (int k=0; k<indent; k++) p.print(" ");
     }
 
+    // the register allocator name analysis reports to, or null when
+    // registers are not being allocated
+    protected static RegAlloc regAlloc() {
+        return CompilationContext.current().getRegAlloc();
+    }
+
 }
 
 // **********************************************************************
@@ -143,12 +153,10 @@ class ProgramNode extends ASTnode {
             // if main not found, then error
             if(s == null){
                 ErrMsg.fatal(0, 0, "No main function");
-                System.exit(-1);
             }
             // if main is not of type Function, then error
             else if(s.getType().isFnType() == false){
                 ErrMsg.fatal(0, 0, "No main function");
-                System.exit(-1);
             }
         }
         catch(EmptySymTableException e){
@@ -164,12 +172,33 @@ class ProgramNode extends ASTnode {
         myDeclList.typeCheck();
     }
 
+    /**
+     * fold
+     * Fold the constant expressions of every function, and drop or inline
+     * the statements whose conditions are then constant.  Runs after type
+     * checking, when asked for with -fconstfold.
+     */
+    public void fold() {
+        myDeclList.fold();
+    }
+
+    /**
+     * eliminateDeadCode
+     * Remove the code that can never run (see
+     * DeclListNode.eliminateDeadCode).  Runs after folding, when asked
+     * for with -fdce.
+     */
+    public void eliminateDeadCode() {
+        myDeclList.eliminateDeadCode();
+    }
+
     public void unparse(PrintWriter p, int indent) {
         myDeclList.unparse(p, indent);
     }
 
     public void codeGen(){
         myDeclList.codeGen();
+        Codegen.flush();
     }
 
     // 1 kid
@@ -202,6 +231,9 @@ class DeclListNode extends ASTnode {
             if (node instanceof VarDeclNode) {
                 TSym sym = ((VarDeclNode)node).nameAnalysis(symTab, globalTab);
                 sym.setOffset(curOffset);
+                if (regAlloc() != null) {
+                    regAlloc().declare(sym, false);
+                }
                 // System.out.println(sym.getOffset());
                 // System.out.println(sym.getType().toString());
                 curOffset -= 4;
@@ -224,6 +256,63 @@ class DeclListNode extends ASTnode {
         }
     }
 
+    /**
+     * fold
+     */
+    public void fold() {
+        for (DeclNode node : myDecls) {
+            if (node instanceof FnDeclNode) {
+                ((FnDeclNode)node).fold();
+            }
+        }
+    }
+
+    /**
+     * eliminateDeadCode
+     * Remove the statements control cannot reach, then the functions
+     * that main never calls, directly or not, and the globals that the
+     * functions left never use.
+     */
+    public void eliminateDeadCode() {
+        CompilationContext ctx = CompilationContext.current();
+        CallGraph graph = new CallGraph();
+        TSym main = null;
+        for (DeclNode node : myDecls) {
+            if (node instanceof FnDeclNode) {
+                FnDeclNode fn = (FnDeclNode)node;
+                ctx.count("dce.stmts", fn.prune());
+                graph.addFunction(fn.sym(), fn.refs());
+                if (fn.name().equals("main")) {
+                    main = fn.sym();
+                }
+            }
+        }
+        if (main == null) {
+            return;
+        }
+
+        Set<TSym> live = graph.reachableFrom(main);
+        Iterator<DeclNode> it = myDecls.iterator();
+        while (it.hasNext()) {
+            DeclNode node = it.next();
+            if (node instanceof FnDeclNode) {
+                FnDeclNode fn = (FnDeclNode)node;
+                if (!live.contains(fn.sym())) {
+                    ctx.count("dce.functions", 1);
+                    ctx.count("dce.stmts", fn.size());
+                    it.remove();
+                }
+            } else if (node instanceof VarDeclNode) {
+                VarDeclNode var = (VarDeclNode)node;
+                if (!var.isStruct() && !live.contains(var.sym())) {
+                    ctx.count("dce.globals", 1);
+                    ctx.count("dce.bytes", 4);
+                    it.remove();
+                }
+            }
+        }
+    }
+
     public void unparse(PrintWriter p, int indent) {
         Iterator it = myDecls.iterator();
         try {
@@ -237,9 +326,21 @@ class DeclListNode extends ASTnode {
     }
 
     public void codeGen(){
+        // small functions may be inlined into those that call them
+        CompilationContext ctx = CompilationContext.current();
+        Inliner inliner = null;
+        if (ctx.isOptimizing("ir") && ctx.isOptimizing("inline")) {
+            inliner = new Inliner();
+            for (DeclNode n : myDecls) {
+                if (n instanceof FnDeclNode) {
+                    inliner.addFunction((FnDeclNode)n);
+                }
+            }
+        }
+
         for(DeclNode n : myDecls){
             if(n instanceof FnDeclNode){
-                ((FnDeclNode)n).codeGen();
+                ((FnDeclNode)n).codeGen(inliner);
             }
             else if(n instanceof VarDeclNode){
                 ((VarDeclNode)n).codeGen();
@@ -279,6 +380,9 @@ class FormalsListNode extends ASTnode {
             TSym sym = node.nameAnalysis(symTab);
             curOffset += 4;
             sym.setOffset(curOffset);
+            if (regAlloc() != null) {
+                regAlloc().declare(sym, true);
+            }
             if (sym != null) {
                 typeList.add(sym.getType());
             }
@@ -294,6 +398,17 @@ class FormalsListNode extends ASTnode {
         return myFormals.size();
     }
 
+    /**
+     * Return the names of the formals, in order.
+     */
+    public List<IdNode> idNodes() {
+        List<IdNode> ids = new ArrayList<IdNode>(myFormals.size());
+        for (FormalDeclNode node : myFormals) {
+            ids.add(node.idNode());
+        }
+        return ids;
+    }
+
     public int getParamsSize() {
         return paramsSize;
     }
@@ -341,6 +456,9 @@ class FnBodyNode extends ASTnode {
         symTab.setInitialOffset(-8);
         myDeclList.nameAnalysis(symTab);
         myStmtList.nameAnalysis(symTab);
+        // the locals of nested blocks are placed below the function's own,
+        // so the frame has to reach down to the last of them
+        localSize = -8 - symTab.getInitialOffset();
     }
 
     /**
@@ -350,6 +468,29 @@ class FnBodyNode extends ASTnode {
         myStmtList.typeCheck(retType);
     }
 
+    /**
+     * fold
+     */
+    public void fold() {
+        myStmtList.fold();
+    }
+
+    /**
+     * prune
+     * Remove the statements control cannot reach; return how many.
+     */
+    public int prune() {
+        return myStmtList.prune();
+    }
+
+    public int size() {
+        return myStmtList.size();
+    }
+
+    public void addRefs(Set<TSym> refs) {
+        myStmtList.addRefs(refs);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         myDeclList.unparse(p, indent);
         myStmtList.unparse(p, indent);
@@ -359,12 +500,31 @@ class FnBodyNode extends ASTnode {
         myStmtList.codeGen(retLabel);
     }
 
+    public boolean canLower() {
+        return myStmtList.canLower();
+    }
+
+    public void lower(IrFunction fn) {
+        myStmtList.lower(fn);
+    }
+
     public int getLocalSize() {
-        return myDeclList.getLocalSize();
+        return localSize;
+    }
+
+    /**
+     * Give sym a slot of the frame below the locals (those of nested
+     * blocks included), for a variable of a function inlined into this
+     * one.
+     */
+    public void addLocal(TSym sym) {
+        sym.setOffset(-8 - localSize);
+        localSize += 4;
     }
     // 2 kids
     private DeclListNode myDeclList;
     private StmtListNode myStmtList;
+    private int localSize;
 }
 
 class StmtListNode extends ASTnode {
@@ -391,6 +551,78 @@ class StmtListNode extends ASTnode {
         }
     }
 
+    /**
+     * fold
+     * Fold each statement, putting in its place whatever it folds to (see
+     * StmtNode.fold).
+     */
+    public void fold() {
+        List<StmtNode> folded = new LinkedList<StmtNode>();
+        for (StmtNode node : myStmts) {
+            node.fold(folded);
+        }
+        myStmts = folded;
+    }
+
+    /**
+     * Return the statements, for a statement that is replaced by its body.
+     */
+    public List<StmtNode> getStmts() {
+        return myStmts;
+    }
+
+    /**
+     * prune
+     * Remove the statements after one that control never gets past (see
+     * StmtNode.isTerminal), and prune those left; return how many
+     * statements went, nested ones included.
+     */
+    public int prune() {
+        int removed = 0;
+        boolean dead = false;
+        Iterator<StmtNode> it = myStmts.iterator();
+        while (it.hasNext()) {
+            StmtNode node = it.next();
+            if (dead) {
+                removed += node.size();
+                it.remove();
+            } else {
+                removed += node.prune();
+                dead = node.isTerminal();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Does control never get past the end of the list?
+     */
+    public boolean isTerminal() {
+        for (StmtNode node : myStmts) {
+            if (node.isTerminal()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the number of statements in the list, nested ones included.
+     */
+    public int size() {
+        int n = 0;
+        for (StmtNode node : myStmts) {
+            n += node.size();
+        }
+        return n;
+    }
+
+    public void addRefs(Set<TSym> refs) {
+        for (StmtNode node : myStmts) {
+            node.addRefs(refs);
+        }
+    }
+
     public void unparse(PrintWriter p, int indent) {
         Iterator<StmtNode> it = myStmts.iterator();
         while (it.hasNext()) {
@@ -407,6 +639,21 @@ class StmtListNode extends ASTnode {
         
     }
 
+    public boolean canLower() {
+        for (StmtNode s : myStmts) {
+            if (!s.canLower()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void lower(IrFunction fn) {
+        for (StmtNode s : myStmts) {
+            s.lower(fn);
+        }
+    }
+
     // list of kids (StmtNodes)
     private List<StmtNode> myStmts;
 }
@@ -441,7 +688,7 @@ class ExpListNode extends ASTnode {
 
                 if (!actualType.isErrorType()) {        // if this is not an error
                     Type formalType = typeList.get(k);  // get the formal type
-                    if (!formalType.equals(actualType)) {
+                    if (formalType != actualType) {
                         ErrMsg.fatal(node.lineNum(), node.charNum(),
                                      "Type of actual does not match type of formal");
                     }
@@ -454,6 +701,21 @@ class ExpListNode extends ASTnode {
         }
     }
 
+    /**
+     * fold
+     */
+    public void fold() {
+        for (ListIterator<ExpNode> it = myExps.listIterator(); it.hasNext(); ) {
+            it.set(it.next().fold());
+        }
+    }
+
+    public void addRefs(Set<TSym> refs) {
+        for (ExpNode node : myExps) {
+            node.addRefs(refs);
+        }
+    }
+
     public void unparse(PrintWriter p, int indent) {
         Iterator<ExpNode> it = myExps.iterator();
         if (it.hasNext()) { // if there is at least one element
@@ -465,6 +727,25 @@ class ExpListNode extends ASTnode {
         }
     }
 
+    public boolean canLower() {
+        for (ExpNode e : myExps) {
+            if (!e.canLower()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * lower
+     * Add the IR that passes the expressions as arguments, last first.
+     */
+    public void lower(IrFunction fn) {
+        for (int i = myExps.size() - 1; i >= 0; i--) {
+            fn.emit("param", null, myExps.get(i).lower(fn));
+        }
+    }
+
     // ExpListNode is used in fnCall, need to do in reverse order
     public void codeGen(){
         int len = myExps.size();
@@ -521,7 +802,7 @@ class VarDeclNode extends DeclNode {
 
     public TSym nameAnalysis(SymTable symTab, SymTable globalTab) {
         boolean badDecl = false;
-        String name = myId.name();
+        int id = myId.id();
         TSym sym = null;
         IdNode structId = null;
 
@@ -535,7 +816,7 @@ class VarDeclNode extends DeclNode {
             structId = ((StructNode)myType).idNode();
 
             try {
-                sym = globalTab.lookupGlobal(structId.name());
+                sym = globalTab.lookupGlobal(structId.id());
             } catch (EmptySymTableException ex) {
                 System.err.println("Unexpected EmptySymTableException " +
                                    " in VarDeclNode.nameAnalysis");
@@ -556,7 +837,7 @@ class VarDeclNode extends DeclNode {
         TSym symCheckMul = null;
 
         try {
-            symCheckMul = symTab.lookupLocal(name);
+            symCheckMul = symTab.lookupLocal(id);
         } catch (EmptySymTableException ex) {
                             System.err.println("Unexpected EmptySymTableException " +
                                    " in VarDeclNode.nameAnalysis");
@@ -576,7 +857,7 @@ class VarDeclNode extends DeclNode {
                 else {
                     sym = new TSym(myType.type());
                 }
-                symTab.addDecl(name, sym);
+                symTab.addDecl(id, sym);
                 myId.link(sym);
 
                 sym.setGlobal(symTab);
@@ -608,6 +889,17 @@ class VarDeclNode extends DeclNode {
         return sym;
     }
 
+    /**
+     * Return the symbol declared, or null if the declaration is bad.
+     */
+    public TSym sym() {
+        return myId.sym();
+    }
+
+    public boolean isStruct() {
+        return myType instanceof StructNode;
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         myType.unparse(p, 0);
@@ -621,7 +913,7 @@ class VarDeclNode extends DeclNode {
         if(!(myType instanceof StructNode)) {
             // globalvariables
             if(myId.sym().getGlobal()) {
-                Codegen.p.println("\t.data");
+                Codegen.generateRaw("\t.data");
                 Codegen.generateWithComment(".align", "", " 2");
                 Codegen.generateLabeled("_" + myId.name(), ".space", "", " 4");  
             }
@@ -664,12 +956,12 @@ class FnDeclNode extends DeclNode {
      *     exit scope
      */
     public TSym nameAnalysis(SymTable symTab) {
-        String name = myId.name();
+        int id = myId.id();
         FnSym sym = null;
         TSym symCheckMul = null;
 
         try {
-            symCheckMul = symTab.lookupLocal(name);
+            symCheckMul = symTab.lookupLocal(id);
         } catch (EmptySymTableException ex) {
                             System.err.println("Unexpected EmptySymTableException " +
                                    " in FnDeclNode.nameAnalysis");
@@ -683,7 +975,7 @@ class FnDeclNode extends DeclNode {
         else { // add function name to local symbol table
             try {
                 sym = new FnSym(myType.type(), myFormalsList.length());
-                symTab.addDecl(name, sym);
+                symTab.addDecl(id, sym);
                 myId.link(sym);
             } catch (DuplicateSymException ex) {
                 System.err.println("Unexpected DuplicateSymException " +
@@ -702,7 +994,11 @@ class FnDeclNode extends DeclNode {
 
         symTab.addScope();  // add a new scope for locals and params
         
-        
+        CompilationContext ctx = CompilationContext.current();
+        if (ctx.isOptimizing("regalloc")) {
+            myRegAlloc = new RegAlloc();
+            ctx.setRegAlloc(myRegAlloc);
+        }
 
         // process the formals
         List<Type> typeList = myFormalsList.nameAnalysis(symTab);
@@ -711,6 +1007,7 @@ class FnDeclNode extends DeclNode {
         }
 
         myBody.nameAnalysis(symTab); // process the function body
+        ctx.setRegAlloc(null);
 
         try {
             symTab.removeScope();  // exit scope
@@ -733,6 +1030,53 @@ class FnDeclNode extends DeclNode {
         myBody.typeCheck(myType.type());
     }
 
+    /**
+     * fold
+     */
+    public void fold() {
+        myBody.fold();
+    }
+
+    public TSym sym() {
+        return myId.sym();
+    }
+
+    public String name() {
+        return myId.name();
+    }
+
+    /**
+     * Return the names of the formals, in order.
+     */
+    public List<IdNode> formals() {
+        return myFormalsList.idNodes();
+    }
+
+    /**
+     * prune
+     * Remove the statements of the body control cannot reach; return how
+     * many.
+     */
+    public int prune() {
+        return myBody.prune();
+    }
+
+    /**
+     * Return the number of statements in the body, nested ones included.
+     */
+    public int size() {
+        return myBody.size();
+    }
+
+    /**
+     * Return the functions and globals the body refers to.
+     */
+    public Set<TSym> refs() {
+        Set<TSym> refs = Collections.newSetFromMap(new IdentityHashMap<TSym, Boolean>());
+        myBody.addRefs(refs);
+        return refs;
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         myType.unparse(p, 0);
@@ -745,13 +1089,18 @@ class FnDeclNode extends DeclNode {
         p.println("}\n");
     }
 
-    public void codeGen(){
+    /**
+     * codeGen
+     * Generate the code of the function; calls in the body may be
+     * inlined by inliner, which may be null.
+     */
+    public void codeGen(Inliner inliner){
 
         // Preamble
-        Codegen.p.println("\t.text");
+        Codegen.generateRaw("\t.text");
 
         if(myId.name().equals("main")){
-            Codegen.p.println('\t' + ".globl main");   
+            Codegen.generateRaw("\t.globl main");   
             Codegen.generateLabeled(myId.name(), "", "METHOD ENTRY");
             // Codegen.genLabel("__start", "add __start label for main only");  
         }
@@ -762,13 +1111,72 @@ class FnDeclNode extends DeclNode {
         
         
         // Prologue 
-        Codegen.genPush(Codegen.RA);
-        Codegen.genPush(Codegen.FP);
-        // int FPoffsetToSP = myFormalsList.getParamsSize() + 8;
-        Codegen.generate("addu", Codegen.FP, Codegen.SP, 8);
+        // the callee-saved registers used are saved below the locals
+        List<String> savedRegs = Collections.emptyList();
+        if (myRegAlloc != null) {
+            myRegAlloc.allocate();
+            savedRegs = myRegAlloc.getSavedRegs();
+        }
+
+        // the body goes through the IR if asked to, and if it can;
+        // inlining may add locals, and the temporaries the IR spills go
+        // below the saved registers
+        IrFunction ir = lower(inliner);
         int localSize = myBody.getLocalSize();
-        Codegen.generate("subu", Codegen.SP, Codegen.SP, localSize);
-        Codegen.p.println();
+        int saveOffset = -8 - localSize;
+        IrSelector selector = null;
+        int spillSize = 0;
+        if (ir != null) {
+            selector = new IrSelector(ir, saveOffset - 4 * savedRegs.size());
+            spillSize = selector.getSpillSize();
+        }
+        int frameSize = localSize + 4 * savedRegs.size() + spillSize;
+        mySavedRegs = savedRegs;
+        mySaveOffset = saveOffset;
+        CompilationContext ctx = CompilationContext.current();
+
+        // a leaf (a function that calls nothing) leaves $ra alone, so
+        // it is not saved; a leaf whose body goes through the IR never
+        // moves $sp either, so it needs no $fp: its frame, if any, is
+        // addressed off $sp, laid out as it would be below $fp
+        myLeaf = ctx.isOptimizing("leaf") && isLeaf(ir);
+        myFrameless = myLeaf && selector != null;
+        if (myFrameless) {
+            myFrameBias = frameSize == 0 ? 0 : 8 + frameSize;
+            selector.setFrame(Codegen.SP, myFrameBias);
+            if (myFrameBias > 0) {
+                Codegen.generate("subu", Codegen.SP, Codegen.SP, myFrameBias);
+            }
+            ctx.count("leaf.frameless", 1);
+        } else if (myLeaf) {
+            Codegen.generateIndexed("sw", Codegen.FP, Codegen.SP, -4, "save FP");
+            Codegen.generate("move", Codegen.FP, Codegen.SP);
+            Codegen.generate("subu", Codegen.SP, Codegen.SP, 8 + frameSize);
+            ctx.count("leaf.noreturnaddr", 1);
+        } else {
+            Codegen.genPush(Codegen.RA);
+            Codegen.genPush(Codegen.FP);
+            // int FPoffsetToSP = myFormalsList.getParamsSize() + 8;
+            Codegen.generate("addu", Codegen.FP, Codegen.SP, 8);
+            Codegen.generate("subu", Codegen.SP, Codegen.SP, frameSize);
+        }
+        for (int k = 0; k < savedRegs.size(); k++) {
+            Codegen.generateIndexed("sw", savedRegs.get(k), frameReg(),
+                                    frameOffset(saveOffset - 4 * k), "save " + savedRegs.get(k));
+        }
+        ctx.setFunction(this);
+        if (ctx.isOptimizing("tailcall") && !myId.name().equals("main")) {
+            // a call of this function in tail position comes back here,
+            // with the frame set up and the new arguments in place
+            Codegen.genLabel(tailLabel());
+        }
+        if (myRegAlloc != null) {
+            for (TSym param : myRegAlloc.getParamsInRegs()) {
+                Codegen.generateIndexed("lw", param.getRegister(), frameReg(),
+                                        frameOffset(param.getOffset()));
+            }
+        }
+        Codegen.generateRaw("");
 
         // return label
         // String retLabel = Codegen.nextLabel();
@@ -776,7 +1184,11 @@ class FnDeclNode extends DeclNode {
 
         // Body
         // myBody.codeGen(retLabel);
-        myBody.codeGen(exitLabel);
+        if (selector != null) {
+            selector.select(exitLabel);
+        } else {
+            myBody.codeGen(exitLabel);
+        }
         // return label, end function, only when func has return type
         // if(!myType.type().isVoidType()){
         // Codegen.genLabel(retLabel);
@@ -785,13 +1197,8 @@ class FnDeclNode extends DeclNode {
         // Epilogue
         Codegen.generateWithComment("", "FUNCTION EXIT");
         Codegen.genLabel(exitLabel);
-
-        Codegen.generateIndexed("lw", Codegen.RA, Codegen.FP, 0, 
-                                "load return address");
-        Codegen.generateWithComment("move", "save control link", Codegen.T0, Codegen.FP);
-        Codegen.generateIndexed("lw", Codegen.FP, Codegen.FP, -4,
-                                 "restore FP");
-        Codegen.generateWithComment("move", "restore SP", Codegen.SP, Codegen.T0);
+        genRestore();
+        ctx.setFunction(null);
 
         if(myId.name().equals("main")){
             Codegen.generateWithComment("li", "load exit code for syscall", Codegen.V0, "10");
@@ -804,12 +1211,184 @@ class FnDeclNode extends DeclNode {
         // if(((IdNode)myId).name().equals("main") == false){
             // Codegen.genLabel(myId.name());
         // }
+
+        // write out the function (and any globals declared before it)
+        Codegen.flush();
     }
+    /**
+     * genRestore
+     * Restore the registers the prologue saved, and pop the frame.
+     */
+    private void genRestore() {
+        for (int k = 0; k < mySavedRegs.size(); k++) {
+            Codegen.generateIndexed("lw", mySavedRegs.get(k), frameReg(),
+                                    frameOffset(mySaveOffset - 4 * k),
+                                    "restore " + mySavedRegs.get(k));
+        }
+        if (myFrameless) {
+            if (myFrameBias > 0) {
+                Codegen.generate("addu", Codegen.SP, Codegen.SP, myFrameBias);
+            }
+            return;
+        }
+        if (myLeaf) {
+            Codegen.generateWithComment("move", "restore SP", Codegen.SP, Codegen.FP);
+            Codegen.generateIndexed("lw", Codegen.FP, Codegen.FP, -4, "restore FP");
+            return;
+        }
+        Codegen.generateIndexed("lw", Codegen.RA, Codegen.FP, 0, 
+                                "load return address");
+        Codegen.generateWithComment("move", "save control link", Codegen.T0, Codegen.FP);
+        Codegen.generateIndexed("lw", Codegen.FP, Codegen.FP, -4,
+                                 "restore FP");
+        Codegen.generateWithComment("move", "restore SP", Codegen.SP, Codegen.T0);
+    }
+
+    /**
+     * Return the register the frame is addressed off, and the offset there
+     * of what is at offset off from $fp.
+     */
+    private String frameReg() {
+        return myFrameless ? Codegen.SP : Codegen.FP;
+    }
+
+    private int frameOffset(int off) {
+        return myFrameless ? off + myFrameBias : off;
+    }
+
+    /**
+     * Does the function call nothing?  ir is the body lowered to IR, or
+     * null to look at the body itself.
+     */
+    private boolean isLeaf(IrFunction ir) {
+        if (ir != null) {
+            for (IrInstr in : ir.getCode()) {
+                if (in.isCall()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        for (TSym ref : refs()) {
+            if (ref instanceof FnSym) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String tailLabel() {
+        return "_" + myId.name() + "_Tail";
+    }
+
+    /**
+     * canTailCall
+     * May a call of callee with numArgs arguments, whose value this
+     * function returns, be made a tail call (see genTailCall)?  Only if
+     * the arguments fit in the slots of this function's own parameters,
+     * since the caller pops just those.
+     */
+    public boolean canTailCall(String callee, int numArgs) {
+        return CompilationContext.current().isOptimizing("tailcall")
+            && !myId.name().equals("main") && !callee.equals("main")
+            && numArgs <= myFormalsList.length();
+    }
+
+    /**
+     * genTailCall
+     * Given the numArgs arguments of a call of callee pushed, as for a
+     * call, finish the call in place of this function: copy the arguments
+     * over this function's parameters and, for a call of this function,
+     * start the body again; for another, pop this function's frame and
+     * jump to callee, which then returns to this function's caller.
+     */
+    public void genTailCall(String callee, int numArgs) {
+        CompilationContext ctx = CompilationContext.current();
+        for (int k = 1; k <= numArgs; k++) {
+            Codegen.generateIndexed("lw", Codegen.T0, Codegen.SP, 4 * k);
+            Codegen.generateIndexed("sw", Codegen.T0, Codegen.FP, 4 * k);
+        }
+        if (callee.equals(myId.name())) {
+            ctx.count("tailcall.self", 1);
+            if (numArgs > 0) {
+                Codegen.generate("addu", Codegen.SP, Codegen.SP, 4 * numArgs);
+            }
+            Codegen.generate("j", tailLabel());
+        } else {
+            ctx.count("tailcall.other", 1);
+            genRestore();
+            Codegen.generate("j", "_" + callee);
+        }
+    }
+
+    /**
+     * lower
+     * Return the body lowered to IR, with calls inlined by inliner (if
+     * not null), optimized and dumped as asked for, or null if the IR is
+     * not in use or cannot express the body.
+     */
+    private IrFunction lower(Inliner inliner) {
+        CompilationContext ctx = CompilationContext.current();
+        if (!ctx.isOptimizing("ir")) {
+            return null;
+        }
+        IrFunction fn = lowerBody();
+        if (fn == null) {
+            ctx.count("ir.fallbacks", 1);
+            return null;
+        }
+        if (inliner != null) {
+            inliner.inline(fn, myBody);
+        }
+        fn.coalesceCopies();
+        if (ctx.isOptimizing("sccp")) {
+            Sccp.run(fn);
+        }
+        if (ctx.isOptimizing("licm")) {
+            Licm.run(fn);
+        }
+        if (ctx.isOptimizing("dse")) {
+            DeadStores.run(fn);
+        }
+        if (ctx.getIrDump() != null) {
+            fn.dump(ctx.getIrDump());
+        }
+        return fn;
+    }
+
+    /**
+     * lowerBody
+     * Return the body lowered to IR as it is, or null if the IR cannot
+     * express it.
+     */
+    public IrFunction lowerBody() {
+        if (!myBody.canLower()) {
+            return null;
+        }
+        IrFunction fn = new IrFunction(myId.name());
+        myBody.lower(fn);
+        return fn;
+    }
+
     // 4 kids
     private TypeNode myType;
     private IdNode myId;
     private FormalsListNode myFormalsList;
     private FnBodyNode myBody;
+
+    // allocates registers to the locals and params; null unless asked for
+    private RegAlloc myRegAlloc = null;
+
+    // the callee-saved registers the prologue saved, and the frame offset
+    // of the first
+    private List<String> mySavedRegs;
+    private int mySaveOffset;
+
+    // whether the function is a leaf (see isLeaf) and, if so, whether it
+    // has no $fp; the frame of one without is myFrameBias bytes
+    private boolean myLeaf = false;
+    private boolean myFrameless = false;
+    private int myFrameBias = 0;
 }
 
 class FormalDeclNode extends DeclNode {
@@ -827,7 +1406,7 @@ class FormalDeclNode extends DeclNode {
      * else add a new entry to the symbol table and return that TSym
      */
     public TSym nameAnalysis(SymTable symTab) {
-        String name = myId.name();
+        int id = myId.id();
         boolean badDecl = false;
         TSym sym = null;
 
@@ -840,7 +1419,7 @@ class FormalDeclNode extends DeclNode {
         TSym symCheckMul = null;
 
         try {
-            symCheckMul = symTab.lookupLocal(name);
+            symCheckMul = symTab.lookupLocal(id);
         } catch (EmptySymTableException ex) {
                             System.err.println("Unexpected EmptySymTableException " +
                                    " in FormalDeclNode.nameAnalysis");
@@ -855,7 +1434,7 @@ class FormalDeclNode extends DeclNode {
         if (!badDecl) {  // insert into symbol table
             try {
                 sym = new TSym(myType.type());
-                symTab.addDecl(name, sym);
+                symTab.addDecl(id, sym);
                 myId.link(sym);
             } catch (DuplicateSymException ex) {
                 System.err.println("Unexpected DuplicateSymException " +
@@ -875,8 +1454,12 @@ class FormalDeclNode extends DeclNode {
         return sym;
     }
 
-    public void unparse(PrintWriter p, int indent) {
-        myType.unparse(p, 0);
+    public IdNode idNode() {
+        return myId;
+    }
+
+    public void unparse(PrintWriter p, int indent) {
+        myType.unparse(p, 0);
         p.print(" ");
         p.print(myId.name());
     }
@@ -903,13 +1486,13 @@ class StructDeclNode extends DeclNode {
      *     add a new entry to symbol table for this struct
      */
     public TSym nameAnalysis(SymTable symTab) {
-        String name = myId.name();
+        int id = myId.id();
         boolean badDecl = false;
 
         TSym symCheckMul = null;
 
         try {
-            symCheckMul = symTab.lookupLocal(name);
+            symCheckMul = symTab.lookupLocal(id);
         } catch (EmptySymTableException ex) {
             System.err.println("Unexpected EmptySymTableException " +
                            " in StructDeclNode.nameAnalysis");
@@ -924,10 +1507,10 @@ class StructDeclNode extends DeclNode {
 
         if (!badDecl) {
             try {   // add entry to symbol table
-                SymTable structSymTab = new SymTable();
+                SymTable structSymTab = SymTable.forFields();
                 myDeclList.nameAnalysis(structSymTab, symTab);
-                StructDefSym sym = new StructDefSym(structSymTab);
-                symTab.addDecl(name, sym);
+                StructDefSym sym = new StructDefSym(structSymTab, myId);
+                symTab.addDecl(id, sym);
                 myId.link(sym);
             } catch (DuplicateSymException ex) {
                 System.err.println("Unexpected DuplicateSymException " +
@@ -980,7 +1563,7 @@ class IntNode extends TypeNode {
      * type
      */
     public Type type() {
-        return new IntType();
+        return Type.INT;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -996,7 +1579,7 @@ class BoolNode extends TypeNode {
      * type
      */
     public Type type() {
-        return new BoolType();
+        return Type.BOOL;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1012,7 +1595,7 @@ class VoidNode extends TypeNode {
      * type
      */
     public Type type() {
-        return new VoidType();
+        return Type.VOID;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1031,9 +1614,15 @@ class StructNode extends TypeNode {
 
     /**
      * type
+     * The canonical type of the struct, known once name analysis has
+     * linked the struct's name to its definition.
      */
     public Type type() {
-        return new StructType(myId);
+        TSym sym = myId.sym();
+        if (sym instanceof StructDefSym) {
+            return ((StructDefSym)sym).getStructType();
+        }
+        return Type.ERROR;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1053,6 +1642,81 @@ abstract class StmtNode extends ASTnode {
     abstract public void nameAnalysis(SymTable symTab);
     abstract public void typeCheck(Type retType);
     abstract public void codeGen(String retLabel);
+
+    /**
+     * fold
+     * Fold the constants in this statement's expressions, then add to
+     * stmts what should be generated in place of the statement: by
+     * default the statement itself.
+     */
+    public void fold(List<StmtNode> stmts) {
+        stmts.add(this);
+    }
+
+    /**
+     * canLower
+     * Can this statement, and everything in it, be lowered to IR?  If not,
+     * the function is compiled from the AST.
+     */
+    public boolean canLower() {
+        return false;
+    }
+
+    /**
+     * lower
+     * Add the IR for this statement to fn; only called if canLower().
+     */
+    abstract public void lower(IrFunction fn);
+
+    /**
+     * addRefs
+     * Add to refs the functions this statement calls and the globals it
+     * uses.
+     */
+    abstract public void addRefs(Set<TSym> refs);
+
+    /**
+     * isTerminal
+     * Does control never get past this statement (to the next one in its
+     * list)?
+     */
+    public boolean isTerminal() {
+        return false;
+    }
+
+    /**
+     * prune
+     * Remove the statements control cannot reach from the statement lists
+     * within this statement; return how many went.
+     */
+    public int prune() {
+        return 0;
+    }
+
+    /**
+     * Return the number of statements this one is made of, itself
+     * included.
+     */
+    public int size() {
+        return 1;
+    }
+
+    // are conditions compiled to jumps rather than to values?
+    protected static boolean jumpCode() {
+        return CompilationContext.current().isOptimizing("jumpcode");
+    }
+
+    // are loops rotated to test at the bottom?  A rotated loop tests once
+    // on the way in and then once at the end of each pass, with a single
+    // branch back, instead of jumping back to a test at the top
+    protected static boolean rotate() {
+        return CompilationContext.current().isOptimizing("rotate");
+    }
+
+    // count a statement dropped or replaced by its body
+    protected static void foldedBranch() {
+        CompilationContext.current().count("constfold.branches", 1);
+    }
 }
 
 class AssignStmtNode extends StmtNode {
@@ -1075,6 +1739,15 @@ class AssignStmtNode extends StmtNode {
         myAssign.typeCheck();
     }
 
+    public void fold(List<StmtNode> stmts) {
+        myAssign.fold();
+        stmts.add(this);
+    }
+
+    public void addRefs(Set<TSym> refs) {
+        myAssign.addRefs(refs);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         myAssign.unparse(p, -1); // no parentheses
@@ -1085,6 +1758,14 @@ class AssignStmtNode extends StmtNode {
         myAssign.codeGen();
     }
 
+    public boolean canLower() {
+        return myAssign.canLower();
+    }
+
+    public void lower(IrFunction fn) {
+        myAssign.lower(fn);
+    }
+
 
     // 1 kid
     private AssignNode myAssign;
@@ -1115,6 +1796,10 @@ class PostIncStmtNode extends StmtNode {
         }
     }
 
+    public void addRefs(Set<TSym> refs) {
+        myExp.addRefs(refs);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         myExp.unparse(p, 0);
@@ -1122,6 +1807,15 @@ class PostIncStmtNode extends StmtNode {
     }
 
 
+    public boolean canLower() {
+        return myExp instanceof IdNode && myExp.canLower();
+    }
+
+    public void lower(IrFunction fn) {
+        IrOperand var = myExp.lower(fn);
+        fn.emit("add", var, var, IrOperand.constant(1));
+    }
+
     public void codeGen(String retLabel){
         if (myExp instanceof IdNode) {
             TSym sym = ((IdNode) myExp).sym();
@@ -1131,6 +1825,9 @@ class PostIncStmtNode extends StmtNode {
                 Codegen.generate("lw", Codegen.T0, name);
                 Codegen.generate("addi", Codegen.T0, Codegen.T0, Integer.toString(1));
                 Codegen.generate("sw", Codegen.T0, name);
+            } else if (sym.getRegister() != null) {
+                Codegen.generate("addi", sym.getRegister(), sym.getRegister(),
+                                 Integer.toString(1));
             } else {
                 int offset = sym.getOffset();
                 Codegen.generateIndexed("lw", Codegen.T0, Codegen.FP, offset);
@@ -1169,12 +1866,25 @@ class PostDecStmtNode extends StmtNode {
         }
     }
 
+    public void addRefs(Set<TSym> refs) {
+        myExp.addRefs(refs);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         myExp.unparse(p, 0);
         p.println("--;");
     }
 
+    public boolean canLower() {
+        return myExp instanceof IdNode && myExp.canLower();
+    }
+
+    public void lower(IrFunction fn) {
+        IrOperand var = myExp.lower(fn);
+        fn.emit("sub", var, var, IrOperand.constant(1));
+    }
+
     public void codeGen(String retLabel){
         if (myExp instanceof IdNode) {
             TSym sym = ((IdNode) myExp).sym();
@@ -1184,6 +1894,9 @@ class PostDecStmtNode extends StmtNode {
                 Codegen.generate("lw", Codegen.T0, name);
                 Codegen.generate("addi", Codegen.T0, Codegen.T0, Integer.toString(-1));
                 Codegen.generate("sw", Codegen.T0, name);
+            } else if (sym.getRegister() != null) {
+                Codegen.generate("addi", sym.getRegister(), sym.getRegister(),
+                                 Integer.toString(-1));
             } else {
                 int offset = sym.getOffset();
                 Codegen.generateIndexed("lw", Codegen.T0, Codegen.FP, offset);
@@ -1232,6 +1945,10 @@ class ReadStmtNode extends StmtNode {
         }
     }
 
+    public void addRefs(Set<TSym> refs) {
+        myExp.addRefs(refs);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         p.print("cin >> ");
@@ -1239,10 +1956,23 @@ class ReadStmtNode extends StmtNode {
         p.println(";");
     }
 
+    public boolean canLower() {
+        return myExp instanceof IdNode && myExp.canLower();
+    }
+
+    public void lower(IrFunction fn) {
+        fn.emit(myExp.type().isBoolType() ? "readb" : "read", myExp.lower(fn), null);
+    }
+
     public void codeGen(String retLabel){
 
         Codegen.generate("li", Codegen.V0, "5"); 
         Codegen.generate("syscall");
+        if (myExp.type().isBoolType()) {
+            // any nonzero input is true; store it as TRUE so that every
+            // bool in memory is 0 or 1
+            Codegen.generate("sne", Codegen.V0, Codegen.V0, Codegen.ZERO);
+        }
         
         if(myExp instanceof IdNode){
             TSym sym = ((IdNode)myExp).sym();
@@ -1250,6 +1980,8 @@ class ReadStmtNode extends StmtNode {
             if(sym.getGlobal() == true){
                 String name = "_" + ((IdNode) myExp).name();
                 Codegen.generate("sw", Codegen.V0, name);
+            } else if (sym.getRegister() != null) {
+                Codegen.generate("move", sym.getRegister(), Codegen.V0);
             } else {
                 int offset = sym.getOffset();
                 Codegen.generateIndexed("sw", Codegen.V0, Codegen.FP, offset);
@@ -1264,6 +1996,10 @@ class ReadStmtNode extends StmtNode {
 class WriteStmtNode extends StmtNode {
     public WriteStmtNode(ExpNode exp) {
         myExp = exp;
+        if (exp instanceof StringLitNode) {
+            // its address goes nowhere but the output syscall
+            ((StringLitNode)exp).share();
+        }
     }
 
     /**
@@ -1301,6 +2037,15 @@ class WriteStmtNode extends StmtNode {
         }
     }
 
+    public void fold(List<StmtNode> stmts) {
+        myExp = myExp.fold();
+        stmts.add(this);
+    }
+
+    public void addRefs(Set<TSym> refs) {
+        myExp.addRefs(refs);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         p.print("cout << ");
@@ -1308,9 +2053,18 @@ class WriteStmtNode extends StmtNode {
         p.println(";");
     }
 
+    public boolean canLower() {
+        return myExp.canLower();
+    }
+
+    public void lower(IrFunction fn) {
+        IrOperand value = myExp.lower(fn);
+        fn.emit(myExp.type().isStringType() ? "writes" : "write", null, value);
+    }
+
     public void codeGen(String retLabel){
         myExp.codeGen();
-        Type myType = myExp.typeCheck();
+        Type myType = myExp.type();
 
         // $a0: used for output of int and string values
         Codegen.genPop(Codegen.A0);
@@ -1372,6 +2126,39 @@ class IfStmtNode extends StmtNode {
         myStmtList.typeCheck(retType);
     }
 
+    /**
+     * fold
+     * An if whose condition folds to true is replaced by its body, and one
+     * whose condition folds to false by nothing.
+     */
+    public void fold(List<StmtNode> stmts) {
+        myExp = myExp.fold();
+        if (myExp instanceof FalseNode) {
+            foldedBranch();
+            return;
+        }
+        myStmtList.fold();
+        if (myExp instanceof TrueNode) {
+            foldedBranch();
+            stmts.addAll(myStmtList.getStmts());
+        } else {
+            stmts.add(this);
+        }
+    }
+
+    public void addRefs(Set<TSym> refs) {
+        myExp.addRefs(refs);
+        myStmtList.addRefs(refs);
+    }
+
+    public int prune() {
+        return myStmtList.prune();
+    }
+
+    public int size() {
+        return 1 + myStmtList.size();
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         p.print("if (");
@@ -1383,7 +2170,26 @@ class IfStmtNode extends StmtNode {
         p.println("}");
     }
 
+    public boolean canLower() {
+        return myExp.canLower() && myStmtList.canLower();
+    }
+
+    public void lower(IrFunction fn) {
+        String skip = fn.newLabel();
+        myExp.lowerBranch(fn, false, skip);
+        myStmtList.lower(fn);
+        fn.emitLabel(skip);
+    }
+
     public void codeGen(String retLabel){
+        if (jumpCode()) {
+            String skip = Codegen.nextLabel();
+            myExp.genBranch(false, skip);
+            myStmtList.codeGen(retLabel);
+            Codegen.genLabel(skip);
+            return;
+        }
+
         // System.out.println("start if stmt node code Gen");
         // evaluate myExp, then store to t0
         myExp.codeGen(); // push
@@ -1401,7 +2207,7 @@ class IfStmtNode extends StmtNode {
         
         // else, passthrough
         myStmtList.codeGen(retLabel);
-        // Codegen.p.println("\tnop");
+        // Codegen.generateRaw("\tnop");
         
         // don't forget to print label of L0
         Codegen.genLabel(L0);
@@ -1474,6 +2280,46 @@ class IfElseStmtNode extends StmtNode {
         myElseStmtList.typeCheck(retType);
     }
 
+    /**
+     * fold
+     * An if-else whose condition folds to a constant is replaced by the
+     * branch it always takes.
+     */
+    public void fold(List<StmtNode> stmts) {
+        myExp = myExp.fold();
+        if (myExp instanceof TrueNode) {
+            foldedBranch();
+            myThenStmtList.fold();
+            stmts.addAll(myThenStmtList.getStmts());
+        } else if (myExp instanceof FalseNode) {
+            foldedBranch();
+            myElseStmtList.fold();
+            stmts.addAll(myElseStmtList.getStmts());
+        } else {
+            myThenStmtList.fold();
+            myElseStmtList.fold();
+            stmts.add(this);
+        }
+    }
+
+    public void addRefs(Set<TSym> refs) {
+        myExp.addRefs(refs);
+        myThenStmtList.addRefs(refs);
+        myElseStmtList.addRefs(refs);
+    }
+
+    public boolean isTerminal() {
+        return myThenStmtList.isTerminal() && myElseStmtList.isTerminal();
+    }
+
+    public int prune() {
+        return myThenStmtList.prune() + myElseStmtList.prune();
+    }
+
+    public int size() {
+        return 1 + myThenStmtList.size() + myElseStmtList.size();
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         p.print("if (");
@@ -1491,7 +2337,35 @@ class IfElseStmtNode extends StmtNode {
         p.println("}");
     }
 
+    public boolean canLower() {
+        return myExp.canLower() && myThenStmtList.canLower()
+            && myElseStmtList.canLower();
+    }
+
+    public void lower(IrFunction fn) {
+        String elseLabel = fn.newLabel();
+        String doneLabel = fn.newLabel();
+        myExp.lowerBranch(fn, false, elseLabel);
+        myThenStmtList.lower(fn);
+        fn.emitGoto(doneLabel);
+        fn.emitLabel(elseLabel);
+        myElseStmtList.lower(fn);
+        fn.emitLabel(doneLabel);
+    }
+
     public void codeGen(String retLabel){
+        if (jumpCode()) {
+            String elseLabel = Codegen.nextLabel();
+            String doneLabel = Codegen.nextLabel();
+            myExp.genBranch(false, elseLabel);
+            myThenStmtList.codeGen(retLabel);
+            Codegen.generate("j", doneLabel);
+            Codegen.genLabel(elseLabel);
+            myElseStmtList.codeGen(retLabel);
+            Codegen.genLabel(doneLabel);
+            return;
+        }
+
         // evaluate myExp, then store to t0
         myExp.codeGen(); // push
         Codegen.genPop(Codegen.T0); // pop to t0
@@ -1515,7 +2389,7 @@ class IfElseStmtNode extends StmtNode {
         // generate code for branch L1
         Codegen.genLabel(L1);
         myElseStmtList.codeGen(retLabel);
-        // Codegen.p.println("\tnop");
+        // Codegen.generateRaw("\tnop");
 
         // then, print the label of L0
         Codegen.genLabel(L0);
@@ -1545,6 +2419,9 @@ class WhileStmtNode extends StmtNode {
      * - exit the scope
      */
     public void nameAnalysis(SymTable symTab) {
+        if (regAlloc() != null) {
+            regAlloc().enterLoop();  // the condition runs every time round
+        }
         myExp.nameAnalysis(symTab);
         symTab.addScope();
         myDeclList.nameAnalysis(symTab);
@@ -1556,6 +2433,9 @@ class WhileStmtNode extends StmtNode {
                                " in WhileStmtNode.nameAnalysis");
             System.exit(-1);
         }
+        if (regAlloc() != null) {
+            regAlloc().exitLoop();
+        }
     }
 
     /**
@@ -1572,6 +2452,46 @@ class WhileStmtNode extends StmtNode {
         myStmtList.typeCheck(retType);
     }
 
+    /**
+     * fold
+     * A while whose condition folds to false is dropped; one whose
+     * condition folds to true loops without testing it.
+     */
+    public void fold(List<StmtNode> stmts) {
+        myExp = myExp.fold();
+        if (myExp instanceof FalseNode) {
+            foldedBranch();
+            return;
+        }
+        if (myExp instanceof TrueNode) {
+            foldedBranch();
+            myForever = true;
+        }
+        myStmtList.fold();
+        stmts.add(this);
+    }
+
+    public void addRefs(Set<TSym> refs) {
+        myExp.addRefs(refs);
+        myStmtList.addRefs(refs);
+    }
+
+    /**
+     * A loop whose condition folded to true never exits (there is no
+     * break).
+     */
+    public boolean isTerminal() {
+        return myForever;
+    }
+
+    public int prune() {
+        return myStmtList.prune();
+    }
+
+    public int size() {
+        return 1 + myStmtList.size();
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         p.print("while (");
@@ -1583,9 +2503,59 @@ class WhileStmtNode extends StmtNode {
         p.println("}");
     }
 
+    public boolean canLower() {
+        return myExp.canLower() && myStmtList.canLower();
+    }
+
+    public void lower(IrFunction fn) {
+        String top = fn.newLabel();
+        String done = fn.newLabel();
+        if (rotate() && !myForever) {
+            CompilationContext.current().count("rotate.loops", 1);
+            myExp.lowerBranch(fn, false, done);
+            fn.emitLabel(top);
+            myStmtList.lower(fn);
+            myExp.lowerBranch(fn, true, top);
+            fn.emitLabel(done);
+            return;
+        }
+        fn.emitLabel(top);
+        if (!myForever) {
+            myExp.lowerBranch(fn, false, done);
+        }
+        myStmtList.lower(fn);
+        fn.emitGoto(top);
+        fn.emitLabel(done);
+    }
+
     public void codeGen(String retLabel){
+        if (rotate() && !myForever) {
+            CompilationContext.current().count("rotate.loops", 1);
+            String top = Codegen.nextLabel();
+            String done = Codegen.nextLabel();
+            genTest(false, done);
+            Codegen.genLabel(top);
+            myStmtList.codeGen(retLabel);
+            genTest(true, top);
+            Codegen.genLabel(done);
+            return;
+        }
+
         String L0 = Codegen.nextLabel(); 
         Codegen.genLabel(L0);
+        if (myForever) {
+            myStmtList.codeGen(retLabel);
+            Codegen.generate("j", L0);
+            return;
+        }
+        if (jumpCode()) {
+            String done = Codegen.nextLabel();
+            myExp.genBranch(false, done);
+            myStmtList.codeGen(retLabel);
+            Codegen.generate("j", L0);
+            Codegen.genLabel(done);
+            return;
+        }
         
         // evaluate myExp, then store to t0
         myExp.codeGen(); // push
@@ -1611,10 +2581,28 @@ class WhileStmtNode extends StmtNode {
         Codegen.genLabel(L1);
     }
 
+    /**
+     * genTest
+     * Generate code to jump to label if the condition is sense.
+     */
+    private void genTest(boolean sense, String label) {
+        if (jumpCode()) {
+            myExp.genBranch(sense, label);
+            return;
+        }
+        myExp.codeGen();
+        Codegen.genPop(Codegen.T0);
+        Codegen.generate("li", Codegen.T1, Codegen.TRUE);
+        Codegen.generate(sense ? "beq" : "bne", Codegen.T0, Codegen.T1, label);
+    }
+
     // 3 kids
     private ExpNode myExp;
     private DeclListNode myDeclList;
     private StmtListNode myStmtList;
+
+    // set by fold when the condition is always true
+    private boolean myForever = false;
 }
 
 class RepeatStmtNode extends StmtNode {
@@ -1634,6 +2622,18 @@ class RepeatStmtNode extends StmtNode {
      */
     public void nameAnalysis(SymTable symTab) {
         myExp.nameAnalysis(symTab);
+
+        // the number of passes left goes in a slot of its own, below the
+        // locals declared so far
+        myCount = new TSym(Type.INT);
+        int offset = symTab.getInitialOffset();
+        myCount.setOffset(offset);
+        symTab.setInitialOffset(offset - 4);
+        if (regAlloc() != null) {
+            regAlloc().declare(myCount, false);
+            regAlloc().enterLoop();
+            regAlloc().use(myCount);
+        }
         symTab.addScope();
         myDeclList.nameAnalysis(symTab);
         myStmtList.nameAnalysis(symTab);
@@ -1644,6 +2644,9 @@ class RepeatStmtNode extends StmtNode {
                                " in RepeatStmtNode.nameAnalysis");
             System.exit(-1);
         }
+        if (regAlloc() != null) {
+            regAlloc().exitLoop();
+        }
     }
 
     /**
@@ -1660,6 +2663,25 @@ class RepeatStmtNode extends StmtNode {
         myStmtList.typeCheck(retType);
     }
 
+    public void fold(List<StmtNode> stmts) {
+        myExp = myExp.fold();
+        myStmtList.fold();
+        stmts.add(this);
+    }
+
+    public void addRefs(Set<TSym> refs) {
+        myExp.addRefs(refs);
+        myStmtList.addRefs(refs);
+    }
+
+    public int prune() {
+        return myStmtList.prune();
+    }
+
+    public int size() {
+        return 1 + myStmtList.size();
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         p.print("repeat (");
@@ -1671,12 +2693,94 @@ class RepeatStmtNode extends StmtNode {
         p.println("}");
     }
 
-    public void codeGen(String s){}
+    public boolean canLower() {
+        return myExp.canLower() && myStmtList.canLower();
+    }
+
+    /**
+     * lower
+     * The count is evaluated once; the body then runs that many times
+     * (none if it is not positive).
+     */
+    public void lower(IrFunction fn) {
+        IrOperand count = IrOperand.var(myCount, "repeat");
+        IrOperand zero = IrOperand.constant(0);
+        fn.emit("copy", count, myExp.lower(fn));
+        String top = fn.newLabel();
+        String done = fn.newLabel();
+        if (rotate()) {
+            CompilationContext.current().count("rotate.loops", 1);
+            fn.emitBranch("ble", count, zero, done);
+            fn.emitLabel(top);
+            myStmtList.lower(fn);
+            fn.emit("sub", count, count, IrOperand.constant(1));
+            fn.emitBranch("bgt", count, zero, top);
+        } else {
+            fn.emitLabel(top);
+            fn.emitBranch("ble", count, zero, done);
+            myStmtList.lower(fn);
+            fn.emit("sub", count, count, IrOperand.constant(1));
+            fn.emitGoto(top);
+        }
+        fn.emitLabel(done);
+    }
+
+    public void codeGen(String retLabel) {
+        myExp.codeGen();
+        Codegen.genPop(Codegen.T0);
+        storeCount(Codegen.T0);
+        String top = Codegen.nextLabel();
+        String done = Codegen.nextLabel();
+        if (rotate()) {
+            CompilationContext.current().count("rotate.loops", 1);
+            Codegen.generate("ble", loadCount(), Codegen.ZERO, done);
+            Codegen.genLabel(top);
+            myStmtList.codeGen(retLabel);
+            genDecrement();
+            Codegen.generate("bgt", loadCount(), Codegen.ZERO, top);
+        } else {
+            Codegen.genLabel(top);
+            Codegen.generate("ble", loadCount(), Codegen.ZERO, done);
+            myStmtList.codeGen(retLabel);
+            genDecrement();
+            Codegen.generate("j", top);
+        }
+        Codegen.genLabel(done);
+    }
+
+    // return a register holding the count: its own, or $t0 loaded from
+    // its slot
+    private String loadCount() {
+        if (myCount.getRegister() != null) {
+            return myCount.getRegister();
+        }
+        Codegen.generateIndexed("lw", Codegen.T0, Codegen.FP, myCount.getOffset());
+        return Codegen.T0;
+    }
+
+    private void storeCount(String reg) {
+        if (myCount.getRegister() != null) {
+            Codegen.generate("move", myCount.getRegister(), reg);
+        } else {
+            Codegen.generateIndexed("sw", reg, Codegen.FP, myCount.getOffset());
+        }
+    }
+
+    private void genDecrement() {
+        String reg = loadCount();
+        Codegen.generate("addi", reg, reg, "-1");
+        if (myCount.getRegister() == null) {
+            storeCount(reg);
+        }
+    }
 
     // 3 kids
     private ExpNode myExp;
     private DeclListNode myDeclList;
     private StmtListNode myStmtList;
+
+    // the passes left
+    private TSym myCount;
 }
 
 
@@ -1700,15 +2804,33 @@ class CallStmtNode extends StmtNode {
         myCall.typeCheck();
     }
 
+    public void fold(List<StmtNode> stmts) {
+        myCall.fold();
+        stmts.add(this);
+    }
+
+    public void addRefs(Set<TSym> refs) {
+        myCall.addRefs(refs);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         myCall.unparse(p, indent);
         p.println(";");
     }
 
+    public boolean canLower() {
+        return myCall.canLower();
+    }
+
+    public void lower(IrFunction fn) {
+        myCall.lowerCall(fn, false);
+    }
+
     // function call
     public void codeGen(String retLabel) {
         myCall.codeGen(); // end with jal ...
+        Codegen.genPop(Codegen.V0); // discard the result it pushed
         
         // // get the number of params
         // int numExps = myCall.getNumExps();
@@ -1752,7 +2874,7 @@ class ReturnStmtNode extends StmtNode {
                              "Return with a value in a void function");
             }
 
-            else if (!retType.isErrorType() && !type.isErrorType() && !retType.equals(type)){
+            else if (!retType.isErrorType() && !type.isErrorType() && retType != type){
                 ErrMsg.fatal(myExp.lineNum(), myExp.charNum(),
                              "Bad return value");
             }
@@ -1766,6 +2888,23 @@ class ReturnStmtNode extends StmtNode {
 
     }
 
+    public void fold(List<StmtNode> stmts) {
+        if (myExp != null) {
+            myExp = myExp.fold();
+        }
+        stmts.add(this);
+    }
+
+    public void addRefs(Set<TSym> refs) {
+        if (myExp != null) {
+            myExp.addRefs(refs);
+        }
+    }
+
+    public boolean isTerminal() {
+        return true;
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         p.print("return");
@@ -1776,7 +2915,20 @@ class ReturnStmtNode extends StmtNode {
         p.println(";");
     }
 
+    public boolean canLower() {
+        return myExp == null || myExp.canLower();
+    }
+
+    public void lower(IrFunction fn) {
+        fn.emit("return", null, myExp == null ? null : myExp.lower(fn));
+    }
+
     public void codeGen(String retLabel) {
+        FnDeclNode fn = CompilationContext.current().getFunction();
+        if (myExp instanceof CallExpNode && fn != null
+                && ((CallExpNode)myExp).codeGenTail(fn)) {
+            return;
+        }
         if(myExp != null){
             myExp.codeGen();
             Codegen.genPop(Codegen.V0); // pop the retval to v0
@@ -1798,48 +2950,241 @@ abstract class ExpNode extends ASTnode {
      */
     public void nameAnalysis(SymTable symTab) { }
 
-    abstract public Type typeCheck();
+    /**
+     * typeCheck
+     * Type check this expression and record its type on the node, so that
+     * code generation and later passes can ask type() instead of checking
+     * the subtree again.
+     */
+    public Type typeCheck() {
+        myType = checkType();
+        return myType;
+    }
+
+    /**
+     * Return the type recorded by typeCheck (null before type checking).
+     */
+    public Type type() {
+        return myType;
+    }
+
+    /**
+     * checkType
+     * The type checking proper of each kind of expression.
+     */
+    abstract protected Type checkType();
     abstract public int lineNum();
     abstract public int charNum();
     abstract public void codeGen();
-}
 
-class IntLitNode extends ExpNode {
-    public IntLitNode(int lineNum, int charNum, int intVal) {
-        myLineNum = lineNum;
-        myCharNum = charNum;
-        myIntVal = intVal;
+    /**
+     * fold
+     * Fold the constant subexpressions of this expression and apply the
+     * algebraic identities that hold for it; return the expression to use
+     * in its place (this one, a literal or one of its operands).  By
+     * default there is nothing to fold.
+     */
+    public ExpNode fold() {
+        return this;
     }
 
     /**
-     * Return the line number for this literal.
+     * genReg
+     * Generate code that leaves the value of this expression in a register
+     * and return the register: either a temporary from Codegen.takeTemp,
+     * which the caller must free, or the register of a local, which the
+     * caller must not change.  By default the value is computed on the
+     * stack and popped into a temporary.
      */
-    public int lineNum() {
-        return myLineNum;
+    public String genReg() {
+        codeGen();
+        return popTemp();
     }
 
     /**
-     * Return the char number for this literal.
+     * regNeed
+     * Return the number of temporaries genReg needs (the Sethi-Ullman
+     * number of this expression).
      */
-    public int charNum() {
-        return myCharNum;
+    public int regNeed() {
+        return 1;
     }
 
     /**
-     * typeCheck
+     * hasSideEffects
+     * Might evaluating this expression change a variable or produce
+     * output?  If not, it may be evaluated out of source order.
      */
-    public Type typeCheck() {
-        return new IntType();
+    public boolean hasSideEffects() {
+        return false;
     }
 
-    public void unparse(PrintWriter p, int indent) {
-        p.print(myIntVal);
+    /**
+     * addRefs
+     * Add to refs the functions this expression calls and the globals it
+     * uses.  By default there are none.
+     */
+    public void addRefs(Set<TSym> refs) {
     }
 
-    public void codeGen() {
-        String s = Integer.toString(myIntVal);
-        Codegen.generate("li", Codegen.T0, s);
-        Codegen.genPush(Codegen.T0);
+    /**
+     * genBranch
+     * Generate code for this boolean expression that jumps to label if
+     * its value is sense and falls through otherwise.  By default the
+     * value is computed and tested against zero; conditions override this
+     * to branch without computing a value.
+     */
+    public void genBranch(boolean sense, String label) {
+        String reg;
+        if (tempRegs()) {
+            reg = genReg();
+            Codegen.freeTemp(reg);
+        } else {
+            codeGen();
+            reg = Codegen.T0;
+            Codegen.genPop(reg);
+        }
+        Codegen.generate(sense ? "bne" : "beq", reg, Codegen.ZERO, label);
+    }
+
+    /**
+     * canLower
+     * Can this expression, and everything in it, be lowered to IR?
+     */
+    public boolean canLower() {
+        return false;
+    }
+
+    /**
+     * lower
+     * Add the IR that computes this expression to fn and return the
+     * operand that holds its value; only called if canLower().
+     */
+    abstract public IrOperand lower(IrFunction fn);
+
+    /**
+     * lowerBranch
+     * Add IR that jumps to label if the value of this boolean expression
+     * is sense (see genBranch).
+     */
+    public void lowerBranch(IrFunction fn, boolean sense, String label) {
+        fn.emitBranch(sense ? "bne" : "beq", lower(fn), IrOperand.constant(0), label);
+    }
+
+    // are expressions evaluated in registers rather than on the stack?
+    protected static boolean tempRegs() {
+        return CompilationContext.current().isOptimizing("tempregs");
+    }
+
+    // pop the top of the stack into a new temporary
+    protected static String popTemp() {
+        String reg = Codegen.takeTemp();
+        Codegen.genPop(reg);
+        return reg;
+    }
+
+    // push the value in reg and free reg
+    protected static void pushTemp(String reg) {
+        Codegen.genPush(reg);
+        Codegen.freeTemp(reg);
+    }
+
+    // helpers for fold
+
+    protected static boolean isIntLit(ExpNode exp) {
+        return exp instanceof IntLitNode;
+    }
+
+    protected static boolean isIntLit(ExpNode exp, int value) {
+        return exp instanceof IntLitNode && ((IntLitNode)exp).intVal() == value;
+    }
+
+    protected static int intVal(ExpNode exp) {
+        return ((IntLitNode)exp).intVal();
+    }
+
+    protected static boolean isBoolLit(ExpNode exp) {
+        return exp instanceof TrueNode || exp instanceof FalseNode;
+    }
+
+    // return a type-checked literal for value, in place of exp
+    protected static ExpNode intLit(ExpNode exp, int value) {
+        return folded(new IntLitNode(exp.lineNum(), exp.charNum(), value));
+    }
+
+    protected static ExpNode boolLit(ExpNode exp, boolean value) {
+        if (value) {
+            return folded(new TrueNode(exp.lineNum(), exp.charNum()));
+        }
+        return folded(new FalseNode(exp.lineNum(), exp.charNum()));
+    }
+
+    // count a folded expression and return what it folded to
+    protected static ExpNode folded(ExpNode exp) {
+        if (exp.type() == null) {
+            exp.typeCheck();
+        }
+        CompilationContext.current().count("constfold.exps", 1);
+        return exp;
+    }
+
+    private Type myType;
+}
+
+class IntLitNode extends ExpNode {
+    public IntLitNode(int lineNum, int charNum, int intVal) {
+        myLineNum = lineNum;
+        myCharNum = charNum;
+        myIntVal = intVal;
+    }
+
+    /**
+     * Return the line number for this literal.
+     */
+    public int lineNum() {
+        return myLineNum;
+    }
+
+    /**
+     * Return the char number for this literal.
+     */
+    public int charNum() {
+        return myCharNum;
+    }
+
+    /**
+     * checkType
+     */
+    protected Type checkType() {
+        return Type.INT;
+    }
+
+    public void unparse(PrintWriter p, int indent) {
+        p.print(myIntVal);
+    }
+
+    public void codeGen() {
+        String s = Integer.toString(myIntVal);
+        Codegen.generate("li", Codegen.T0, s);
+        Codegen.genPush(Codegen.T0);
+    }
+
+    public String genReg() {
+        String reg = Codegen.takeTemp();
+        Codegen.generate("li", reg, Integer.toString(myIntVal));
+        return reg;
+    }
+
+    public int intVal() {
+        return myIntVal;
+    }
+
+    public boolean canLower() {
+        return true;
+    }
+
+    public IrOperand lower(IrFunction fn) {
+        return IrOperand.constant(myIntVal);
     }
 
     private int myLineNum;
@@ -1869,10 +3214,10 @@ class StringLitNode extends ExpNode {
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
-        return new StringType();
+    protected Type checkType() {
+        return Type.STRING;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1881,18 +3226,33 @@ class StringLitNode extends ExpNode {
 
     public void codeGen() {
         // print the required data
-        Codegen.generate(".data");
-        String strLabel = Codegen.nextLabel();
-        Codegen.generateLabeled(strLabel, ".asciiz ", "", myStrVal);
-        Codegen.generate(".text");
-        
+        String strLabel = Codegen.genString(myStrVal, myShared);
+
         // push onto stack
         Codegen.generate("la", Codegen.T0, strLabel);
         Codegen.genPush(Codegen.T0);
     }
+
+    public boolean canLower() {
+        return true;
+    }
+
+    public IrOperand lower(IrFunction fn) {
+        return IrOperand.str(myStrVal);
+    }
+
+    /**
+     * Let the code for this literal share its data with the other copies
+     * of the same text; only right if its address is never compared.
+     */
+    public void share() {
+        myShared = true;
+    }
+
     private int myLineNum;
     private int myCharNum;
     private String myStrVal;
+    private boolean myShared = false;
 }
 
 class TrueNode extends ExpNode {
@@ -1916,10 +3276,10 @@ class TrueNode extends ExpNode {
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
-        return new BoolType();
+    protected Type checkType() {
+        return Type.BOOL;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1931,6 +3291,32 @@ class TrueNode extends ExpNode {
         Codegen.genPush(Codegen.T0);
     }
 
+    public void genBranch(boolean sense, String label) {
+        if (sense) {
+            Codegen.generate("j", label);
+        }
+    }
+
+    public boolean canLower() {
+        return true;
+    }
+
+    public IrOperand lower(IrFunction fn) {
+        return IrOperand.constant(1);
+    }
+
+    public void lowerBranch(IrFunction fn, boolean sense, String label) {
+        if (sense) {
+            fn.emitGoto(label);
+        }
+    }
+
+    public String genReg() {
+        String reg = Codegen.takeTemp();
+        Codegen.generate("li", reg, Codegen.TRUE);
+        return reg;
+    }
+
     private int myLineNum;
     private int myCharNum;
 }
@@ -1956,10 +3342,10 @@ class FalseNode extends ExpNode {
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
-        return new BoolType();
+    protected Type checkType() {
+        return Type.BOOL;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1971,14 +3357,41 @@ class FalseNode extends ExpNode {
         Codegen.genPush(Codegen.T0);
     }
 
+    public void genBranch(boolean sense, String label) {
+        if (!sense) {
+            Codegen.generate("j", label);
+        }
+    }
+
+    public boolean canLower() {
+        return true;
+    }
+
+    public IrOperand lower(IrFunction fn) {
+        return IrOperand.constant(0);
+    }
+
+    public void lowerBranch(IrFunction fn, boolean sense, String label) {
+        if (!sense) {
+            fn.emitGoto(label);
+        }
+    }
+
+    public String genReg() {
+        String reg = Codegen.takeTemp();
+        Codegen.generate("li", reg, Codegen.FALSE);
+        return reg;
+    }
+
     private int myLineNum;
     private int myCharNum;
 }
 
 class IdNode extends ExpNode {
-    public IdNode(int lineNum, int charNum, String strVal) {
+    public IdNode(int lineNum, int charNum, int id, String strVal) {
         myLineNum = lineNum;
         myCharNum = charNum;
+        myId = id;
         myStrVal = strVal;
     }
 
@@ -1996,6 +3409,13 @@ class IdNode extends ExpNode {
         return myStrVal;
     }
 
+    /**
+     * Return the interned ID of this ID's name (see NameTable).
+     */
+    public int id() {
+        return myId;
+    }
+
     /**
      * Return the symbol associated with this ID.
      */
@@ -2027,7 +3447,7 @@ class IdNode extends ExpNode {
         TSym sym = null;
 
         try {
-          sym = symTab.lookupGlobal(myStrVal);
+          sym = symTab.lookupGlobal(myId);
         } catch (EmptySymTableException ex) {
             System.err.println("Unexpected EmptySymTableException " +
                                " in IdNode.nameAnalysis");
@@ -2038,13 +3458,16 @@ class IdNode extends ExpNode {
             ErrMsg.fatal(myLineNum, myCharNum, "Undeclared identifier");
         } else {
             link(sym);
+            if (regAlloc() != null) {
+                regAlloc().use(sym);
+            }
         }
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
+    protected Type checkType() {
         if (mySym != null) {
             return mySym.getType();
         }
@@ -2055,6 +3478,12 @@ class IdNode extends ExpNode {
         return null;
     }
 
+    public void addRefs(Set<TSym> refs) {
+        if (mySym instanceof FnSym || (mySym != null && mySym.getGlobal())) {
+            refs.add(mySym);
+        }
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print(myStrVal);
         if (mySym != null) {
@@ -2075,6 +3504,11 @@ class IdNode extends ExpNode {
     }
 
     public void codeGen(){
+        // a local kept in a register is pushed straight from it
+        if (mySym.getRegister() != null) {
+            Codegen.genPush(mySym.getRegister());
+            return;
+        }
         // check if this IdNode is local variable
         if(mySym.getGlobal() == false){
             int offset = mySym.getOffset();
@@ -2088,8 +3522,39 @@ class IdNode extends ExpNode {
         Codegen.genPush(Codegen.T0);
     }
 
+    public String genReg() {
+        if (mySym.getRegister() != null) {
+            return mySym.getRegister();
+        }
+        String reg = Codegen.takeTemp();
+        if (mySym.getGlobal()) {
+            Codegen.generate("lw", reg, "_" + myStrVal);
+        } else {
+            Codegen.generateIndexed("lw", reg, Codegen.FP, mySym.getOffset());
+        }
+        return reg;
+    }
+
+    public int regNeed() {
+        return mySym.getRegister() != null ? 0 : 1;
+    }
+
+    public boolean canLower() {
+        return mySym.getType().isIntType() || mySym.getType().isBoolType();
+    }
+
+    /**
+     * lower
+     * An int or bool variable is an IR operand of its own; structs have
+     * no IR form (see canLower).
+     */
+    public IrOperand lower(IrFunction fn) {
+        return IrOperand.var(mySym, myStrVal);
+    }
+
     private int myLineNum;
     private int myCharNum;
+    private int myId;
     private String myStrVal;
     private TSym mySym;
 }
@@ -2202,7 +3667,7 @@ class DotAccessExpNode extends ExpNode {
         if (!badAccess) {
 
             try {
-                sym = structSymTab.lookupGlobal(myId.name()); // lookup
+                sym = structSymTab.lookupGlobal(myId.id()); // lookup
             } catch (EmptySymTableException ex) {
                 System.err.println("Unexpected EmptySymTableException " +
                                  " in DotAccessExpNode.nameAnalysis");
@@ -2226,12 +3691,16 @@ class DotAccessExpNode extends ExpNode {
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
+    protected Type checkType() {
         return myId.typeCheck();
     }
 
+    public void addRefs(Set<TSym> refs) {
+        myLoc.addRefs(refs);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         myLoc.unparse(p, 0);
         p.print(".");
@@ -2240,6 +3709,11 @@ class DotAccessExpNode extends ExpNode {
     
     public void codeGen(){}
 
+    // a field has no IR form (canLower is false), so this is never called
+    public IrOperand lower(IrFunction fn) {
+        return null;
+    }
+
     // 2 kids
     private ExpNode myLoc;
     private IdNode myId;
@@ -2280,40 +3754,62 @@ class AssignNode extends ExpNode {
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
+    protected Type checkType() {
         Type typeLhs = myLhs.typeCheck();
         Type typeExp = myExp.typeCheck();
         Type retType = typeLhs;
 
         if (typeLhs.isFnType() && typeExp.isFnType()) {
             ErrMsg.fatal(lineNum(), charNum(), "Function assignment");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (typeLhs.isStructDefType() && typeExp.isStructDefType()) {
             ErrMsg.fatal(lineNum(), charNum(), "Struct name assignment");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (typeLhs.isStructType() && typeExp.isStructType()) {
             ErrMsg.fatal(lineNum(), charNum(), "Struct variable assignment");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
-        if (!typeLhs.equals(typeExp) && !typeLhs.isErrorType() && !typeExp.isErrorType()) {
+        // (two different struct types have already been reported above)
+        if (typeLhs != typeExp && !retType.isErrorType() && !typeExp.isErrorType()) {
             ErrMsg.fatal(lineNum(), charNum(), "Type mismatch");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (typeLhs.isErrorType() || typeExp.isErrorType()) {
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         return retType;
     }
 
+    public ExpNode fold() {
+        myExp = myExp.fold();
+        return this;
+    }
+
+    public boolean canLower() {
+        return myLhs instanceof IdNode && myLhs.canLower() && myExp.canLower();
+    }
+
+    public IrOperand lower(IrFunction fn) {
+        IrOperand value = myExp.lower(fn);
+        IrOperand var = myLhs.lower(fn);
+        fn.emit("copy", var, value);
+        return var;
+    }
+
+    public void addRefs(Set<TSym> refs) {
+        myLhs.addRefs(refs);
+        myExp.addRefs(refs);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         if (indent != -1)  p.print("(");
         myLhs.unparse(p, 0);
@@ -2326,6 +3822,12 @@ class AssignNode extends ExpNode {
     public void codeGen(){
         // compute myExp, push onto stack
         myExp.codeGen();
+
+        // a local kept in a register is assigned by popping into it
+        if (myLhs instanceof IdNode && ((IdNode)myLhs).sym().getRegister() != null) {
+            Codegen.genPop(((IdNode)myLhs).sym().getRegister());
+            return;
+        }
         
         // get myLhs addr, push onto stack
         ((IdNode)myLhs).generateAddress();
@@ -2337,6 +3839,10 @@ class AssignNode extends ExpNode {
         Codegen.generateIndexed("sw", Codegen.T0, Codegen.T1, 0);
     }
 
+    public boolean hasSideEffects() {
+        return true;
+    }
+
     // 2 kids
     private ExpNode myLhs;
     private ExpNode myExp;
@@ -2375,18 +3881,22 @@ class CallExpNode extends ExpNode {
      * two children
      */
     public void nameAnalysis(SymTable symTab) {
+        int[] call = regAlloc() == null ? null : regAlloc().startCall();
         myId.nameAnalysis(symTab);
         myExpList.nameAnalysis(symTab);
+        if (call != null) {
+            regAlloc().endCall(call);
+        }
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
+    protected Type checkType() {
         if (!myId.typeCheck().isFnType()) {
             ErrMsg.fatal(myId.lineNum(), myId.charNum(),
                          "Attempt to call a non-function");
-            return new ErrorType();
+            return Type.ERROR;
         }
 
         FnSym fnSym = (FnSym)(myId.sym());
@@ -2406,7 +3916,39 @@ class CallExpNode extends ExpNode {
         return fnSym.getReturnType();
     }
 
+    public ExpNode fold() {
+        myExpList.fold();
+        return this;
+    }
+
+    public boolean canLower() {
+        return myExpList.canLower();
+    }
+
+    public IrOperand lower(IrFunction fn) {
+        return lowerCall(fn, true);
+    }
+
+    /**
+     * lowerCall
+     * Add the IR for the call to fn; return the temporary holding the
+     * result if value is true, else null.
+     */
+    public IrOperand lowerCall(IrFunction fn, boolean value) {
+        myExpList.lower(fn);
+        IrOperand result = value ? fn.newTemp() : null;
+        fn.emitCall(result, myId.name(), myExpList.size());
+        return result;
+    }
+
     // ** unparse **
+    public void addRefs(Set<TSym> refs) {
+        myId.addRefs(refs);
+        if (myExpList != null) {
+            myExpList.addRefs(refs);
+        }
+    }
+
     public void unparse(PrintWriter p, int indent) {
         myId.unparse(p, 0);
         p.print("(");
@@ -2418,6 +3960,10 @@ class CallExpNode extends ExpNode {
 
     // code generation for function call
     public void codeGen(){
+        // temporaries holding parts of an enclosing expression do not
+        // survive the call
+        int saved = Codegen.saveTemps();
+
         // do codeGen for the parameters
         myExpList.codeGen();
 
@@ -2429,9 +3975,33 @@ class CallExpNode extends ExpNode {
             Codegen.generate("jal", myId.name());
         }
 
+        // pop the arguments
+        if (myExpList.size() > 0) {
+            Codegen.generate("addu", Codegen.SP, Codegen.SP, 4 * myExpList.size());
+        }
+        Codegen.restoreTemps(saved);
+
         Codegen.genPush(Codegen.V0);
     }
 
+    /**
+     * codeGenTail
+     * Generate the call as a tail call of fn (see FnDeclNode.genTailCall),
+     * which returns its value, if fn allows it; return whether it did.
+     */
+    public boolean codeGenTail(FnDeclNode fn) {
+        if (!fn.canTailCall(myId.name(), myExpList.size())) {
+            return false;
+        }
+        myExpList.codeGen();
+        fn.genTailCall(myId.name(), myExpList.size());
+        return true;
+    }
+
+    public boolean hasSideEffects() {
+        return true;
+    }
+
     public int getNumExps(){
         return myExpList.size();
     }
@@ -2470,6 +4040,60 @@ abstract class UnaryExpNode extends ExpNode {
         myExp.nameAnalysis(symTab);
     }
 
+    /**
+     * codeGen
+     * Evaluate in registers when asked to (see genReg), else on the stack.
+     */
+    public void codeGen() {
+        if (tempRegs()) {
+            pushTemp(genReg());
+        } else {
+            stackCodeGen();
+        }
+    }
+
+    abstract protected void stackCodeGen();
+
+    /**
+     * fold
+     * Fold the operand, then this node (see simplify).
+     */
+    public ExpNode fold() {
+        myExp = myExp.fold();
+        return simplify();
+    }
+
+    /**
+     * simplify
+     * Given a folded operand, return the expression to use in place of
+     * this node.
+     */
+    abstract protected ExpNode simplify();
+
+    public boolean canLower() {
+        return myExp.canLower();
+    }
+
+    // lower to dest = op operand
+    protected IrOperand lowerUnary(IrFunction fn, String op) {
+        IrOperand a = myExp.lower(fn);
+        IrOperand t = fn.newTemp();
+        fn.emit(op, t, a);
+        return t;
+    }
+
+    public int regNeed() {
+        return myExp.regNeed();
+    }
+
+    public boolean hasSideEffects() {
+        return myExp.hasSideEffects();
+    }
+
+    public void addRefs(Set<TSym> refs) {
+        myExp.addRefs(refs);
+    }
+
     // one child
     protected ExpNode myExp;
 }
@@ -2506,6 +4130,161 @@ abstract class BinaryExpNode extends ExpNode {
         myExp2.nameAnalysis(symTab);
     }
 
+    /**
+     * codeGen
+     * Evaluate in registers when asked to (see genReg), else on the stack.
+     */
+    public void codeGen() {
+        if (tempRegs()) {
+            pushTemp(genReg());
+        } else {
+            stackCodeGen();
+        }
+    }
+
+    abstract protected void stackCodeGen();
+
+    abstract public String genReg();
+
+    /**
+     * fold
+     * Fold both operands, then this node (see simplify).
+     */
+    public ExpNode fold() {
+        myExp1 = myExp1.fold();
+        myExp2 = myExp2.fold();
+        return simplify();
+    }
+
+    /**
+     * simplify
+     * Given folded operands, return the expression to use in place of
+     * this node.  An operand may only be dropped if it has no side effects.
+     */
+    abstract protected ExpNode simplify();
+
+    public int regNeed() {
+        int n1 = myExp1.regNeed();
+        int n2 = myExp2.regNeed();
+        return n1 == n2 ? n1 + 1 : Math.max(n1, n2);
+    }
+
+    public boolean hasSideEffects() {
+        return myExp1.hasSideEffects() || myExp2.hasSideEffects();
+    }
+
+    public void addRefs(Set<TSym> refs) {
+        myExp1.addRefs(refs);
+        myExp2.addRefs(refs);
+    }
+
+    /**
+     * genOperands
+     * Evaluate both operands into registers for genReg and return them as
+     * {left, right}.  The operand that needs more temporaries goes first
+     * (Sethi-Ullman order) unless that would reorder side effects.  The
+     * first value is spilled to the stack while the second is evaluated if
+     * the pool of temporaries runs out, and copied out of a local's
+     * register if the second operand might change the local.
+     */
+    protected String[] genOperands() {
+        boolean swap = myExp2.regNeed() > myExp1.regNeed() && !hasSideEffects();
+        ExpNode first = swap ? myExp2 : myExp1;
+        ExpNode second = swap ? myExp1 : myExp2;
+
+        String r1 = first.genReg();
+        boolean spill = false;
+        if (!Codegen.isTemp(r1) && second.hasSideEffects()) {
+            if (Codegen.freeTemps() > 0) {
+                String copy = Codegen.takeTemp();
+                Codegen.generate("move", copy, r1);
+                r1 = copy;
+            } else {
+                spill = true;
+            }
+        } else if (Codegen.isTemp(r1) && Codegen.freeTemps() == 0
+                   && second.regNeed() > 0) {
+            spill = true;
+        }
+        if (spill) {
+            Codegen.genPush(r1);
+            Codegen.freeTemp(r1);
+            CompilationContext.current().count("tempregs.spills", 1);
+        }
+        String r2 = second.genReg();
+        if (spill && Codegen.freeTemps() == 0) {
+            // the result is computed right away, so the scratch register
+            // can hold the first value until then
+            r1 = Codegen.T1;
+            Codegen.genPop(r1);
+        } else if (spill) {
+            r1 = popTemp();
+        }
+        return swap ? new String[] { r2, r1 } : new String[] { r1, r2 };
+    }
+
+    /**
+     * genCompareBranch
+     * Evaluate both operands and compare them with the branch instruction
+     * op, jumping to label if it holds.
+     */
+    protected void genCompareBranch(String op, String label) {
+        if (tempRegs()) {
+            String[] regs = genOperands();
+            Codegen.freeTemp(regs[0]);
+            Codegen.freeTemp(regs[1]);
+            Codegen.generate(op, regs[0], regs[1], label);
+        } else {
+            myExp1.codeGen();
+            myExp2.codeGen();
+            Codegen.genPop(Codegen.T1);
+            Codegen.genPop(Codegen.T0);
+            Codegen.generate(op, Codegen.T0, Codegen.T1, label);
+        }
+    }
+
+    /**
+     * lowerOperands
+     * Add the IR for both operands, left first, and return their operands.
+     * A variable read by the left operand is copied first if the right
+     * operand might change it.
+     */
+    protected IrOperand[] lowerOperands(IrFunction fn) {
+        IrOperand a = myExp1.lower(fn);
+        if (a.isVar() && myExp2.hasSideEffects()) {
+            IrOperand copy = fn.newTemp();
+            fn.emit("copy", copy, a);
+            a = copy;
+        }
+        IrOperand b = myExp2.lower(fn);
+        return new IrOperand[] { a, b };
+    }
+
+    public boolean canLower() {
+        return myExp1.canLower() && myExp2.canLower();
+    }
+
+    // lower to dest = exp1 op exp2
+    protected IrOperand lowerOp(IrFunction fn, String op) {
+        IrOperand[] ops = lowerOperands(fn);
+        return fn.emitTemp(op, ops[0], ops[1]);
+    }
+
+    // lower to if exp1 op exp2 goto label
+    protected void lowerCompareBranch(IrFunction fn, String op, String label) {
+        IrOperand[] ops = lowerOperands(fn);
+        fn.emitBranch(op, ops[0], ops[1], label);
+    }
+
+    /**
+     * Free the operand registers and return a temporary for the result.
+     */
+    protected static String resultTemp(String[] regs) {
+        Codegen.freeTemp(regs[0]);
+        Codegen.freeTemp(regs[1]);
+        return Codegen.takeTemp();
+    }
+
     // two kids
     protected ExpNode myExp1;
     protected ExpNode myExp2;
@@ -2521,38 +4300,58 @@ class UnaryMinusNode extends UnaryExpNode {
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
+    protected Type checkType() {
         Type type = myExp.typeCheck();
-        Type retType = new IntType();
+        Type retType = Type.INT;
 
         if (!type.isErrorType() && !type.isIntType()) {
             ErrMsg.fatal(lineNum(), charNum(),
                          "Arithmetic operator applied to non-numeric operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (type.isErrorType()) {
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         return retType;
     }
 
+    protected ExpNode simplify() {
+        // -MIN_VALUE overflows, which sub traps
+        if (isIntLit(myExp) && intVal(myExp) != Integer.MIN_VALUE) {
+            return intLit(this, -intVal(myExp));
+        }
+        return this;
+    }
+
+    public IrOperand lower(IrFunction fn) {
+        return lowerUnary(fn, "neg");
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("(-");
         myExp.unparse(p, 0);
         p.print(")");
     }
 
-    public void codeGen(){
+    protected void stackCodeGen(){
         myExp.codeGen();
         Codegen.genPop(Codegen.T0);
         Codegen.generate("li", Codegen.T1, Codegen.FALSE); // load 0 to t1
         Codegen.generate("sub", Codegen.T0, Codegen.T1, Codegen.T0);
         Codegen.genPush(Codegen.T0);
     }
+
+    public String genReg() {
+        String reg = myExp.genReg();
+        Codegen.freeTemp(reg);
+        String dest = Codegen.takeTemp();
+        Codegen.generate("sub", dest, Codegen.ZERO, reg);
+        return dest;
+    }
 }
 
 class NotNode extends UnaryExpNode {
@@ -2561,32 +4360,54 @@ class NotNode extends UnaryExpNode {
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
+    protected Type checkType() {
         Type type = myExp.typeCheck();
-        Type retType = new BoolType();
+        Type retType = Type.BOOL;
 
         if (!type.isErrorType() && !type.isBoolType()) {
             ErrMsg.fatal(lineNum(), charNum(),
                          "Logical operator applied to non-bool operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (type.isErrorType()) {
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         return retType;
     }
 
+    protected ExpNode simplify() {
+        if (isBoolLit(myExp)) {
+            return boolLit(this, myExp instanceof FalseNode);
+        }
+        if (myExp instanceof NotNode) {
+            return folded(((NotNode)myExp).myExp);  // !!b is b
+        }
+        return this;
+    }
+
+    public void genBranch(boolean sense, String label) {
+        myExp.genBranch(!sense, label);
+    }
+
+    public IrOperand lower(IrFunction fn) {
+        return lowerUnary(fn, "not");
+    }
+
+    public void lowerBranch(IrFunction fn, boolean sense, String label) {
+        myExp.lowerBranch(fn, !sense, label);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("(!");
         myExp.unparse(p, 0);
         p.print(")");
     }
 
-    public void codeGen(){
+    protected void stackCodeGen(){
         myExp.codeGen();
         Codegen.genPop(Codegen.T0);
         Codegen.generate("li", Codegen.T1, Codegen.TRUE); // load true to t1
@@ -2596,6 +4417,14 @@ class NotNode extends UnaryExpNode {
         Codegen.generate("xor", Codegen.T0, Codegen.T0, Codegen.T1);
         Codegen.genPush(Codegen.T0);
     }
+
+    public String genReg() {
+        String reg = myExp.genReg();
+        Codegen.freeTemp(reg);
+        String dest = Codegen.takeTemp();
+        Codegen.generate("xori", dest, reg, Codegen.TRUE);
+        return dest;
+    }
 }
 
 // **********************************************************************
@@ -2608,31 +4437,83 @@ abstract class ArithmeticExpNode extends BinaryExpNode {
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
+    protected Type checkType() {
         Type type1 = myExp1.typeCheck();
         Type type2 = myExp2.typeCheck();
-        Type retType = new IntType();
+        Type retType = Type.INT;
 
         if (!type1.isErrorType() && !type1.isIntType()) {
             ErrMsg.fatal(myExp1.lineNum(), myExp1.charNum(),
                          "Arithmetic operator applied to non-numeric operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (!type2.isErrorType() && !type2.isIntType()) {
             ErrMsg.fatal(myExp2.lineNum(), myExp2.charNum(),
                          "Arithmetic operator applied to non-numeric operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (type1.isErrorType() || type2.isErrorType()) {
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         return retType;
     }
+
+    public IrOperand lower(IrFunction fn) {
+        return lowerOp(fn, irOp());
+    }
+
+    /**
+     * Return the IR operator of this node.
+     */
+    abstract protected String irOp();
+
+    /**
+     * genReduced
+     * If the operator has cheaper code for a literal operand (see
+     * StrengthReduce) and exp, the other operand, is not a literal too,
+     * generate exp and that code, pushing the result, or leaving it in the
+     * register returned if reg; else generate nothing and return null.
+     * When StrengthReduce has nothing better for the literal, it goes in a
+     * register, saving the push and pop of the general code.
+     */
+    protected String genReduced(ExpNode exp, int literal, boolean reg) {
+        if (!StrengthReduce.enabled() || exp instanceof IntLitNode) {
+            return null;
+        }
+        String src;
+        String dest;
+        if (reg) {
+            src = exp.genReg();
+            Codegen.freeTemp(src);
+            dest = Codegen.takeTemp();
+        } else {
+            exp.codeGen();
+            Codegen.genPop(Codegen.T0);
+            src = Codegen.T0;
+            dest = Codegen.T0;
+        }
+        if (!genConst(dest, src, literal, Codegen.T1)) {
+            Codegen.generate("li", Codegen.T1, Integer.toString(literal));
+            Codegen.generate(irOp().equals("mul") ? "mult" : "div", src, Codegen.T1);
+            Codegen.generate("mflo", dest);
+        }
+        if (!reg) {
+            Codegen.genPush(dest);
+        }
+        return dest;
+    }
+
+    /**
+     * Generate dest = src op literal by StrengthReduce, if it can.
+     */
+    protected boolean genConst(String dest, String src, int literal, String scratch) {
+        return false;
+    }
 }
 
 abstract class LogicalExpNode extends BinaryExpNode {
@@ -2641,31 +4522,49 @@ abstract class LogicalExpNode extends BinaryExpNode {
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
+    protected Type checkType() {
         Type type1 = myExp1.typeCheck();
         Type type2 = myExp2.typeCheck();
-        Type retType = new BoolType();
+        Type retType = Type.BOOL;
 
         if (!type1.isErrorType() && !type1.isBoolType()) {
             ErrMsg.fatal(myExp1.lineNum(), myExp1.charNum(),
                          "Logical operator applied to non-bool operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (!type2.isErrorType() && !type2.isBoolType()) {
             ErrMsg.fatal(myExp2.lineNum(), myExp2.charNum(),
                          "Logical operator applied to non-bool operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (type1.isErrorType() || type2.isErrorType()) {
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         return retType;
     }
+
+    /**
+     * lower
+     * The value is set to 1 or 0 on the two ways out of the branches that
+     * test the condition.
+     */
+    public IrOperand lower(IrFunction fn) {
+        String isFalse = fn.newLabel();
+        String done = fn.newLabel();
+        IrOperand t = fn.newTemp();
+        lowerBranch(fn, false, isFalse);
+        fn.emit("copy", t, IrOperand.constant(1));
+        fn.emitGoto(done);
+        fn.emitLabel(isFalse);
+        fn.emit("copy", t, IrOperand.constant(0));
+        fn.emitLabel(done);
+        return t;
+    }
 }
 
 abstract class EqualityExpNode extends BinaryExpNode {
@@ -2674,49 +4573,93 @@ abstract class EqualityExpNode extends BinaryExpNode {
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
+    protected Type checkType() {
         Type type1 = myExp1.typeCheck();
         Type type2 = myExp2.typeCheck();
-        Type retType = new BoolType();
+        Type retType = Type.BOOL;
 
         if (type1.isVoidType() && type2.isVoidType()) {
             ErrMsg.fatal(lineNum(), charNum(),
                          "Equality operator applied to void functions");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (type1.isFnType() && type2.isFnType()) {
             ErrMsg.fatal(lineNum(), charNum(),
                          "Equality operator applied to functions");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (type1.isStructDefType() && type2.isStructDefType()) {
             ErrMsg.fatal(lineNum(), charNum(),
                          "Equality operator applied to struct names");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (type1.isStructType() && type2.isStructType()) {
             ErrMsg.fatal(lineNum(), charNum(),
                          "Equality operator applied to struct variables");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
-        if (!type1.equals(type2) && !type1.isErrorType() && !type2.isErrorType()) {
+        // (two different struct types have already been reported above)
+        if (type1 != type2 && !retType.isErrorType() && !type1.isErrorType()
+                && !type2.isErrorType()) {
             ErrMsg.fatal(lineNum(), charNum(),
                          "Type mismatch");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (type1.isErrorType() || type2.isErrorType()) {
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         return retType;
     }
+
+    protected ExpNode simplify() {
+        if (isIntLit(myExp1) && isIntLit(myExp2)) {
+            return boolLit(this, compare(intVal(myExp1) == intVal(myExp2)));
+        }
+        if (isBoolLit(myExp1) && isBoolLit(myExp2)) {
+            return boolLit(this, compare(myExp1.getClass() == myExp2.getClass()));
+        }
+        return this;
+    }
+
+    /**
+     * Return the value of this test given whether the operands are equal.
+     */
+    abstract protected boolean compare(boolean equal);
+
+    public void genBranch(boolean sense, String label) {
+        if (myExp1 instanceof StringLitNode && myExp2 instanceof StringLitNode) {
+            super.genBranch(sense, label);  // compared at compile time
+        } else if (isBoolLit(myExp2)) {
+            // b == true is b, b == false is !b
+            myExp1.genBranch(compare(myExp2 instanceof TrueNode) == sense, label);
+        } else if (isBoolLit(myExp1)) {
+            myExp2.genBranch(compare(myExp1 instanceof TrueNode) == sense, label);
+        } else {
+            genCompareBranch(compare(true) == sense ? "beq" : "bne", label);
+        }
+    }
+
+    public IrOperand lower(IrFunction fn) {
+        return lowerOp(fn, compare(true) ? "seq" : "sne");
+    }
+
+    public void lowerBranch(IrFunction fn, boolean sense, String label) {
+        if (isBoolLit(myExp2)) {
+            myExp1.lowerBranch(fn, compare(myExp2 instanceof TrueNode) == sense, label);
+        } else if (isBoolLit(myExp1)) {
+            myExp2.lowerBranch(fn, compare(myExp1 instanceof TrueNode) == sense, label);
+        } else {
+            lowerCompareBranch(fn, compare(true) == sense ? "beq" : "bne", label);
+        }
+    }
 }
 
 abstract class RelationalExpNode extends BinaryExpNode {
@@ -2725,31 +4668,66 @@ abstract class RelationalExpNode extends BinaryExpNode {
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
+    protected Type checkType() {
         Type type1 = myExp1.typeCheck();
         Type type2 = myExp2.typeCheck();
-        Type retType = new BoolType();
+        Type retType = Type.BOOL;
 
         if (!type1.isErrorType() && !type1.isIntType()) {
             ErrMsg.fatal(myExp1.lineNum(), myExp1.charNum(),
                          "Relational operator applied to non-numeric operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (!type2.isErrorType() && !type2.isIntType()) {
             ErrMsg.fatal(myExp2.lineNum(), myExp2.charNum(),
                          "Relational operator applied to non-numeric operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (type1.isErrorType() || type2.isErrorType()) {
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         return retType;
     }
+
+    protected ExpNode simplify() {
+        if (isIntLit(myExp1) && isIntLit(myExp2)) {
+            return boolLit(this, compare(intVal(myExp1), intVal(myExp2)));
+        }
+        return this;
+    }
+
+    /**
+     * Return the value of this comparison of a and b.
+     */
+    abstract protected boolean compare(int a, int b);
+
+    public void genBranch(boolean sense, String label) {
+        genCompareBranch(branchOp(sense), label);
+    }
+
+    public IrOperand lower(IrFunction fn) {
+        return lowerOp(fn, irOp());
+    }
+
+    public void lowerBranch(IrFunction fn, boolean sense, String label) {
+        lowerCompareBranch(fn, branchOp(sense), label);
+    }
+
+    /**
+     * Return the IR operator that computes the value of this comparison.
+     */
+    abstract protected String irOp();
+
+    /**
+     * Return the branch instruction that jumps if this comparison has the
+     * value sense.
+     */
+    abstract protected String branchOp(boolean sense);
 }
 
 class PlusNode extends ArithmeticExpNode {
@@ -2757,6 +4735,25 @@ class PlusNode extends ArithmeticExpNode {
         super(exp1, exp2);
     }
 
+    protected ExpNode simplify() {
+        if (isIntLit(myExp1) && isIntLit(myExp2)) {
+            // add traps on overflow, so an overflowing sum is left to run
+            long sum = (long)intVal(myExp1) + intVal(myExp2);
+            if (sum == (int)sum) {
+                return intLit(this, (int)sum);
+            }
+        } else if (isIntLit(myExp2, 0)) {
+            return folded(myExp1);
+        } else if (isIntLit(myExp1, 0)) {
+            return folded(myExp2);
+        }
+        return this;
+    }
+
+    protected String irOp() {
+        return "add";
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("(");
         myExp1.unparse(p, 0);
@@ -2765,7 +4762,7 @@ class PlusNode extends ArithmeticExpNode {
         p.print(")");
     }
 
-    public void codeGen(){
+    protected void stackCodeGen(){
         myExp1.codeGen();
         myExp2.codeGen();
         Codegen.genPop(Codegen.T1);
@@ -2775,6 +4772,13 @@ class PlusNode extends ArithmeticExpNode {
         Codegen.generate("add", Codegen.T0, Codegen.T0, Codegen.T1);
         Codegen.genPush(Codegen.T0);
     }
+
+    public String genReg() {
+        String[] regs = genOperands();
+        String dest = resultTemp(regs);
+        Codegen.generate("add", dest, regs[0], regs[1]);
+        return dest;
+    }
 }
 
 class MinusNode extends ArithmeticExpNode {
@@ -2782,6 +4786,23 @@ class MinusNode extends ArithmeticExpNode {
         super(exp1, exp2);
     }
 
+    protected ExpNode simplify() {
+        if (isIntLit(myExp1) && isIntLit(myExp2)) {
+            // sub traps on overflow, like add
+            long diff = (long)intVal(myExp1) - intVal(myExp2);
+            if (diff == (int)diff) {
+                return intLit(this, (int)diff);
+            }
+        } else if (isIntLit(myExp2, 0)) {
+            return folded(myExp1);
+        }
+        return this;
+    }
+
+    protected String irOp() {
+        return "sub";
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("(");
         myExp1.unparse(p, 0);
@@ -2790,7 +4811,7 @@ class MinusNode extends ArithmeticExpNode {
         p.print(")");
     }
 
-    public void codeGen(){
+    protected void stackCodeGen(){
         myExp1.codeGen();
         myExp2.codeGen();
         Codegen.genPop(Codegen.T1);
@@ -2800,6 +4821,13 @@ class MinusNode extends ArithmeticExpNode {
         Codegen.generate("sub", Codegen.T0, Codegen.T0, Codegen.T1);
         Codegen.genPush(Codegen.T0);
     }
+
+    public String genReg() {
+        String[] regs = genOperands();
+        String dest = resultTemp(regs);
+        Codegen.generate("sub", dest, regs[0], regs[1]);
+        return dest;
+    }
 }
 
 class TimesNode extends ArithmeticExpNode {
@@ -2808,6 +4836,26 @@ class TimesNode extends ArithmeticExpNode {
     }
 
 
+    protected ExpNode simplify() {
+        if (isIntLit(myExp1) && isIntLit(myExp2)) {
+            // mflo takes the low word of the product: Java's int overflow
+            return intLit(this, intVal(myExp1) * intVal(myExp2));
+        } else if (isIntLit(myExp2, 1)) {
+            return folded(myExp1);
+        } else if (isIntLit(myExp1, 1)) {
+            return folded(myExp2);
+        } else if (isIntLit(myExp2, 0) && !myExp1.hasSideEffects()) {
+            return folded(myExp2);
+        } else if (isIntLit(myExp1, 0) && !myExp2.hasSideEffects()) {
+            return folded(myExp1);
+        }
+        return this;
+    }
+
+    protected String irOp() {
+        return "mul";
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("(");
         myExp1.unparse(p, 0);
@@ -2816,7 +4864,24 @@ class TimesNode extends ArithmeticExpNode {
         p.print(")");
     }
 
-    public void codeGen(){
+    // the result of genReduced, for a literal either side
+    private String genReduced(boolean reg) {
+        if (isIntLit(myExp2)) {
+            return genReduced(myExp1, intVal(myExp2), reg);
+        } else if (isIntLit(myExp1)) {
+            return genReduced(myExp2, intVal(myExp1), reg);
+        }
+        return null;
+    }
+
+    protected boolean genConst(String dest, String src, int literal, String scratch) {
+        return StrengthReduce.genMul(dest, src, literal, scratch);
+    }
+
+    protected void stackCodeGen(){
+        if (genReduced(false) != null) {
+            return;
+        }
         myExp1.codeGen();
         myExp2.codeGen();
         Codegen.genPop(Codegen.T1);
@@ -2830,6 +4895,18 @@ class TimesNode extends ArithmeticExpNode {
         // then push t0
         Codegen.genPush(Codegen.T0);
     }
+
+    public String genReg() {
+        String reduced = genReduced(true);
+        if (reduced != null) {
+            return reduced;
+        }
+        String[] regs = genOperands();
+        String dest = resultTemp(regs);
+        Codegen.generate("mult", regs[0], regs[1]);
+        Codegen.generate("mflo", dest);
+        return dest;
+    }
 }
 
 class DivideNode extends ArithmeticExpNode {
@@ -2837,6 +4914,25 @@ class DivideNode extends ArithmeticExpNode {
         super(exp1, exp2);
     }
 
+    protected ExpNode simplify() {
+        if (isIntLit(myExp1) && isIntLit(myExp2)) {
+            // both round toward zero; dividing by zero, or MIN_VALUE by
+            // -1, is left to the machine
+            int a = intVal(myExp1);
+            int b = intVal(myExp2);
+            if (b != 0 && !(a == Integer.MIN_VALUE && b == -1)) {
+                return intLit(this, a / b);
+            }
+        } else if (isIntLit(myExp2, 1)) {
+            return folded(myExp1);
+        }
+        return this;
+    }
+
+    protected String irOp() {
+        return "div";
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("(");
         myExp1.unparse(p, 0);
@@ -2845,7 +4941,14 @@ class DivideNode extends ArithmeticExpNode {
         p.print(")");
     }
 
-    public void codeGen(){
+    protected boolean genConst(String dest, String src, int literal, String scratch) {
+        return StrengthReduce.genDiv(dest, src, literal, scratch);
+    }
+
+    protected void stackCodeGen(){
+        if (isIntLit(myExp2) && genReduced(myExp1, intVal(myExp2), false) != null) {
+            return;
+        }
         myExp1.codeGen();
         myExp2.codeGen();
         Codegen.genPop(Codegen.T1);
@@ -2857,6 +4960,20 @@ class DivideNode extends ArithmeticExpNode {
         // then push t0
         Codegen.genPush(Codegen.T0);
     }
+
+    public String genReg() {
+        if (isIntLit(myExp2)) {
+            String reduced = genReduced(myExp1, intVal(myExp2), true);
+            if (reduced != null) {
+                return reduced;
+            }
+        }
+        String[] regs = genOperands();
+        String dest = resultTemp(regs);
+        Codegen.generate("div", regs[0], regs[1]);
+        Codegen.generate("mflo", dest);
+        return dest;
+    }
 }
 
 class AndNode extends LogicalExpNode {
@@ -2864,6 +4981,48 @@ class AndNode extends LogicalExpNode {
         super(exp1, exp2);
     }
 
+    protected ExpNode simplify() {
+        if (myExp1 instanceof TrueNode) {
+            return folded(myExp2);
+        } else if (myExp1 instanceof FalseNode) {
+            return folded(myExp1);  // exp2 is never evaluated
+        } else if (myExp2 instanceof TrueNode) {
+            return folded(myExp1);
+        } else if (myExp2 instanceof FalseNode && !myExp1.hasSideEffects()) {
+            return folded(myExp2);
+        }
+        return this;
+    }
+
+    /**
+     * genBranch
+     * Jump out as soon as the value is known: to label if both operands
+     * are true (for sense true), or as soon as one is false.
+     */
+    public void genBranch(boolean sense, String label) {
+        if (sense) {
+            String skip = Codegen.nextLabel();
+            myExp1.genBranch(false, skip);
+            myExp2.genBranch(true, label);
+            Codegen.genLabel(skip);
+        } else {
+            myExp1.genBranch(false, label);
+            myExp2.genBranch(false, label);
+        }
+    }
+
+    public void lowerBranch(IrFunction fn, boolean sense, String label) {
+        if (sense) {
+            String skip = fn.newLabel();
+            myExp1.lowerBranch(fn, false, skip);
+            myExp2.lowerBranch(fn, true, label);
+            fn.emitLabel(skip);
+        } else {
+            myExp1.lowerBranch(fn, false, label);
+            myExp2.lowerBranch(fn, false, label);
+        }
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("(");
         myExp1.unparse(p, 0);
@@ -2874,7 +5033,7 @@ class AndNode extends LogicalExpNode {
 
     // don't forget short circuit
     // treat AndNode as an if-else control flow
-    public void codeGen(){
+    protected void stackCodeGen(){
         // evaluate myExp1, then store to t0
         myExp1.codeGen(); // push
         Codegen.genPop(Codegen.T0); // pop to t0
@@ -2905,6 +5064,25 @@ class AndNode extends LogicalExpNode {
         // finally, print the branch successor following myExp2
         Codegen.genLabel(L0);
     }
+
+    public String genReg() {
+        String reg = myExp1.genReg();
+        String dest = reg;
+        if (!Codegen.isTemp(reg)) {
+            dest = Codegen.takeTemp();
+            Codegen.generate("move", dest, reg);
+        }
+
+        // if myExp1 is false, so is the whole expression and myExp2 is
+        // skipped
+        String done = Codegen.nextLabel();
+        Codegen.generate("beq", dest, Codegen.ZERO, done);
+        String reg2 = myExp2.genReg();
+        Codegen.generate("move", dest, reg2);
+        Codegen.freeTemp(reg2);
+        Codegen.genLabel(done);
+        return dest;
+    }
 }
 
 class OrNode extends LogicalExpNode {
@@ -2912,6 +5090,48 @@ class OrNode extends LogicalExpNode {
         super(exp1, exp2);
     }
 
+    protected ExpNode simplify() {
+        if (myExp1 instanceof FalseNode) {
+            return folded(myExp2);
+        } else if (myExp1 instanceof TrueNode) {
+            return folded(myExp1);  // exp2 is never evaluated
+        } else if (myExp2 instanceof FalseNode) {
+            return folded(myExp1);
+        } else if (myExp2 instanceof TrueNode && !myExp1.hasSideEffects()) {
+            return folded(myExp2);
+        }
+        return this;
+    }
+
+    /**
+     * genBranch
+     * Jump out as soon as the value is known: to label as soon as one
+     * operand is true (for sense true), or if both are false.
+     */
+    public void genBranch(boolean sense, String label) {
+        if (sense) {
+            myExp1.genBranch(true, label);
+            myExp2.genBranch(true, label);
+        } else {
+            String skip = Codegen.nextLabel();
+            myExp1.genBranch(true, skip);
+            myExp2.genBranch(false, label);
+            Codegen.genLabel(skip);
+        }
+    }
+
+    public void lowerBranch(IrFunction fn, boolean sense, String label) {
+        if (sense) {
+            myExp1.lowerBranch(fn, true, label);
+            myExp2.lowerBranch(fn, true, label);
+        } else {
+            String skip = fn.newLabel();
+            myExp1.lowerBranch(fn, true, skip);
+            myExp2.lowerBranch(fn, false, label);
+            fn.emitLabel(skip);
+        }
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("(");
         myExp1.unparse(p, 0);
@@ -2922,7 +5142,7 @@ class OrNode extends LogicalExpNode {
 
     // don't forget short circuit
     // treat OrNode as an if-else control flow
-    public void codeGen(){
+    protected void stackCodeGen(){
         // evaluate myExp1, then store to t0
         myExp1.codeGen(); // push
         Codegen.genPop(Codegen.T0); // pop to t0
@@ -2953,6 +5173,25 @@ class OrNode extends LogicalExpNode {
         // finally, print the branch successor following myExp2
         Codegen.genLabel(L0);
     }
+
+    public String genReg() {
+        String reg = myExp1.genReg();
+        String dest = reg;
+        if (!Codegen.isTemp(reg)) {
+            dest = Codegen.takeTemp();
+            Codegen.generate("move", dest, reg);
+        }
+
+        // if myExp1 is true, so is the whole expression and myExp2 is
+        // skipped
+        String done = Codegen.nextLabel();
+        Codegen.generate("bne", dest, Codegen.ZERO, done);
+        String reg2 = myExp2.genReg();
+        Codegen.generate("move", dest, reg2);
+        Codegen.freeTemp(reg2);
+        Codegen.genLabel(done);
+        return dest;
+    }
 }
 
 class EqualsNode extends EqualityExpNode {
@@ -2960,6 +5199,10 @@ class EqualsNode extends EqualityExpNode {
         super(exp1, exp2);
     }
 
+    protected boolean compare(boolean equal) {
+        return equal;
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("(");
         myExp1.unparse(p, 0);
@@ -2969,7 +5212,7 @@ class EqualsNode extends EqualityExpNode {
     }
 
     // int comparison, string lit comparison
-    public void codeGen(){
+    protected void stackCodeGen(){
         // System.out.println("xxx");
         if(myExp1 instanceof StringLitNode && myExp2 instanceof StringLitNode){
             // System.out.println("2");
@@ -3002,6 +5245,17 @@ class EqualsNode extends EqualityExpNode {
         }
         
     }
+
+    public String genReg() {
+        if (myExp1 instanceof StringLitNode && myExp2 instanceof StringLitNode) {
+            stackCodeGen();
+            return popTemp();
+        }
+        String[] regs = genOperands();
+        String dest = resultTemp(regs);
+        Codegen.generate("seq", dest, regs[0], regs[1]);
+        return dest;
+    }
 }
 
 class NotEqualsNode extends EqualityExpNode {
@@ -3009,6 +5263,10 @@ class NotEqualsNode extends EqualityExpNode {
         super(exp1, exp2);
     }
 
+    protected boolean compare(boolean equal) {
+        return !equal;
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("(");
         myExp1.unparse(p, 0);
@@ -3018,7 +5276,7 @@ class NotEqualsNode extends EqualityExpNode {
     }
 
     // int comparison, string lit comparison
-    public void codeGen(){
+    protected void stackCodeGen(){
         if(myExp1 instanceof StringLitNode && myExp2 instanceof StringLitNode){
             String s1 = ((StringLitNode)myExp1).toString();
             String s2 = ((StringLitNode)myExp2).toString();
@@ -3048,6 +5306,17 @@ class NotEqualsNode extends EqualityExpNode {
         }
         
     }
+
+    public String genReg() {
+        if (myExp1 instanceof StringLitNode && myExp2 instanceof StringLitNode) {
+            stackCodeGen();
+            return popTemp();
+        }
+        String[] regs = genOperands();
+        String dest = resultTemp(regs);
+        Codegen.generate("sne", dest, regs[0], regs[1]);
+        return dest;
+    }
 }
 
 class LessNode extends RelationalExpNode {
@@ -3055,6 +5324,18 @@ class LessNode extends RelationalExpNode {
         super(exp1, exp2);
     }
 
+    protected boolean compare(int a, int b) {
+        return a < b;
+    }
+
+    protected String branchOp(boolean sense) {
+        return sense ? "blt" : "bge";
+    }
+
+    protected String irOp() {
+        return "slt";
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("(");
         myExp1.unparse(p, 0);
@@ -3063,7 +5344,7 @@ class LessNode extends RelationalExpNode {
         p.print(")");
     }
 
-    public void codeGen(){
+    protected void stackCodeGen(){
         myExp1.codeGen(); // store myExp1 in t0, push
         myExp2.codeGen(); // store myExp2 in t1, push
         
@@ -3078,6 +5359,13 @@ class LessNode extends RelationalExpNode {
         // push back t0
         Codegen.genPush(Codegen.T0);
     }
+
+    public String genReg() {
+        String[] regs = genOperands();
+        String dest = resultTemp(regs);
+        Codegen.generate("slt", dest, regs[0], regs[1]);
+        return dest;
+    }
 }
 
 class GreaterNode extends RelationalExpNode {
@@ -3085,6 +5373,18 @@ class GreaterNode extends RelationalExpNode {
         super(exp1, exp2);
     }
 
+    protected boolean compare(int a, int b) {
+        return a > b;
+    }
+
+    protected String branchOp(boolean sense) {
+        return sense ? "bgt" : "ble";
+    }
+
+    protected String irOp() {
+        return "sgt";
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("(");
         myExp1.unparse(p, 0);
@@ -3093,7 +5393,7 @@ class GreaterNode extends RelationalExpNode {
         p.print(")");
     }
 
-    public void codeGen(){
+    protected void stackCodeGen(){
         myExp1.codeGen(); // store myExp1 in t0, push
         myExp2.codeGen(); // store myExp2 in t1, push
         
@@ -3108,6 +5408,13 @@ class GreaterNode extends RelationalExpNode {
         // push back t0
         Codegen.genPush(Codegen.T0);
     }
+
+    public String genReg() {
+        String[] regs = genOperands();
+        String dest = resultTemp(regs);
+        Codegen.generate("sgt", dest, regs[0], regs[1]);
+        return dest;
+    }
 }
 
 class LessEqNode extends RelationalExpNode {
@@ -3115,6 +5422,18 @@ class LessEqNode extends RelationalExpNode {
         super(exp1, exp2);
     }
 
+    protected boolean compare(int a, int b) {
+        return a <= b;
+    }
+
+    protected String branchOp(boolean sense) {
+        return sense ? "ble" : "bgt";
+    }
+
+    protected String irOp() {
+        return "sle";
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("(");
         myExp1.unparse(p, 0);
@@ -3123,7 +5442,7 @@ class LessEqNode extends RelationalExpNode {
         p.print(")");
     }
 
-    public void codeGen(){
+    protected void stackCodeGen(){
         myExp1.codeGen(); // store myExp1 in t0, push
         myExp2.codeGen(); // store myExp2 in t1, push
         
@@ -3138,6 +5457,13 @@ class LessEqNode extends RelationalExpNode {
         // push back t0
         Codegen.genPush(Codegen.T0);
     }
+
+    public String genReg() {
+        String[] regs = genOperands();
+        String dest = resultTemp(regs);
+        Codegen.generate("sle", dest, regs[0], regs[1]);
+        return dest;
+    }
 }
 
 class GreaterEqNode extends RelationalExpNode {
@@ -3145,6 +5471,18 @@ class GreaterEqNode extends RelationalExpNode {
         super(exp1, exp2);
     }
 
+    protected boolean compare(int a, int b) {
+        return a >= b;
+    }
+
+    protected String branchOp(boolean sense) {
+        return sense ? "bge" : "blt";
+    }
+
+    protected String irOp() {
+        return "sge";
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("(");
         myExp1.unparse(p, 0);
@@ -3153,7 +5491,7 @@ class GreaterEqNode extends RelationalExpNode {
         p.print(")");
     }
 
-    public void codeGen(){
+    protected void stackCodeGen(){
         myExp1.codeGen(); // store myExp1 in t0, push
         myExp2.codeGen(); // store myExp2 in t1, push
         
@@ -3168,4 +5506,12 @@ class GreaterEqNode extends RelationalExpNode {
         // push back t0
         Codegen.genPush(Codegen.T0);
     }
+
+    public String genReg() {
+        String[] regs = genOperands();
+        String dest = resultTemp(regs);
+        Codegen.generate("sge", dest, regs[0], regs[1]);
+        return dest;
+    }
 }
+